@@ -2,6 +2,8 @@ package com.lee.android;
 
 import android.app.Application;
 
+import com.lee.android.demo.gif.StandardBitmapProvider;
+
 
 /**
  * @author lee
@@ -12,4 +14,11 @@ public class MyApplication extends Application {
     public void onCreate() {
         super.onCreate();
     }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        //释放gif缓存池
+        StandardBitmapProvider.getInstance().trimMemory(level);
+    }
 }
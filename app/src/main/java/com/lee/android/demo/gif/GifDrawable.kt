@@ -4,16 +4,24 @@ import android.graphics.*
 import android.graphics.drawable.Drawable
 import android.os.SystemClock
 import android.util.Log
+import java.io.File
+import java.io.IOException
 import java.io.InputStream
+import kotlin.concurrent.thread
 
 /**
  * gif Drawable绘制
+ * 帧由GifFrameLoader在后台线程预解码,绘制时只取出已解码的图片
+ * 圆角通过BitmapShader直接绘制到画布上,动画过程中不再创建图片
  *@author lee
  *@date 2021/5/24
  */
 class GifDrawable : Drawable() {
 
     public interface OnBitmapChange{
+        /**
+         * 每帧回调的是同一张复用的圆角图片,需要保留时请自行拷贝
+         */
         fun onChange(bitmap: Bitmap?)
     }
 
@@ -22,31 +30,66 @@ class GifDrawable : Drawable() {
     /**
      * 默认画笔
      */
-    private var paint: Paint = Paint(Paint.ANTI_ALIAS_FLAG)
+    private var paint: Paint = Paint(Paint.ANTI_ALIAS_FLAG or Paint.FILTER_BITMAP_FLAG)
 
     /**
-     * 绘制圆角的画笔
+     * 生成回调圆角图片的画笔
      */
     private val paintRound = Paint()
 
     /**
-     * 避免缩放导致的图片锯齿
+     * 圆角区域
      */
-    private val pfd = PaintFlagsDrawFilter(0, Paint.ANTI_ALIAS_FLAG or Paint.FILTER_BITMAP_FLAG)
+    private val roundRect = RectF()
 
     /**
-     * 圆角叠加模式
+     * 帧图片缩放到绘制区域的矩阵
      */
-    private val paintMode = PorterDuffXfermode(PorterDuff.Mode.SRC_IN)
+    private val shaderMatrix = Matrix()
 
     /**
-     * gif解码器
+     * 帧图片对应的BitmapShader,帧图片由BitmapProvider循环复用,缓存几张即可全部命中
+     */
+    private val shaderBitmaps = arrayOfNulls<Bitmap>(SHADER_CACHE_SIZE)
+    private val shaders = arrayOfNulls<BitmapShader>(SHADER_CACHE_SIZE)
+    private var shaderNext = 0
+
+    /**
+     * 回调给listener的圆角图片,尺寸不变时复用
+     */
+    private var roundBitmap: Bitmap? = null
+    private val roundCanvas = Canvas()
+
+    /**
+     * gif解码器,设置资源后只在frameLoader的后台线程使用
+     * 每次设置资源时重新创建,旧解码器由旧的frameLoader在其后台线程释放
      */
     private var gifDecoder: StandardGifDecoder =
         StandardGifDecoder(StandardBitmapProvider.getInstance())
 
+    /**
+     * 帧预解码
+     */
+    private var frameLoader: GifFrameLoader? = null
+
+    /**
+     * 当前显示的帧
+     */
+    private var frame: GifFrameLoader.Frame? = null
+
+    /**
+     * 跳转后等待新的帧解码完成,此时取不到帧不计入丢帧
+     */
+    private var seeking = false
+
+    /**
+     * 重绘任务,帧切换定时与下一帧解码完成后的重绘共用同一个对象,scheduleSelf与unscheduleSelf不再每次创建Runnable
+     */
+    private val invalidateTask = Runnable { invalidateSelf() }
+
     init {
         paintRound.isAntiAlias = true
+        paintRound.isFilterBitmap = true
         paintRound.color = -0xbdbdbe
     }
 
@@ -81,12 +124,28 @@ class GifDrawable : Drawable() {
     var roundPx: Float = 0f
 
     /**
-     * 当前帧数据
+     * 当前帧数据,每次获取时从当前帧图片读取
      */
-    lateinit var currentPixel: IntArray
+    val currentPixel: IntArray
+        get() {
+            val bitmap = currentBitmap ?: return IntArray(0)
+            val size = bitmap.width * bitmap.height
+            if (pixels.size != size) {
+                pixels = IntArray(size)
+            }
+            bitmap.getPixels(pixels, 0, bitmap.width, 0, 0, bitmap.width, bitmap.height)
+            return pixels
+        }
+    private var pixels = IntArray(0)
 
     private var currentBitmap: Bitmap? = null
 
+    /**
+     * 需要显示下一帧时,后台还未解码完成的次数
+     */
+    val droppedFrames: Int
+        get() = frameLoader?.droppedFrames ?: 0
+
     /**
      * 当前帧索引
      */
@@ -96,10 +155,88 @@ class GifDrawable : Drawable() {
      * 设置gif资源
      */
     fun setGifResource(inputStream: InputStream) {
+        releaseResource()
         gifDecoder.read(inputStream, inputStream.available())
+        onResourceRead()
+    }
+
+    /**
+     * 设置gif文件,文件通过内存映射读取
+     */
+    fun setGifFile(file: File) {
+        releaseResource()
+        gifDecoder.read(file)
+        onResourceRead()
+    }
+
+    /**
+     * 设置gif数据流,适用于网络下载等较慢的数据
+     * 在后台线程边读取边解析,首帧数据到达后即开始显示,不需要等待全部数据
+     * @param contentLength 数据总长度,未知时传入-1
+     */
+    fun setGifStream(inputStream: InputStream, contentLength: Int = -1) {
+        releaseResource()
+        //读取线程只使用本次的解码器与frameLoader,之后设置新资源时旧解码器被clear,读取线程随之停止
+        val decoder = gifDecoder
+        decoder.beginStream(contentLength)
+        ready = true
+        needAdvance = true
+        seeking = true
+        val loader = GifFrameLoader(decoder, StandardBitmapProvider.getInstance())
+        frameLoader = loader
+        loader.start()
+        thread(name = "GifStream") {
+            val buffer = ByteArray(16 * 1024)
+            try {
+                inputStream.use {
+                    while (true) {
+                        val count = it.read(buffer)
+                        if (count < 0) {
+                            break
+                        }
+                        //已clear时停止读取
+                        if (decoder.appendData(buffer, 0, count) < 0) {
+                            return@thread
+                        }
+                        loader.onFramesArrived()
+                    }
+                }
+            } catch (e: IOException) {
+                Log.e("lee-gif", "read gif stream error", e)
+            }
+            decoder.endStream()
+            loader.onFramesArrived()
+        }
+    }
+
+    /**
+     * 释放当前资源并创建新的解码器,旧解码器可能还在旧frameLoader的后台线程中使用,不能复用
+     */
+    private fun releaseResource() {
+        unscheduleSelf(invalidateTask)
+        ready = false
+        val loader = frameLoader
+        if (loader != null) {
+            frame?.let { loader.recycle(it) }
+            //解码器在后台线程释放
+            loader.quit()
+            gifDecoder = StandardGifDecoder(StandardBitmapProvider.getInstance())
+        } else {
+            gifDecoder.clear()
+        }
+        frameLoader = null
+        frame = null
+        currentBitmap = null
+        shaderBitmaps.fill(null)
+        shaders.fill(null)
+    }
+
+    private fun onResourceRead() {
         if (gifDecoder.frameCount > 0) {
             ready = true
             needAdvance = true
+            seeking = true
+            frameLoader = GifFrameLoader(gifDecoder, StandardBitmapProvider.getInstance()).apply { start() }
         } else {
             Log.e("lee-gif", "gif size is:${gifDecoder.frameCount}")
         }
@@ -109,7 +246,7 @@ class GifDrawable : Drawable() {
      * 启动动画
      */
     fun startAnim() {
-        unscheduleSelf(this::invalidateSelf)
+        unscheduleSelf(invalidateTask)
         needAdvance = true
         animStart = true
         invalidateSelf()
@@ -119,7 +256,7 @@ class GifDrawable : Drawable() {
      * 停止动画,停在当前帧的位置
      */
     fun stopAnim() {
-        unscheduleSelf(this::invalidateSelf)
+        unscheduleSelf(invalidateTask)
         needAdvance = false
         animStart = false
         invalidateSelf()
@@ -129,7 +266,7 @@ class GifDrawable : Drawable() {
      * 停止动画,回到首帧
      */
     fun stopAnim2First() {
-        unscheduleSelf(this::invalidateSelf)
+        unscheduleSelf(invalidateTask)
         currentFrame = 0
         needAdvance = false
         animStart = false
@@ -143,13 +280,14 @@ class GifDrawable : Drawable() {
      */
     fun seekTo(pos: Int, pixels: IntArray) {
         if (pos == 0) {
-            unscheduleSelf(this::invalidateSelf)
-            gifDecoder.resetFrameIndex()
+            unscheduleSelf(invalidateTask)
+            resetLoader { it.resetFrameIndex() }
             needAdvance = true
         } else {
-            gifDecoder.seek(pos, pixels)
+            //解码器在后台线程跳转,拷贝一份避免调用方修改
+            val copy = pixels.copyOf()
+            resetLoader { it.seek(pos, copy) }
             currentFrame = pos
-            currentPixel = pixels
             currentBitmap?.setPixels(
                 pixels,
                 0,
@@ -163,14 +301,52 @@ class GifDrawable : Drawable() {
         invalidateSelf()
     }
 
+    /**
+     * 跳转到指定帧进行渲染,不启动动画
+     * 解码器从最近的快照开始解码,不需要传入参照数据
+     */
+    fun seekTo(pos: Int) {
+        unscheduleSelf(invalidateTask)
+        seekLoader(pos)
+        needAdvance = true
+        invalidateSelf()
+    }
+
+    /**
+     * 跳转到指定帧并启动动画,不需要传入参照数据
+     */
+    fun seekAndStart(pos: Int) {
+        seekLoader(pos)
+        startAnim()
+    }
+
+    /**
+     * 后台线程把解码器定位到pos的前一帧,预解码的第一帧即为pos
+     */
+    private fun seekLoader(pos: Int) {
+        resetLoader {
+            if (pos <= 0) {
+                it.resetFrameIndex()
+            } else {
+                it.seek(pos - 1)
+            }
+        }
+    }
+
     /**
      * 跳转到指定帧并启动动画
      */
     fun seekAndStart(pos: Int, pixels: IntArray) {
-        gifDecoder.seek(pos, pixels)
+        val copy = pixels.copyOf()
+        resetLoader { it.seek(pos, copy) }
         startAnim()
     }
 
+    private fun resetLoader(action: (StandardGifDecoder) -> Unit) {
+        seeking = true
+        frameLoader?.reset(action)
+    }
+
 
     /**
      * 绘制
@@ -187,66 +363,100 @@ class GifDrawable : Drawable() {
             //判断是否需要回到首帧
             if (needGoFirst) {
                 needGoFirst = false
-                //重置解码器当前帧
-                gifDecoder.resetFrameIndex()
+                //重置解码器当前帧,首帧解码完成后显示
+                resetLoader { it.resetFrameIndex() }
+                needAdvance = true
                 drawNextFrame(canvas)
             } else {
                 //直接渲染当前资源
                 currentBitmap?.let {
-                    canvas.drawBitmap(getRoundBitmap(it), 0f, 0f, paint)
+                    drawRound(canvas, it, paint)
                 }
             }
         }
     }
 
     private fun drawNextFrame(canvas: Canvas) {
-        //前进到下一帧
-        gifDecoder.advance()
+        //取出后台解码好的下一帧
+        val next = frameLoader?.poll(animStart && !seeking)
+        if (next == null) {
+            //还未解码完成,先绘制当前帧,解码完成后重绘
+            currentBitmap?.let {
+                drawRound(canvas, it, paint)
+            }
+            frameLoader?.whenReady(invalidateTask)
+            return
+        }
+        seeking = false
+        frame?.let { frameLoader?.recycle(it) }
+        frame = next
         //记录索引
-        currentFrame = gifDecoder.currentFrameIndex
+        currentFrame = next.index
         //记录图片
-        currentBitmap = gifDecoder.nextFrame
-
-
+        currentBitmap = next.bitmap
+
+        listener?.onChange(getRoundBitmap(next.bitmap))
+
+        drawRound(canvas, next.bitmap, paint)
+        if (animStart) {
+            scheduleSelf(
+                invalidateTask,
+                if (duration > 0) {
+                    SystemClock.uptimeMillis() + duration
+                } else {
+                    SystemClock.uptimeMillis() + next.delay.toLong()
+                }
+            )
+        } else {
+            needAdvance = false
+        }
+    }
 
-        listener?.onChange(getRoundBitmap(currentBitmap!!))
+    /**
+     * 以圆角矩形绘制帧图片,图片缩放到绘制区域
+     */
+    private fun drawRound(canvas: Canvas, bitmap: Bitmap, paint: Paint) {
+        roundRect.set(0f, 0f, bounds.right.toFloat(), bounds.bottom.toFloat())
+        val shader = getShader(bitmap)
+        shaderMatrix.setScale(roundRect.right / bitmap.width, roundRect.bottom / bitmap.height)
+        shader.setLocalMatrix(shaderMatrix)
+        paint.shader = shader
+        canvas.drawRoundRect(roundRect, roundPx, roundPx, paint)
+        paint.shader = null
+    }
 
-        currentBitmap?.let {
-            //记录帧数据
-            currentPixel = gifDecoder.mainScratch
-            canvas.drawBitmap(getRoundBitmap(it), 0f, 0f, paint)
-            if (animStart) {
-                scheduleSelf(
-                    this::invalidateSelf,
-                    if (duration > 0) {
-                        SystemClock.uptimeMillis() + duration
-                    } else {
-                        SystemClock.uptimeMillis() + gifDecoder.nextDelay.toLong()
-                    }
-                )
-            } else {
-                needAdvance = false
+    private fun getShader(bitmap: Bitmap): BitmapShader {
+        for (i in shaders.indices) {
+            if (shaderBitmaps[i] === bitmap) {
+                return shaders[i]!!
             }
         }
+        val shader = BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP)
+        shaderBitmaps[shaderNext] = bitmap
+        shaders[shaderNext] = shader
+        shaderNext = (shaderNext + 1) % SHADER_CACHE_SIZE
+        return shader
     }
 
-    private fun getRoundBitmap(bitmap: Bitmap): Bitmap {
-        val bound = RectF(0f, 0f, bounds.right.toFloat(), bounds.bottom.toFloat())
-        val scaleX = bounds.right.toFloat() / bitmap.width
-        val scaleY = bounds.bottom.toFloat() / bitmap.height
-        val output = Bitmap.createBitmap(
-            bound.right.toInt(),
-            bound.bottom.toInt(),
-            Bitmap.Config.ARGB_8888
-        )
-        val canvas = Canvas(output)
-        canvas.drawARGB(Color.TRANSPARENT, Color.TRANSPARENT, Color.TRANSPARENT, Color.TRANSPARENT)
-        paintRound.xfermode = null
-        canvas.drawRoundRect(bound, roundPx, roundPx, paintRound)
-        paintRound.xfermode = paintMode
-        canvas.drawFilter = pfd
-        canvas.scale(scaleX, scaleY)
-        canvas.drawBitmap(bitmap, 0f, 0f, paintRound)
+    /**
+     * 生成回调给listener的圆角图片,复用同一张图片
+     */
+    private fun getRoundBitmap(bitmap: Bitmap): Bitmap? {
+        val width = bounds.right
+        val height = bounds.bottom
+        if (width <= 0 || height <= 0) {
+            return null
+        }
+        var output = roundBitmap
+        if (output == null || output.width != width || output.height != height) {
+            //listener可能还持有旧图片,不主动recycle
+            output = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+            roundBitmap = output
+            roundCanvas.setBitmap(output)
+        } else {
+            output.eraseColor(Color.TRANSPARENT)
+        }
+        drawRound(roundCanvas, bitmap, paintRound)
         return output
     }
 
@@ -266,6 +476,15 @@ class GifDrawable : Drawable() {
 
     fun clear(){
         //清除数据
-        gifDecoder.clear()
+        releaseResource()
+        roundCanvas.setBitmap(null)
+        roundBitmap = null
+    }
+
+    companion object {
+        /**
+         * 缓存的BitmapShader数量,不小于同时存在的帧图片数
+         */
+        private const val SHADER_CACHE_SIZE = 4
     }
 }
\ No newline at end of file
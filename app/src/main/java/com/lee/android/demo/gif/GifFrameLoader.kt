@@ -0,0 +1,250 @@
+package com.lee.android.demo.gif
+
+import android.graphics.Bitmap
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+import java.util.ArrayDeque
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * gif帧预解码
+ * 在后台线程提前解码之后的1~2帧,绘制时只需取出已解码的图片,LZW解码与setPixels不再占用UI线程的帧时间
+ * 所有GifFrameLoader共用WORKER_COUNT个后台线程,每个GifFrameLoader固定使用其中一个,同一解码器的操作按顺序执行
+ * 解码器只在后台线程使用,对解码器的跳转等操作通过reset交给后台线程执行
+ * 帧图片来自BitmapProvider,显示完后通过recycle归还复用,同时存在的图片不超过depth+1张
+ * 增量读取时下一帧还未到达则暂停预解码,由onFramesArrived恢复
+ * 除构造与onFramesArrived外的方法需在UI线程调用
+ */
+class GifFrameLoader(
+    private val decoder: StandardGifDecoder,
+    private val provider: GifDecoder.BitmapProvider,
+    //预解码的帧数
+    private val depth: Int = 2
+) {
+    /**
+     * 解码完成的帧
+     * @param index 帧索引
+     * @param bitmap 帧图片
+     * @param delay 该帧的显示时长,单位毫秒
+     */
+    class Frame(val index: Int, val bitmap: Bitmap, val delay: Int)
+
+    companion object {
+        /**
+         * 共用的后台线程数量
+         */
+        private const val WORKER_COUNT = 2
+
+        private val workers by lazy {
+            Array(WORKER_COUNT) { HandlerThread("GifFrameLoader-$it").apply { start() } }
+        }
+
+        private val nextWorker = AtomicInteger()
+
+        /**
+         * 轮流分配后台线程
+         */
+        private fun obtainLooper(): Looper {
+            return workers[(nextWorker.getAndIncrement() and Int.MAX_VALUE) % WORKER_COUNT].looper
+        }
+    }
+
+    /**
+     * 只移除本实例发出的任务,不影响共用同一线程的其他GifFrameLoader
+     */
+    private val handler = Handler(obtainLooper())
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    /**
+     * 已解码等待显示的帧
+     */
+    private val ready = ArrayDeque<Frame>(depth)
+
+    /**
+     * 每次reset后加1,丢弃reset前开始解码的帧
+     */
+    @Volatile
+    private var generation = 0
+
+    /**
+     * 后台线程已执行完reset操作的generation,与generation不一致时暂停解码,等待reset操作执行
+     */
+    @Volatile
+    private var appliedGeneration = 0
+
+    /**
+     * 是否已quit,之后不再预解码
+     */
+    @Volatile
+    private var quit = false
+
+    /**
+     * 后台线程是否正在解码
+     */
+    private var decoding = false
+
+    /**
+     * 帧解码完成时的回调,在UI线程执行,执行一次后清除
+     */
+    private var onReady: Runnable? = null
+
+    /**
+     * 需要显示下一帧时还未解码完成的次数
+     */
+    var droppedFrames = 0
+        private set
+
+    /**
+     * 已解码的帧数
+     */
+    @Volatile
+    var decodedFrames = 0
+        private set
+
+    private val fillTask = Runnable { fill() }
+
+    /**
+     * 开始预解码
+     */
+    fun start() {
+        requestFill()
+    }
+
+    /**
+     * 增量读取时有新的帧到达,可在任意线程调用
+     */
+    fun onFramesArrived() {
+        requestFill()
+    }
+
+    /**
+     * 取出下一帧,并继续预解码之后的帧
+     * @param countDrop 未解码完成时是否计入丢帧
+     * @return 还未解码完成时返回null
+     */
+    fun poll(countDrop: Boolean): Frame? {
+        val frame = synchronized(ready) { ready.pollFirst() }
+        if (frame == null && countDrop) {
+            droppedFrames++
+        }
+        requestFill()
+        return frame
+    }
+
+    /**
+     * 下一帧解码完成时在UI线程回调,已有解码完成的帧时立即回调
+     */
+    fun whenReady(callback: Runnable) {
+        val hasFrame = synchronized(ready) {
+            onReady = callback
+            ready.isNotEmpty()
+        }
+        if (hasFrame) {
+            dispatchReady()
+        }
+    }
+
+    /**
+     * 归还显示完的帧图片
+     */
+    fun recycle(frame: Frame) {
+        provider.release(frame.bitmap)
+    }
+
+    /**
+     * 丢弃已解码的帧,在后台线程对解码器执行action,之后重新预解码
+     */
+    fun reset(action: (StandardGifDecoder) -> Unit) {
+        val current = ++generation
+        val discard = synchronized(ready) {
+            val frames = ready.toList()
+            ready.clear()
+            frames
+        }
+        discard.forEach { recycle(it) }
+        handler.post {
+            action(decoder)
+            appliedGeneration = current
+            synchronized(ready) { decoding = true }
+            fill()
+        }
+    }
+
+    /**
+     * 停止预解码,并在后台线程释放解码器,之后不能再使用
+     */
+    fun quit() {
+        quit = true
+        generation++
+        mainHandler.removeCallbacksAndMessages(null)
+        val discard = synchronized(ready) {
+            onReady = null
+            val frames = ready.toList()
+            ready.clear()
+            frames
+        }
+        discard.forEach { recycle(it) }
+        handler.removeCallbacksAndMessages(null)
+        handler.post { decoder.clear() }
+    }
+
+    private fun requestFill() {
+        synchronized(ready) {
+            if (quit || decoding || ready.size >= depth) {
+                return
+            }
+            decoding = true
+        }
+        handler.post(fillTask)
+    }
+
+    /**
+     * 后台线程解码,直到预解码的帧数达到depth
+     */
+    private fun fill() {
+        while (true) {
+            val current = generation
+            synchronized(ready) {
+                //在锁内检查下一帧是否到达,避免与onFramesArrived错过通知
+                if (ready.size >= depth || current != appliedGeneration || !decoder.hasNextFrame()) {
+                    decoding = false
+                    return
+                }
+                decoding = true
+            }
+            decoder.advance()
+            val bitmap = decoder.nextFrame
+            if (bitmap == null) {
+                synchronized(ready) { decoding = false }
+                return
+            }
+            val index = decoder.currentFrameIndex
+            decodedFrames++
+            val frame = Frame(index, bitmap, decoder.getDelay(index))
+            val accepted = synchronized(ready) {
+                if (current == generation) {
+                    ready.addLast(frame)
+                    true
+                } else {
+                    false
+                }
+            }
+            if (accepted) {
+                dispatchReady()
+            } else {
+                //解码期间发生了reset,该帧作废
+                recycle(frame)
+            }
+        }
+    }
+
+    private fun dispatchReady() {
+        val callback = synchronized(ready) {
+            val callback = onReady
+            onReady = null
+            callback
+        } ?: return
+        mainHandler.post(callback)
+    }
+}
@@ -123,6 +123,11 @@ public class GifHeaderParser {
     private GifHeader header;
     private int blockSize = 0;
 
+    // 增量解析的状态
+    private int streamPosition;
+    private boolean streamHeaderRead;
+    private boolean streamDone;
+
     public GifHeaderParser setData(@NonNull ByteBuffer data) {
         reset();
         rawData = data.asReadOnlyBuffer();
@@ -173,6 +178,113 @@ public class GifHeaderParser {
         return header;
     }
 
+    /**
+     * 开始增量解析,之后每收到数据调用parseAvailable
+     *
+     * @return 解析结果,帧随数据到达陆续加入
+     */
+    @NonNull
+    public GifHeader beginStream() {
+        reset();
+        streamPosition = 0;
+        streamHeaderRead = false;
+        streamDone = false;
+        return header;
+    }
+
+    /**
+     * 增量解析,只解析已完整到达的块,不完整的块留到下次数据到达时再解析
+     *
+     * @param data 目前收到的全部数据,position为0,limit为数据长度
+     * @return 已解析出的帧数
+     */
+    public int parseAvailable(@NonNull ByteBuffer data) {
+        if (err() || streamDone) {
+            return header.frameCount;
+        }
+        rawData = data.asReadOnlyBuffer();
+        rawData.order(ByteOrder.LITTLE_ENDIAN);
+        rawData.position(streamPosition);
+        if (!streamHeaderRead) {
+            if (!isHeaderAvailable()) {
+                return header.frameCount;
+            }
+            readHeader();
+            streamHeaderRead = true;
+        }
+        while (!(streamDone || err()) && getBlockEnd(rawData.position()) >= 0) {
+            streamDone = readContent(read());
+        }
+        streamPosition = rawData.position();
+        return header.frameCount;
+    }
+
+    /**
+     * 增量解析时文件头是否已完整到达
+     */
+    public boolean isHeaderRead() {
+        return streamHeaderRead;
+    }
+
+    /**
+     * 文件头与全局颜色表是否已完整到达
+     */
+    private boolean isHeaderAvailable() {
+        // 6 bytes signature + 7 bytes logical screen descriptor.
+        int size = 13;
+        if (rawData.limit() < size) {
+            return false;
+        }
+        int packed = rawData.get(10) & MASK_INT_LOWEST_BYTE;
+        if ((packed & LSD_MASK_GCT_FLAG) != 0) {
+            size += 3 * (2 << (packed & LSD_MASK_GCT_SIZE));
+        }
+        return rawData.limit() >= size;
+    }
+
+    /**
+     * 计算从start开始的块的结束位置,不移动position
+     *
+     * @return 块还未完整到达时返回-1
+     */
+    private int getBlockEnd(int start) {
+        int limit = rawData.limit();
+        if (start >= limit) {
+            return -1;
+        }
+        int pointer;
+        switch (rawData.get(start) & MASK_INT_LOWEST_BYTE) {
+            case IMAGE_SEPARATOR:
+                // Separator + 9 bytes image descriptor.
+                if (start + 10 > limit) {
+                    return -1;
+                }
+                int packed = rawData.get(start + 9) & MASK_INT_LOWEST_BYTE;
+                pointer = start + 10;
+                if ((packed & DESCRIPTOR_MASK_LCT_FLAG) != 0) {
+                    pointer += 3 * (2 << (packed & DESCRIPTOR_MASK_LCT_SIZE));
+                }
+                // lzwMinCodeSize
+                pointer++;
+                break;
+            case EXTENSION_INTRODUCER:
+                // Introducer + label.
+                pointer = start + 2;
+                break;
+            default:
+                return start + 1;
+        }
+        // data sub-blocks up to and including the zero length block.
+        while (pointer < limit) {
+            int size = rawData.get(pointer) & MASK_INT_LOWEST_BYTE;
+            pointer += 1 + size;
+            if (size == 0) {
+                return pointer;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Determines if the GIF is animated by trying to read in the first 2 frames
      * This method re-parses the data even if the header has already been read.
@@ -199,60 +311,71 @@ public class GifHeaderParser {
         // Read GIF file content blocks.
         boolean done = false;
         while (!(done || err() || header.frameCount > maxFrames)) {
-            int code = read();
-            switch (code) {
-                case IMAGE_SEPARATOR:
-                    // The Graphic Control Extension is optional, but will always come first if it exists.
-                    // If one did exist, there will be a non-null current frame which we should use.
-                    // However if one did not exist, the current frame will be null
-                    // and we must create it here. See issue #134.
-                    if (header.currentFrame == null) {
+            done = readContent(read());
+        }
+    }
+
+    /**
+     * Reads a single content block.
+     *
+     * @param code the block introducer
+     * @return true when the trailer is reached
+     */
+    private boolean readContent(int code) {
+        boolean done = false;
+        switch (code) {
+            case IMAGE_SEPARATOR:
+                // The Graphic Control Extension is optional, but will always come first if it exists.
+                // If one did exist, there will be a non-null current frame which we should use.
+                // However if one did not exist, the current frame will be null
+                // and we must create it here. See issue #134.
+                if (header.currentFrame == null) {
+                    header.currentFrame = new GifFrame();
+                }
+                readBitmap();
+                break;
+            case EXTENSION_INTRODUCER:
+                int extensionLabel = read();
+                switch (extensionLabel) {
+                    case LABEL_GRAPHIC_CONTROL_EXTENSION:
+                        // Start a new frame.
                         header.currentFrame = new GifFrame();
-                    }
-                    readBitmap();
-                    break;
-                case EXTENSION_INTRODUCER:
-                    int extensionLabel = read();
-                    switch (extensionLabel) {
-                        case LABEL_GRAPHIC_CONTROL_EXTENSION:
-                            // Start a new frame.
-                            header.currentFrame = new GifFrame();
-                            readGraphicControlExt();
-                            break;
-                        case LABEL_APPLICATION_EXTENSION:
-                            readBlock();
-                            StringBuilder app = new StringBuilder();
-                            for (int i = 0; i < 11; i++) {
-                                app.append((char) block[i]);
-                            }
-                            if (app.toString().equals("NETSCAPE2.0")) {
-                                readNetscapeExt();
-                            } else {
-                                // Don't care.
-                                skip();
-                            }
-                            break;
-                        case LABEL_COMMENT_EXTENSION:
+                        readGraphicControlExt();
+                        break;
+                    case LABEL_APPLICATION_EXTENSION:
+                        readBlock();
+                        StringBuilder app = new StringBuilder();
+                        for (int i = 0; i < 11; i++) {
+                            app.append((char) block[i]);
+                        }
+                        if (app.toString().equals("NETSCAPE2.0")) {
+                            readNetscapeExt();
+                        } else {
+                            // Don't care.
                             skip();
-                            break;
-                        case LABEL_PLAIN_TEXT_EXTENSION:
-                            skip();
-                            break;
-                        default:
-                            // Uninteresting extension.
-                            skip();
-                    }
-                    break;
-                case TRAILER:
-                    // This block is a single-field block indicating the end of the GIF Data Stream.
-                    done = true;
-                    break;
-                // Bad byte, but keep going and see what happens
-                case 0x00:
-                default:
-                    header.status = GifDecoder.STATUS_FORMAT_ERROR;
-            }
+                        }
+                        break;
+                    case LABEL_COMMENT_EXTENSION:
+                        skip();
+                        break;
+                    case LABEL_PLAIN_TEXT_EXTENSION:
+                        skip();
+                        break;
+                    default:
+                        // Uninteresting extension.
+                        skip();
+                }
+                break;
+            case TRAILER:
+                // This block is a single-field block indicating the end of the GIF Data Stream.
+                done = true;
+                break;
+            // Bad byte, but keep going and see what happens
+            case 0x00:
+            default:
+                header.status = GifDecoder.STATUS_FORMAT_ERROR;
         }
+        return done;
     }
 
     /**
@@ -337,9 +460,9 @@ public class GifHeaderParser {
             return;
         }
 
-        header.frameCount++;
         // Add image to frame.
         header.frames.add(header.currentFrame);
+        header.frameCount++;
     }
 
     /**
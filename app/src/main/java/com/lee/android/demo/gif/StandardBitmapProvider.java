@@ -1,21 +1,30 @@
 package com.lee.android.demo.gif;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.Bitmap;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 默认的缓存相关管理
+ * 按大小分桶缓存,同一大小的Bitmap、byte[]、int[]放在同一个桶内,取出时只在对应的桶内查找,保证取到的大小正确
+ * 桶为无锁队列,obtain与release不需要加锁,总大小超出上限时按最近最少使用淘汰
+ * 帧图片在解码线程取出、在UI线程归还,线程本地缓存会让图片滞留在归还的线程,因此只使用全局的无锁队列
  *
  * @author lee
  * @date 2021/5/24
  */
 public class StandardBitmapProvider implements GifDecoder.BitmapProvider {
 
+    private static final String TAG = "lee-gif";
+
     private StandardBitmapProvider() {
+        maxSize = Runtime.getRuntime().maxMemory() / 8;
     }
 
     //全局单例
@@ -25,78 +34,248 @@ public class StandardBitmapProvider implements GifDecoder.BitmapProvider {
         return instance;
     }
 
-    private static final Object sPoolSync = new Object();
+    /**
+     * 缓存项
+     */
+    private static final class Entry {
+        final Object value;
+        final long size;
+        //放入时的序号,越小越久未使用
+        final long order;
+        //所在的桶
+        final ConcurrentLinkedDeque<Entry> bucket;
 
-    //缓存池
-    private final ArrayList<Bitmap> bitmapArrayList = new ArrayList<>();
-    private final ArrayList<int[]> intArrayList = new ArrayList<>();
-    private final ArrayList<byte[]> byteArrayList = new ArrayList<>();
+        Entry(Object value, long size, long order, ConcurrentLinkedDeque<Entry> bucket) {
+            this.value = value;
+            this.size = size;
+            this.order = order;
+            this.bucket = bucket;
+        }
+    }
+
+    //缓存池,key为Bitmap占用的字节数或数组长度
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedDeque<Entry>> bitmapPool = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedDeque<Entry>> intArrayPool = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ConcurrentLinkedDeque<Entry>> byteArrayPool = new ConcurrentHashMap<>();
+
+    /**
+     * 缓存总大小上限,单位字节
+     */
+    private volatile long maxSize;
+
+    /**
+     * 当前缓存的总大小,单位字节
+     */
+    private final AtomicLong currentSize = new AtomicLong();
+
+    private final AtomicLong order = new AtomicLong();
+
+    //统计数据
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * 设置缓存总大小上限,默认为最大内存的1/8
+     *
+     * @param maxSize 单位字节
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getCurrentSize() {
+        return currentSize.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * 打印统计数据
+     */
+    public void logStats() {
+        Log.d(TAG, "pool hit:" + hitCount.get() + ",miss:" + missCount.get()
+                + ",eviction:" + evictionCount.get() + ",size:" + currentSize.get() + "/" + maxSize);
+    }
 
     /**
      * 清除全部数据
      */
     public void clearAll() {
-        synchronized (sPoolSync) {
-            for (Bitmap bitmap : bitmapArrayList) {
-                bitmap.recycle();
-            }
-            bitmapArrayList.clear();
-            intArrayList.clear();
-            byteArrayList.clear();
+        trimToSize(0);
+    }
+
+    /**
+     * 系统内存不足时释放缓存,在Application或Activity的onTrimMemory中调用
+     *
+     * @param level ComponentCallbacks2中的TRIM_MEMORY_*
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            clearAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(maxSize / 2);
         }
     }
 
     @NonNull
     @Override
     public Bitmap obtain(int width, int height, @NonNull Bitmap.Config config) {
-        synchronized (sPoolSync) {
-            if (bitmapArrayList.size() > 0) {
-                return bitmapArrayList.remove(0);
+        int size = width * height * getBytesPerPixel(config);
+        Entry entry;
+        while ((entry = poll(bitmapPool, size)) != null) {
+            Bitmap bitmap = (Bitmap) entry.value;
+            if (bitmap.isRecycled()) {
+                continue;
+            }
+            if (bitmap.getWidth() != width || bitmap.getHeight() != height || bitmap.getConfig() != config) {
+                //占用的内存相同,直接修改尺寸复用
+                bitmap.reconfigure(width, height, config);
             }
+            hitCount.incrementAndGet();
+            return bitmap;
         }
+        missCount.incrementAndGet();
         return Bitmap.createBitmap(width, height, config);
     }
 
     @Override
     public void release(@NonNull Bitmap bitmap) {
-        synchronized (sPoolSync) {
-            bitmapArrayList.add(bitmap);
+        if (bitmap.isRecycled()) {
+            return;
         }
+        int size = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || size > maxSize / 2) {
+            bitmap.recycle();
+            return;
+        }
+        put(bitmapPool, size, bitmap);
     }
 
     @NonNull
     @Override
     public byte[] obtainByteArray(int size) {
-        synchronized (sPoolSync) {
-            if (byteArrayList.size() > 0) {
-                return byteArrayList.remove(0);
-            }
+        Entry entry = poll(byteArrayPool, size);
+        if (entry != null) {
+            hitCount.incrementAndGet();
+            return (byte[]) entry.value;
         }
+        missCount.incrementAndGet();
         return new byte[size];
     }
 
     @Override
     public void release(@NonNull byte[] bytes) {
-        synchronized (sPoolSync) {
-            byteArrayList.add(bytes);
+        if (bytes.length <= maxSize / 2) {
+            put(byteArrayPool, bytes.length, bytes);
         }
     }
 
     @NonNull
     @Override
     public int[] obtainIntArray(int size) {
-        synchronized (sPoolSync) {
-            if (intArrayList.size() > 0) {
-                return intArrayList.remove(0);
-            }
+        Entry entry = poll(intArrayPool, size);
+        if (entry != null) {
+            hitCount.incrementAndGet();
+            return (int[]) entry.value;
         }
+        missCount.incrementAndGet();
         return new int[size];
     }
 
     @Override
     public void release(@NonNull int[] array) {
-        synchronized (sPoolSync) {
-            intArrayList.add(array);
+        if ((long) array.length * 4 <= maxSize / 2) {
+            put(intArrayPool, array.length, array);
+        }
+    }
+
+    /**
+     * 从桶内取出最近放入的缓存
+     */
+    private Entry poll(ConcurrentHashMap<Integer, ConcurrentLinkedDeque<Entry>> pool, int key) {
+        ConcurrentLinkedDeque<Entry> bucket = pool.get(key);
+        if (bucket == null) {
+            return null;
+        }
+        Entry entry = bucket.pollLast();
+        if (entry != null) {
+            currentSize.addAndGet(-entry.size);
+        }
+        return entry;
+    }
+
+    private void put(ConcurrentHashMap<Integer, ConcurrentLinkedDeque<Entry>> pool, int key, Object value) {
+        long size = value instanceof int[] ? (long) key * 4 : key;
+        ConcurrentLinkedDeque<Entry> bucket = pool.get(key);
+        if (bucket == null) {
+            ConcurrentLinkedDeque<Entry> created = new ConcurrentLinkedDeque<>();
+            bucket = pool.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        bucket.offerLast(new Entry(value, size, order.incrementAndGet(), bucket));
+        if (currentSize.addAndGet(size) > maxSize) {
+            trimToSize(maxSize);
+        }
+    }
+
+    /**
+     * 淘汰最久未使用的缓存,直到总大小不超过size
+     */
+    private void trimToSize(long size) {
+        while (currentSize.get() > size) {
+            //每个桶的队首是该桶内最久未使用的,比较各桶队首
+            Entry oldest = findOldest(bitmapPool, null);
+            oldest = findOldest(byteArrayPool, oldest);
+            oldest = findOldest(intArrayPool, oldest);
+            if (oldest == null) {
+                return;
+            }
+            //被其他线程取走时重新查找
+            if (oldest.bucket.removeFirstOccurrence(oldest)) {
+                currentSize.addAndGet(-oldest.size);
+                evictionCount.incrementAndGet();
+                if (oldest.value instanceof Bitmap) {
+                    ((Bitmap) oldest.value).recycle();
+                }
+            }
+        }
+    }
+
+    private static Entry findOldest(ConcurrentHashMap<Integer, ConcurrentLinkedDeque<Entry>> pool, Entry oldest) {
+        for (ConcurrentLinkedDeque<Entry> bucket : pool.values()) {
+            Entry head = bucket.peekFirst();
+            if (head != null && (oldest == null || head.order < oldest.order)) {
+                oldest = head;
+            }
+        }
+        return oldest;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
         }
+        return 4;
     }
 }
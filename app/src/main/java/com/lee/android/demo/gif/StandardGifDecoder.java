@@ -33,11 +33,13 @@ import androidx.annotation.Nullable;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 /**
@@ -72,6 +74,16 @@ public class StandardGifDecoder implements GifDecoder {
 
     private static final int BYTES_PER_INTEGER = Integer.SIZE / 8;
 
+    /**
+     * 默认每隔多少帧保存一次快照
+     */
+    private static final int DEFAULT_SNAPSHOT_INTERVAL = 16;
+
+    /**
+     * 默认快照最多占用的内存,单位字节
+     */
+    private static final int DEFAULT_SNAPSHOT_BYTE_BUDGET = 4 * 1024 * 1024;
+
     private static final int MASK_INT_LOWEST_BYTE = 0x000000FF;
 
     @ColorInt
@@ -126,6 +138,40 @@ public class StandardGifDecoder implements GifDecoder {
     @NonNull
     private Bitmap.Config bitmapConfig = Config.ARGB_8888;
 
+    /**
+     * 画布快照,跳转时从最近的快照开始解码,不需要从首帧开始
+     * snapshots[i]为第i * snapshotInterval帧合成后的画布,第一次调用seek(int)后才开始保存,
+     * 之后播放或跳转经过时保存,总大小不超过snapshotByteBudget,超出后不再保存新的快照
+     */
+    private static final class Snapshot {
+        //合成后的画布
+        final int[] canvas;
+        //DISPOSAL_PREVIOUS使用的上一张图片,没有时为null
+        final int[] previous;
+
+        Snapshot(int[] canvas, int[] previous) {
+            this.canvas = canvas;
+            this.previous = previous;
+        }
+    }
+
+    private Snapshot[] snapshots;
+    private int snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+    private int snapshotByteBudget = DEFAULT_SNAPSHOT_BYTE_BUDGET;
+    private int snapshotByteSize;
+
+    /**
+     * mainScratch中当前合成的帧索引,没有时为INITIAL_FRAME_POINTER
+     */
+    private int composedFrame = INITIAL_FRAME_POINTER;
+
+    /**
+     * 增量读取时已收到的数据,帧随数据到达陆续加入header
+     */
+    private byte[] streamData;
+    private int streamSize;
+    private boolean streamComplete = true;
+
     // Public API.
     @SuppressWarnings("unused")
     public StandardGifDecoder(
@@ -171,7 +217,7 @@ public class StandardGifDecoder implements GifDecoder {
      * 前进一帧
      */
     @Override
-    public void advance() {
+    public synchronized void advance() {
         framePointer = (framePointer + 1) % header.frameCount;
     }
 
@@ -185,9 +231,11 @@ public class StandardGifDecoder implements GifDecoder {
         if (pos <= 0) {
             framePointer = 0;
             mainScratch = bitmapProvider.obtainIntArray(downSampleWidth * downSampleHeight);
+            composedFrame = INITIAL_FRAME_POINTER;
         } else {
             System.arraycopy(pixels, 0, mainScratch, 0, pixels.length);
             framePointer = pos % header.frameCount;
+            composedFrame = framePointer;
         }
     }
 
@@ -204,9 +252,86 @@ public class StandardGifDecoder implements GifDecoder {
         } else {
             bitmap.getPixels(mainScratch, 0, downSampleWidth, 0, 0, downSampleWidth, downSampleHeight);
             framePointer = pos % header.frameCount;
+            composedFrame = framePointer;
         }
     }
 
+    /**
+     * 跳转到指定帧,不需要参照数据
+     * 从不超过pos的最近快照(或已合成的当前帧)开始合成,最多解码snapshotInterval帧,之后advance得到pos的下一帧
+     *
+     * @param pos 帧索引
+     */
+    public synchronized void seek(int pos) {
+        if (header.frameCount <= 0) {
+            return;
+        }
+        if (pos < 0) {
+            resetFrameIndex();
+            return;
+        }
+        pos = pos % header.frameCount;
+        if (snapshots == null) {
+            //不跳转的gif不需要快照,第一次跳转时才开始保存
+            initSnapshots();
+        }
+        int start = INITIAL_FRAME_POINTER;
+        int snapshotIndex = 0;
+        if (snapshots != null) {
+            for (int i = pos / snapshotInterval; i > 0; i--) {
+                if (snapshots[i] != null) {
+                    snapshotIndex = i;
+                    start = i * snapshotInterval;
+                    break;
+                }
+            }
+        }
+        if (composedFrame <= pos && composedFrame >= start) {
+            //当前画布更近,直接从当前帧继续
+            start = composedFrame;
+        } else if (snapshotIndex > 0) {
+            restoreSnapshot(snapshots[snapshotIndex]);
+        }
+        for (int i = start + 1; i <= pos; i++) {
+            framePointer = i;
+            if (!composeFrame()) {
+                return;
+            }
+        }
+        framePointer = pos;
+    }
+
+    /**
+     * 设置快照间隔,间隔越小跳转越快,占用内存越多,每张快照占用宽*高*4字节,
+     * 使用DISPOSAL_PREVIOUS的帧额外占用一份
+     *
+     * @param interval 间隔帧数,小于等于0时不保存快照
+     */
+    public synchronized void setSnapshotInterval(int interval) {
+        boolean active = snapshots != null;
+        releaseSnapshots();
+        snapshotInterval = interval;
+        if (active) {
+            initSnapshots();
+        }
+    }
+
+    /**
+     * 设置快照最多占用的内存,已保存的快照不受影响
+     *
+     * @param budget 单位字节,小于等于0时不保存快照
+     */
+    public synchronized void setSnapshotByteBudget(int budget) {
+        snapshotByteBudget = budget;
+    }
+
+    /**
+     * 快照占用的内存,单位字节
+     */
+    public synchronized int getSnapshotByteSize() {
+        return snapshotByteSize;
+    }
+
     /**
      * 设置图片格式
      */
@@ -215,7 +340,7 @@ public class StandardGifDecoder implements GifDecoder {
     }
 
     @Override
-    public int getDelay(int n) {
+    public synchronized int getDelay(int n) {
         int delay = -1;
         if ((n >= 0) && (n < header.frameCount)) {
             delay = header.frames.get(n).delay;
@@ -233,10 +358,20 @@ public class StandardGifDecoder implements GifDecoder {
     }
 
     @Override
-    public int getFrameCount() {
+    public synchronized int getFrameCount() {
         return header.frameCount;
     }
 
+    /**
+     * 下一帧是否可以解码,增量读取时下一帧还未到达返回false
+     */
+    public synchronized boolean hasNextFrame() {
+        if (header == null || header.frameCount <= 0 || status == STATUS_OPEN_ERROR) {
+            return false;
+        }
+        return streamComplete || framePointer + 1 < header.frameCount;
+    }
+
     @Override
     public int getCurrentFrameIndex() {
         return framePointer;
@@ -274,7 +409,8 @@ public class StandardGifDecoder implements GifDecoder {
 
     @Override
     public int getByteSize() {
-        return rawData.limit() + mainPixels.length + (mainScratch.length * BYTES_PER_INTEGER);
+        return rawData.limit() + mainPixels.length + (mainScratch.length * BYTES_PER_INTEGER)
+                + getSnapshotByteSize();
     }
 
     @Nullable
@@ -297,6 +433,22 @@ public class StandardGifDecoder implements GifDecoder {
         }
         status = STATUS_OK;
 
+        if (!composeFrame()) {
+            return null;
+        }
+
+        // Set pixels for current image.
+        Bitmap result = getNextBitmap();
+        result.setPixels(mainScratch, 0, downSampleWidth, 0, 0, downSampleWidth, downSampleHeight);
+        return result;
+    }
+
+    /**
+     * 把framePointer帧合成到mainScratch,经过快照位置时保存快照
+     *
+     * @return 失败时返回false
+     */
+    private boolean composeFrame() {
         if (block == null) {
             block = bitmapProvider.obtainByteArray(255);
         }
@@ -316,7 +468,7 @@ public class StandardGifDecoder implements GifDecoder {
             }
             // No color table defined.
             status = STATUS_FORMAT_ERROR;
-            return null;
+            return false;
         }
 
         // Reset the transparent pixel in the color table
@@ -337,23 +489,94 @@ public class StandardGifDecoder implements GifDecoder {
         }
 
         // Transfer pixel data to image.
-        return setPixels(currentFrame, previousFrame);
+        setPixels(currentFrame, previousFrame);
+        composedFrame = framePointer;
+        if (snapshots != null && framePointer > 0 && framePointer % snapshotInterval == 0) {
+            int index = framePointer / snapshotInterval;
+            if (index >= snapshots.length) {
+                // 增量读取时帧数会增加
+                snapshots = Arrays.copyOf(snapshots, index + 1);
+            }
+            int bytes = mainScratch.length * BYTES_PER_INTEGER * (previousImage != null ? 2 : 1);
+            if (snapshots[index] == null && snapshotByteSize + bytes <= snapshotByteBudget) {
+                snapshots[index] = takeSnapshot();
+                snapshotByteSize += bytes;
+            }
+        }
+        return true;
+    }
+
+    private Snapshot takeSnapshot() {
+        int[] canvas = bitmapProvider.obtainIntArray(mainScratch.length);
+        System.arraycopy(mainScratch, 0, canvas, 0, mainScratch.length);
+        int[] previous = null;
+        if (previousImage != null) {
+            previous = bitmapProvider.obtainIntArray(mainScratch.length);
+            previousImage.getPixels(previous, 0, downSampleWidth, 0, 0, downSampleWidth,
+                    downSampleHeight);
+        }
+        return new Snapshot(canvas, previous);
+    }
+
+    private void restoreSnapshot(Snapshot snapshot) {
+        System.arraycopy(snapshot.canvas, 0, mainScratch, 0, mainScratch.length);
+        if (snapshot.previous != null) {
+            if (previousImage == null) {
+                previousImage = getNextBitmap();
+            }
+            previousImage.setPixels(snapshot.previous, 0, downSampleWidth, 0, 0, downSampleWidth,
+                    downSampleHeight);
+        } else if (previousImage != null) {
+            bitmapProvider.release(previousImage);
+            previousImage = null;
+        }
+    }
+
+    private void initSnapshots() {
+        if (snapshotInterval > 0 && header != null) {
+            snapshots = new Snapshot[header.frameCount / snapshotInterval + 1];
+        }
+    }
+
+    private void releaseSnapshots() {
+        if (snapshots == null) {
+            return;
+        }
+        for (Snapshot snapshot : snapshots) {
+            if (snapshot != null) {
+                bitmapProvider.release(snapshot.canvas);
+                if (snapshot.previous != null) {
+                    bitmapProvider.release(snapshot.previous);
+                }
+            }
+        }
+        snapshots = null;
+        snapshotByteSize = 0;
     }
 
     @Override
     public int read(@Nullable InputStream is, int contentLength) {
         if (is != null) {
             try {
-                int capacity = (contentLength > 0) ? (contentLength + 4 * 1024) : 16 * 1024;
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream(capacity);
-                int nRead;
-                byte[] data = new byte[16 * 1024];
-                while ((nRead = is.read(data, 0, data.length)) != -1) {
-                    buffer.write(data, 0, nRead);
+                // 直接读取到最终的数组,避免再拷贝一次
+                byte[] data = new byte[contentLength > 0 ? contentLength : 16 * 1024];
+                int size = 0;
+                while (true) {
+                    if (size == data.length) {
+                        int next = is.read();
+                        if (next == -1) {
+                            break;
+                        }
+                        data = Arrays.copyOf(data, data.length * 2);
+                        data[size++] = (byte) next;
+                    }
+                    int nRead = is.read(data, size, data.length - size);
+                    if (nRead == -1) {
+                        break;
+                    }
+                    size += nRead;
                 }
-                buffer.flush();
-
-                read(buffer.toByteArray());
+                read(ByteBuffer.wrap(data, 0, size));
             } catch (IOException e) {
                 Log.w(TAG, "Error reading data from stream", e);
             }
@@ -372,8 +595,101 @@ public class StandardGifDecoder implements GifDecoder {
         return status;
     }
 
+    /**
+     * 通过内存映射读取文件,数据由系统按需加载,不占用java堆
+     */
+    @GifDecodeStatus
+    public int read(@NonNull File file) {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            // 映射在channel关闭后依然有效
+            return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            Log.w(TAG, "Error mapping file", e);
+            status = STATUS_OPEN_ERROR;
+            return status;
+        }
+    }
+
+    /**
+     * 读取position至limit的数据
+     */
+    @GifDecodeStatus
+    public synchronized int read(@NonNull ByteBuffer buffer) {
+        streamComplete = true;
+        ByteBuffer data = buffer.slice();
+        this.header = getHeaderParser().setData(data).parseHeader();
+        setData(header, data);
+        return status;
+    }
+
+    /**
+     * 开始增量读取,之后通过appendData追加收到的数据,读取完成后调用endStream
+     * 文件头到达后即可开始解码,每一帧的数据完整到达后该帧即可解码
+     *
+     * @param contentLength 数据总长度,未知时传入小于等于0的值
+     */
+    public synchronized void beginStream(int contentLength) {
+        streamData = new byte[contentLength > 0 ? contentLength : 16 * 1024];
+        streamSize = 0;
+        streamComplete = false;
+        status = STATUS_OK;
+        framePointer = INITIAL_FRAME_POINTER;
+        rawData = null;
+        header = getHeaderParser().beginStream();
+    }
+
+    /**
+     * 追加收到的数据并解析已完整到达的帧,可在读取数据的线程调用
+     *
+     * @return 已到达的帧数,已clear时返回-1
+     */
+    public synchronized int appendData(@NonNull byte[] data, int offset, int length) {
+        if (streamData == null || header == null) {
+            return -1;
+        }
+        if (streamSize + length > streamData.length) {
+            streamData = Arrays.copyOf(streamData, Math.max(streamData.length * 2, streamSize + length));
+        }
+        System.arraycopy(data, offset, streamData, streamSize, length);
+        streamSize += length;
+        ByteBuffer buffer = ByteBuffer.wrap(streamData, 0, streamSize);
+        parser.parseAvailable(buffer);
+        if (header.status != STATUS_OK) {
+            status = header.status;
+        } else if (parser.isHeaderRead()) {
+            if (rawData == null) {
+                setData(header, buffer);
+                // 之后到达的帧可能使用DISPOSAL_PREVIOUS
+                savePrevious = true;
+            } else {
+                rawData = buffer.asReadOnlyBuffer();
+                rawData.order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        return header.frameCount;
+    }
+
+    /**
+     * 数据读取完成,之后播放到最后一帧时回到首帧
+     */
+    public synchronized void endStream() {
+        if (header == null) {
+            return;
+        }
+        streamComplete = true;
+        if (rawData == null && status == STATUS_OK) {
+            // 文件头都没有完整到达
+            status = STATUS_OPEN_ERROR;
+        }
+    }
+
     @Override
-    public void clear() {
+    public synchronized void clear() {
+        releaseSnapshots();
+        streamData = null;
+        streamComplete = true;
+        composedFrame = INITIAL_FRAME_POINTER;
         header = null;
         if (mainPixels != null) {
             bitmapProvider.release(mainPixels);
@@ -434,6 +750,8 @@ public class StandardGifDecoder implements GifDecoder {
         // TODO Find a way to avoid this entirely or at least downsample it (either should be possible).
         mainPixels = bitmapProvider.obtainByteArray(header.width * header.height);
         mainScratch = bitmapProvider.obtainIntArray(downSampleWidth * downSampleHeight);
+        composedFrame = INITIAL_FRAME_POINTER;
+        releaseSnapshots();
     }
 
     @NonNull
@@ -447,6 +765,7 @@ public class StandardGifDecoder implements GifDecoder {
     @Override
     @GifDecodeStatus
     public synchronized int read(@Nullable byte[] data) {
+        streamComplete = true;
         this.header = getHeaderParser().setData(data).parseHeader();
         if (data != null) {
             setData(header, data);
@@ -466,10 +785,10 @@ public class StandardGifDecoder implements GifDecoder {
     }
 
     /**
-     * Creates new frame image from current data (and previous frames as specified by their
-     * disposition codes).
+     * Composes the current frame into mainScratch from current data (and previous frames as
+     * specified by their disposition codes).
      */
-    private Bitmap setPixels(GifFrame currentFrame, GifFrame previousFrame) {
+    private void setPixels(GifFrame currentFrame, GifFrame previousFrame) {
         // Final location of blended pixels.
         final int[] dest = mainScratch;
 
@@ -540,11 +859,6 @@ public class StandardGifDecoder implements GifDecoder {
             previousImage.setPixels(dest, 0, downSampleWidth, 0, 0, downSampleWidth,
                     downSampleHeight);
         }
-
-        // Set pixels for current image.
-        Bitmap result = getNextBitmap();
-        result.setPixels(dest, 0, downSampleWidth, 0, 0, downSampleWidth, downSampleHeight);
-        return result;
     }
 
     private void copyIntoScratchFast(GifFrame currentFrame) {
@@ -4,6 +4,9 @@ import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
 
 /**
  * 简化AudioTrack、AudioRecord的使用
@@ -50,6 +53,9 @@ class AudioTR {
         //自否自动启动播放,AudioTrack.MODE_STREAM模式下推荐为true
         private boolean auto = false;
 
+        //是否使用低延迟模式,需要android 8.0,低版本忽略
+        private boolean lowLatency = false;
+
         public AudioTrackBuilder setPcmEncodeBit(int pcmEncodeBit) {
             this.pcmEncodeBit = pcmEncodeBit;
             return this;
@@ -85,32 +91,46 @@ class AudioTR {
             return this;
         }
 
+        public AudioTrackBuilder setLowLatency(boolean lowLatency) {
+            this.lowLatency = lowLatency;
+            return this;
+        }
+
         public AudioTR build() {
             AudioTR audioTR = new AudioTR();
-            audioTR.generateAudioTrack(sampleRate, channel, pcmEncodeBit, streamType, streamMode, staticSize, auto);
+            audioTR.generateAudioTrack(sampleRate, channel, pcmEncodeBit, streamType, streamMode, staticSize, auto, lowLatency);
             return audioTR;
         }
     }
 
-    private void generateAudioTrack(int sampleRate, int channel, int pcmEncodeBit, int streamType, int streamMode, int staticSize, boolean auto) {
+    private void generateAudioTrack(int sampleRate, int channel, int pcmEncodeBit, int streamType, int streamMode, int staticSize, boolean auto, boolean lowLatency) {
         int minBufferSize =
                 AudioTrack.getMinBufferSize(sampleRate, channel, pcmEncodeBit);
 
         if (streamMode == AudioTrack.MODE_STATIC) {
             minBufferSize = staticSize;
         }
-        audioTrack = new AudioTrack(
-                new AudioAttributes.Builder()
-                        .setLegacyStreamType(streamType)
-                        .build(),
-                new AudioFormat.Builder()
-                        .setSampleRate(sampleRate)
-                        .setChannelMask(channel)
-                        .setEncoding(pcmEncodeBit)
-                        .build(),
-                minBufferSize,
-                streamMode,
-                AudioManager.AUDIO_SESSION_ID_GENERATE);
+        AudioAttributes attributes = new AudioAttributes.Builder()
+                .setLegacyStreamType(streamType)
+                .build();
+        AudioFormat format = new AudioFormat.Builder()
+                .setSampleRate(sampleRate)
+                .setChannelMask(channel)
+                .setEncoding(pcmEncodeBit)
+                .build();
+        if (lowLatency && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            //低延迟模式下缓冲区为最小值,写入的数据更快被播放
+            audioTrack = new AudioTrack.Builder()
+                    .setAudioAttributes(attributes)
+                    .setAudioFormat(format)
+                    .setBufferSizeInBytes(minBufferSize)
+                    .setTransferMode(streamMode)
+                    .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                    .build();
+        } else {
+            audioTrack = new AudioTrack(attributes, format, minBufferSize, streamMode,
+                    AudioManager.AUDIO_SESSION_ID_GENERATE);
+        }
         if (auto) {
             playTrack();
         }
@@ -142,6 +162,15 @@ class AudioTR {
         }
     }
 
+    /**
+     * 写入数据,写入position至limit的数据,阻塞直到全部写入
+     */
+    public void writeData(ByteBuffer chunk) {
+        if (checkTrack()) {
+            audioTrack.write(chunk, chunk.remaining(), AudioTrack.WRITE_BLOCKING);
+        }
+    }
+
     /**
      * 设置音量
      */
@@ -0,0 +1,267 @@
+package com.lee.metronome
+
+import com.lee.metronome.model.MetronomeSoundData
+import com.lee.metronome.type.BeatType
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * 节拍音频库
+ * 为每种拍子按prepare时的音量预先生成一份补齐到拍长的数据,播放时直接返回其中20ms的只读视图,不再逐拍拷贝
+ * 音量以Q15定点增益作用在采样上,音量变化时逐采样渐变到新的增益,避免爆音,
+ * 渐变期间只把本次20ms的原始数据乘上增益写入临时缓冲区,同时由setVolume的调用线程按新音量生成音频库,
+ * 渐变结束后播放线程切换到新的音频库,之后重新直接返回只读视图,超出拍子数据的部分输出静音
+ * 拍长变化时由调用线程通过render生成新的Beats,播放线程在小节开始时swap,切换时保留音量渐变的状态
+ * pcm为16位小端单声道
+ */
+internal class BeatBank {
+    companion object {
+        /**
+         * Q15定点增益的1.0
+         */
+        private const val GAIN_ONE = 1 shl 15
+
+        /**
+         * 渐变计算时增益额外保留的小数位
+         */
+        private const val RAMP_FRACTION = 8
+    }
+
+    /**
+     * 按某一拍长与音量生成的各拍子数据,生成后不再修改,可在任意线程生成后交给播放线程
+     * @param src 原始拍子数据,已补齐到拍长
+     * @param views 按gain生成的拍子数据的只读视图
+     */
+    class Beats(val src: Array<ByteArray?>, val views: Array<ByteBuffer?>, val gain: Int)
+
+    /**
+     * 每次输出的数据大小,20ms
+     */
+    var sliceSize = 0
+        private set
+
+    /**
+     * 音量渐变的采样数,10ms
+     */
+    private var rampSamples = 0
+
+    /**
+     * 当前使用的拍子数据
+     */
+    private lateinit var beats: Beats
+
+    /**
+     * 最近一次render的原始拍子数据,setVolume按它生成新音量的音频库
+     */
+    private var latestSrc: Array<ByteArray?>? = null
+
+    /**
+     * setVolume按新音量生成的音频库,渐变结束后由播放线程切换
+     */
+    private val volumeBeats = AtomicReference<Beats?>()
+
+    /**
+     * 乘增益输出及补静音时使用的临时缓冲区
+     */
+    private var scratch = ByteBuffer.allocateDirect(0)
+    private var scratchView = scratch
+
+    /**
+     * 静音数据
+     */
+    private var silenceView = scratch
+
+    /**
+     * 设定的增益,由其他线程修改
+     */
+    @Volatile
+    private var targetGain = GAIN_ONE
+
+    /**
+     * 不在渐变中时的输出增益
+     */
+    private var gain = GAIN_ONE
+
+    /**
+     * 渐变状态,增益带RAMP_FRACTION位小数
+     */
+    private var rampTo = GAIN_ONE
+    private var rampGain = 0
+    private var rampStep = 0
+    private var rampLeft = 0
+
+    /**
+     * 当前输出使用的增益,Q15,渐变中为渐变到的增益
+     */
+    val currentGain: Int
+        get() = if (rampLeft > 0) rampGain shr RAMP_FRACTION else gain
+
+    /**
+     * 设置音量,0~1,可在任意线程调用,新音量的音频库在调用线程生成
+     */
+    @Synchronized
+    fun setVolume(volume: Float) {
+        val g = (volume.coerceIn(0f, 1f) * GAIN_ONE).toInt()
+        targetGain = g
+        val src = latestSrc ?: return
+        volumeBeats.set(render(src, g))
+    }
+
+    /**
+     * 按当前的拍子数据与音量生成音频库,需在播放线程开始播放前调用,输出增益直接设为当前音量
+     */
+    fun prepare(soundData: MetronomeSoundData, sampleRate: Int) {
+        sliceSize = sampleRate / 50 * 2
+        rampSamples = sampleRate / 100
+        if (scratch.capacity() < sliceSize) {
+            scratch = ByteBuffer.allocateDirect(sliceSize).order(ByteOrder.LITTLE_ENDIAN)
+            scratchView = scratch.asReadOnlyBuffer()
+            silenceView = ByteBuffer.allocateDirect(sliceSize).asReadOnlyBuffer()
+        }
+        volumeBeats.set(null)
+        beats = render(soundData)
+        gain = beats.gain
+        rampTo = gain
+        rampLeft = 0
+    }
+
+    /**
+     * 按当前的拍子数据与音量生成各拍子的数据,每次都分配新的缓冲区,可在任意线程调用
+     */
+    @Synchronized
+    fun render(soundData: MetronomeSoundData): Beats {
+        val src = arrayOfNulls<ByteArray>(BeatType.values().size)
+        for (type in BeatType.values()) {
+            src[type.ordinal] = soundData.getBeat(type)
+        }
+        latestSrc = src
+        return render(src, targetGain)
+    }
+
+    private fun render(src: Array<ByteArray?>, g: Int): Beats {
+        val views = arrayOfNulls<ByteBuffer>(src.size)
+        for (i in src.indices) {
+            val data = src[i] ?: continue
+            val buffer = ByteBuffer.allocateDirect(data.size).order(ByteOrder.LITTLE_ENDIAN)
+            if (g == GAIN_ONE) {
+                buffer.put(data)
+            } else {
+                var i = 0
+                while (i + 1 < data.size) {
+                    val sample = (data[i].toInt() and 0xFF) or (data[i + 1].toInt() shl 8)
+                    buffer.putShort(((sample * g) shr 15).toShort())
+                    i += 2
+                }
+            }
+            views[i] = buffer.asReadOnlyBuffer()
+        }
+        return Beats(src, views, g)
+    }
+
+    /**
+     * 切换到render生成的拍子数据,只在播放线程的小节开始时调用,音量渐变继续进行
+     */
+    fun swap(next: Beats) {
+        beats = next
+    }
+
+    /**
+     * 获取拍子数据中的一段
+     * @param type 拍子类型
+     * @param offset 在该拍数据中的偏移,可超出拍子数据的长度
+     * @param size 数据大小,不超过sliceSize
+     * @return 只读数据,position至limit为需要的数据,下次调用前有效
+     */
+    fun slice(type: BeatType, offset: Int, size: Int): ByteBuffer {
+        val target = targetGain
+        if (target != rampTo) {
+            startRamp(target)
+        }
+        if (rampLeft == 0 && gain != beats.gain) {
+            swapVolume()
+        }
+        val beats = beats
+        if (rampLeft > 0 || gain != beats.gain) {
+            return scale(beats.src[type.ordinal]!!, offset, size)
+        }
+        val view = beats.views[type.ordinal]!!
+        val length = beats.src[type.ordinal]!!.size
+        if (offset + size <= length) {
+            view.limit(offset + size)
+            view.position(offset)
+            return view
+        }
+        if (offset >= length) {
+            silenceView.limit(size)
+            silenceView.position(0)
+            return silenceView
+        }
+        //拍子数据的末尾,不足的部分补静音
+        scratch.clear()
+        view.limit(length)
+        view.position(offset)
+        scratch.put(view)
+        silenceView.limit(offset + size - length)
+        silenceView.position(0)
+        scratch.put(silenceView)
+        scratchView.limit(size)
+        scratchView.position(0)
+        return scratchView
+    }
+
+    /**
+     * 渐变结束后切换到setVolume生成的同一拍长、同一增益的音频库,还未生成时本次继续乘增益输出
+     */
+    private fun swapVolume() {
+        val next = volumeBeats.get() ?: return
+        if (next.src === beats.src && next.gain == gain) {
+            beats = next
+            volumeBeats.compareAndSet(next, null)
+        }
+    }
+
+    /**
+     * 从当前增益开始渐变到目标增益,只记录渐变状态,不生成数据
+     */
+    private fun startRamp(target: Int) {
+        val current = if (rampLeft > 0) rampGain shr RAMP_FRACTION else gain
+        rampTo = target
+        rampGain = current shl RAMP_FRACTION
+        rampStep = ((target - current) shl RAMP_FRACTION) / rampSamples
+        rampLeft = rampSamples
+    }
+
+    /**
+     * 原始数据乘上增益写入临时缓冲区,渐变中逐采样改变增益,渐变结束后剩余的采样使用目标增益
+     */
+    private fun scale(data: ByteArray, offset: Int, size: Int): ByteBuffer {
+        scratch.clear()
+        var i = offset
+        val end = offset + size
+        while (i < end) {
+            val g = if (rampLeft > 0) {
+                rampGain += rampStep
+                rampLeft--
+                if (rampLeft == 0) {
+                    gain = rampTo
+                    gain
+                } else {
+                    rampGain shr RAMP_FRACTION
+                }
+            } else {
+                gain
+            }
+            val sample = if (i + 1 < data.size) {
+                (data[i].toInt() and 0xFF) or (data[i + 1].toInt() shl 8)
+            } else {
+                0
+            }
+            scratch.putShort(((sample * g) shr 15).toShort())
+            i += 2
+        }
+        scratchView.limit(size)
+        scratchView.position(0)
+        return scratchView
+    }
+}
@@ -2,8 +2,11 @@ package com.lee.metronome
 
 import android.content.Context
 import android.media.AudioFormat
+import android.media.AudioManager
+import android.media.AudioTrack
 import com.lee.metronome.model.MetronomeData
 import com.lee.metronome.model.MetronomeSoundData
+import com.lee.metronome.model.VoiceData
 import com.lee.metronome.type.BeatType
 import com.lee.metronome.type.DotType
 import com.lee.metronome.type.NoteType
@@ -18,19 +21,20 @@ import java.util.concurrent.Executors
  */
 class Metronome {
     /**
-     * 音频采样率
+     * 音频采样率,使用设备的输出采样率,声音解码后重采样为该采样率,可以使用低延迟的输出
      */
-    private var sampleRate = 44100
+    private val sampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC)
+        .let { if (it > 0) it else 44100 }
 
     /**
-     * pcm位数类型
+     * pcm位数类型,缓存的声音固定为16位
      */
-    private var pcmBit = AudioFormat.ENCODING_PCM_16BIT
+    private val pcmBit = AudioFormat.ENCODING_PCM_16BIT
 
     /**
      * pcm位数
      */
-    private var pcmNum = 16
+    private val pcmNum = 16
 
     /**
      * 输出通道-单声道
@@ -50,12 +54,25 @@ class Metronome {
 
     var listener: MetronomeListener? = null
 
+    /**
+     * 解码后的声音缓存
+     */
+    private val soundCache: SoundCache
+
     /**
      * 当节拍音频数据不参与混合运算时,由其播放音频
      */
     private var audioTrack: AudioTR? = null
 
-    private var audioTrackVolume = 1f
+    /**
+     * 各拍子按当前音量生成的音频数据,音量在数据上调节
+     */
+    private val beatBank = BeatBank()
+
+    /**
+     * 叠加在节拍上的声部
+     */
+    private val voiceMixer = VoiceMixer()
 
     /**
      * 线程池
@@ -67,12 +84,6 @@ class Metronome {
      */
     private var metronomeTask: MetronomeTask? = null
 
-    /**
-     * 是否触发了更新节拍、拍号等操作
-     */
-    @Volatile
-    private var updateBpm = false
-
     /**
      * 读取raw目录下的滴答声
      * @param drip 强拍
@@ -99,30 +110,19 @@ class Metronome {
         this.listener = listener
         metronomeData = MetronomeData(bpm, molecule, denominator, noteType, recordSection)
         metronomeData.calculateMetronome(sampleRate, pcmNum)
-        var file = File(context.cacheDir.absolutePath + "/drip.wav")
-        if (file.exists()) {
-            file.delete()
-        }
-        file = File(context.cacheDir.absolutePath + "/drop.wav")
-        if (file.exists()) {
-            file.delete()
-        }
-        file = File(context.cacheDir.absolutePath + "/tick.wav")
-        if (file.exists()) {
-            file.delete()
-        }
-        copyRaw(context, drip, "drip.wav")
-        copyRaw(context, drop, "drop.wav")
-        copyRaw(context, tick, "tick.wav")
-        updateAudioPath(
-            context.cacheDir.absolutePath + "/drip.wav",
-            context.cacheDir.absolutePath + "/drop.wav",
-            context.cacheDir.absolutePath + "/tick.wav"
-        )
+        soundCache = SoundCache(File(context.cacheDir, "metronome"))
+        //raw资源随安装包更新
+        val stamp = context.packageManager.getPackageInfo(context.packageName, 0)
+            .lastUpdateTime.toString()
+        soundData.resetAllSrc()
+        //缓存不存在时才拷贝raw资源并解码
+        loadSound(BeatType.DRIP, "raw:$drip", stamp) { copyRaw(context, drip, "drip.wav") }
+        loadSound(BeatType.DROP, "raw:$drop", stamp) { copyRaw(context, drop, "drop.wav") }
+        loadSound(BeatType.TICK, "raw:$tick", stamp) { copyRaw(context, tick, "tick.wav") }
     }
 
     /**
-     * 读取指定音频文件作为滴答声
+     * 读取指定音频文件作为滴答声,解码结果缓存在java.io.tmpdir(即应用的cache目录)下,文件修改后重新解码
      *
      * @param dripPath 强拍
      * @param dropPath 次强拍
@@ -147,12 +147,13 @@ class Metronome {
         this.listener = listener
         metronomeData = MetronomeData(bpm, molecule, denominator, noteType, recordSection)
         metronomeData.calculateMetronome(sampleRate, pcmNum)
+        soundCache = SoundCache(File(System.getProperty("java.io.tmpdir") ?: "/tmp", "metronome"))
         updateAudioPath(dripPath, dropPath, tickPath)
     }
 
 
     /**
-     * 更新节拍器参数
+     * 更新节拍器参数,正在播放时在下一小节开始时生效,播放不中断
      *
      * @param bpm         每分钟的节拍
      * @param molecule    每小节有几拍
@@ -167,25 +168,24 @@ class Metronome {
         noteType: NoteType = NoteType.QUARTER,
         recordSection: Int = -1
     ) {
-        if (updateBpm)
-            return
-
-        updateBpm = true
         metronomeData = MetronomeData(bpm, molecule, denominator, noteType, recordSection)
         metronomeData.calculateMetronome(sampleRate, pcmNum)
-        if (isReady()) {
+        val task = metronomeTask
+        if (task != null) {
+            //在当前线程生成拍子数据,由播放线程在小节开始时切换
+            task.updateMetronome(metronomeData)
+        } else if (isReady()) {
             soundData.generateBeatData(metronomeData.beatSize)
             soundData.generateNoneData()
         }
-
-        //没有启动任务的情况下,还原该配置
-        if (metronomeTask == null)
-            updateBpm = false
-        metronomeTask?.stopTask()
     }
 
 
-    private fun copyRaw(context: Context, raw: Int, name: String) {
+    /**
+     * 拷贝raw资源到cache目录
+     * @return 拷贝后的文件路径
+     */
+    private fun copyRaw(context: Context, raw: Int, name: String): String {
         val inputStream = context.resources.openRawResource(raw)
         var fos: FileOutputStream? = null
         try {
@@ -210,56 +210,71 @@ class Metronome {
                 e.printStackTrace()
             }
         }
+        return context.cacheDir.absolutePath + "/" + name
     }
 
 
     private fun updateAudioPath(dripPath: String, dropPath: String, tickPath: String) {
         soundData.resetAllSrc()
-        val dripData = ArrayList<ByteArray>()
-        val dropData = ArrayList<ByteArray>()
-        val tickData = ArrayList<ByteArray>()
-        decoderAudio(dripPath, object : AudioDecoder.SampleListener() {
-            override fun onPrepare(sample: Int, pcm: Int, channels: Int) {
-                sampleRate = sample
-                pcmBit = pcm
-                when (pcmBit) {
-                    AudioFormat.ENCODING_PCM_8BIT -> pcmNum = 8
-                    AudioFormat.ENCODING_PCM_16BIT -> pcmNum = 16
-                }
+        for ((type, path) in arrayOf(
+            BeatType.DRIP to dripPath,
+            BeatType.DROP to dropPath,
+            BeatType.TICK to tickPath
+        )) {
+            val file = File(path)
+            if (!file.exists()) {
+                throw RuntimeException("file not found:$path")
             }
+            loadSound(type, "file:${file.absolutePath}", "${file.length()}_${file.lastModified()}") { path }
+        }
+    }
 
-            override fun onAudioData(data: ByteArray) {
-                soundData.addTotalSize(BeatType.DRIP, data.size)
-                dripData.add(data)
+    /**
+     * 加载声音,优先读取缓存,缓存失效时解码并写入缓存,在线程池中执行
+     * @param id 声音来源标识
+     * @param stamp 声音来源的版本
+     * @param decodePath 缓存失效时获取需要解码的文件
+     */
+    private fun loadSound(type: BeatType, id: String, stamp: String, decodePath: () -> String) {
+        pool.execute {
+            val data = soundCache.load(id, stamp, sampleRate)
+            if (data != null) {
+                onSoundLoaded(type, data)
+                return@execute
             }
+            val chunks = ArrayList<ByteArray>()
+            var size = 0
+            var decodedRate = sampleRate
+            decoderAudio(decodePath(), object : AudioDecoder.SampleListener() {
+                override fun onPrepare(sample: Int, pcm: Int, channels: Int) {
+                    //各声音的采样率可能不同,解码后统一重采样
+                    decodedRate = sample
+                }
 
-            override fun onEnd() {
-                soundData.settingSrc(BeatType.DRIP, dripData)
-                calculateAudioReady()
-            }
-        })
-        decoderAudio(dropPath, object : AudioDecoder.SampleListener() {
-            override fun onAudioData(data: ByteArray) {
-                soundData.addTotalSize(BeatType.DROP, data.size)
-                dropData.add(data)
-            }
+                override fun onAudioData(data: ByteArray) {
+                    chunks.add(data)
+                    size += data.size
+                }
 
-            override fun onEnd() {
-                soundData.settingSrc(BeatType.DROP, dropData)
-                calculateAudioReady()
-            }
-        })
-        decoderAudio(tickPath, object : AudioDecoder.SampleListener() {
-            override fun onAudioData(data: ByteArray) {
-                soundData.addTotalSize(BeatType.TICK, data.size)
-                tickData.add(data)
-            }
+                override fun onEnd() {
+                    var pcm = ByteArray(size)
+                    var offset = 0
+                    for (chunk in chunks) {
+                        System.arraycopy(chunk, 0, pcm, offset, chunk.size)
+                        offset += chunk.size
+                    }
+                    pcm = SoundCache.resample(pcm, decodedRate, sampleRate)
+                    soundCache.save(id, stamp, sampleRate, pcm)
+                    onSoundLoaded(type, pcm)
+                }
+            })
+        }
+    }
 
-            override fun onEnd() {
-                soundData.settingSrc(BeatType.TICK, tickData)
-                calculateAudioReady()
-            }
-        })
+    private fun onSoundLoaded(type: BeatType, data: ByteArray) {
+        soundData.addTotalSize(type, data.size)
+        soundData.settingSrc(type, arrayListOf(data))
+        calculateAudioReady()
     }
 
     private fun calculateAudioReady() {
@@ -298,21 +313,22 @@ class Metronome {
         metronomeIcon: MetronomeIcon? = null,
         listener: MetronomeCountdownListener? = null
     ) {
-        audioTrack = AudioTR.AudioTrackBuilder()
+        val track = AudioTR.AudioTrackBuilder()
             .setChannel(channel)
             .setSampleRate(sampleRate)
             .setPcmEncodeBit(pcmBit)
+            .setLowLatency(true)
             .setAuto(true)
             .build()
-        metronomeTask = MetronomeTask(metronomeData, soundData)
+        audioTrack = track
+        metronomeTask =
+            MetronomeTask(metronomeData, soundData, beatBank, voiceMixer, sampleRate, track::writeData)
         metronomeTask?.settingCountDown(countdown, object : MetronomeTask.CountdownListener {
             override fun onCountdown(count: Int) {
                 listener?.onCountdown(count)
             }
 
             override fun onMetronomeData(
-                data: ByteArray,
-                size: Int,
                 index: Int,
                 moleculeIndex: Int,
                 progress: Float
@@ -321,13 +337,12 @@ class Metronome {
                     metronomeIcon?.updateProgress(progress / 100f)
                 else
                     metronomeIcon?.updateProgress(1 - progress / 100f)
-                audioTrack?.writeData(data, size)
             }
 
             override fun onCountdownEnd() {
                 listener?.onCountdownEnd()
                 metronomeTask = null
-                audioTrack?.stopTrack()
+                track.stopTrack()
             }
         })
         pool.execute(metronomeTask)
@@ -341,21 +356,22 @@ class Metronome {
         metronomeIcon: MetronomeIcon? = null,
         listener: MetronomeLoopListener? = null
     ) {
-        audioTrack = AudioTR.AudioTrackBuilder()
+        val track = AudioTR.AudioTrackBuilder()
             .setChannel(channel)
             .setSampleRate(sampleRate)
             .setPcmEncodeBit(pcmBit)
+            .setLowLatency(true)
             .setAuto(true)
             .build()
-        metronomeTask = MetronomeTask(metronomeData, soundData)
+        audioTrack = track
+        metronomeTask =
+            MetronomeTask(metronomeData, soundData, beatBank, voiceMixer, sampleRate, track::writeData)
         metronomeTask?.settingLoop(object : MetronomeTask.LoopListener {
             override fun onLoopStart() {
                 listener?.onLoopStart()
             }
 
             override fun onMetronomeData(
-                data: ByteArray,
-                size: Int,
                 index: Int,
                 moleculeIndex: Int,
                 progress: Float
@@ -364,24 +380,32 @@ class Metronome {
                     metronomeIcon?.updateProgress(progress / 100f)
                 else
                     metronomeIcon?.updateProgress(1 - progress / 100f)
-                audioTrack?.writeData(data, size)
                 listener?.onBeat(moleculeIndex)
             }
 
             override fun onLoopEnd() {
-                audioTrack?.stopTrack()
-
-                //触发了更新Bpm的操作
-                if (updateBpm) {
-                    startMetronomeLoop(metronomeIcon, listener)
-                } else {
-                    metronomeTask = null
-                    listener?.onLoopEnd()
-                }
+                track.stopTrack()
+                metronomeTask = null
+                listener?.onLoopEnd()
             }
         })
         pool.execute(metronomeTask)
-        updateBpm = false
+    }
+
+    /**
+     * 设置叠加在节拍上的声部,例如3对4的复节奏、clave节奏型,各声部与节拍的小节对齐
+     * 正在播放时在下一小节开始时生效
+     * @param voices 为空表示只播放节拍
+     */
+    fun setVoices(voices: List<VoiceData>) {
+        voiceMixer.setVoices(voices)
+    }
+
+    /**
+     * 节拍器已输出的采样数,以播放开始为0,用于与其他音频对齐
+     */
+    fun getSamplePosition(): Long {
+        return metronomeTask?.position ?: 0L
     }
 
     /**
@@ -392,11 +416,10 @@ class Metronome {
     }
 
     /**
-     * 更新节拍器的播放声音大小
+     * 更新节拍器的播放声音大小,在音频数据上逐采样渐变,不会产生爆音
      */
     fun updateVolume(volume: Float) {
-        audioTrackVolume = volume
-        audioTrack?.setVolume(audioTrackVolume)
+        beatBank.setVolume(volume)
     }
 
     fun getMetronomeDotType(): Array<DotType> {
@@ -0,0 +1,144 @@
+package com.lee.metronome
+
+import com.lee.metronome.model.MetronomeData
+import com.lee.metronome.type.BeatType
+
+/**
+ * 节拍调度器
+ * 以64位的采样位置作为时钟,每拍(包含子拍)的起点按bpm精确计算到采样,不依赖写入数据的线程的节奏,也不会累积误差
+ * 新的节拍参数在小节结束时通过nextBeat传入,从下一小节开始生效,不需要重新启动播放
+ * 只能在播放线程调用
+ */
+internal class MetronomeScheduler(
+    private val sampleRate: Int,
+    metronomeData: MetronomeData
+) {
+    /**
+     * 当前使用的节拍参数
+     */
+    var metronomeData = metronomeData
+        private set
+
+    /**
+     * 已输出的采样数
+     */
+    @Volatile
+    var position = 0L
+        private set
+
+    /**
+     * 当前节拍参数开始生效的采样位置,拍子起点都相对该位置计算
+     */
+    private var segmentStart = 0L
+
+    /**
+     * 当前拍子在当前节拍参数下的序号
+     */
+    private var segmentBeat = 0L
+
+    /**
+     * 当前拍子的起止采样位置
+     */
+    var beatStart = 0L
+        private set
+    var beatEnd = 0L
+        private set
+
+    /**
+     * 当前小节的起止采样位置
+     */
+    var barStart = 0L
+        private set
+    var barEnd = 0L
+        private set
+
+    /**
+     * 当前拍子在小节内的索引(包含子拍)
+     */
+    var soundIndex = 0
+        private set
+
+    /**
+     * 当前拍子在一个循环内的索引(包含子拍),与bpmArray对应
+     */
+    var loopIndex = 0
+        private set
+
+    init {
+        beatEnd = metronomeData.beatOffset(sampleRate, 1)
+        barEnd = metronomeData.beatOffset(sampleRate, metronomeData.beatArray.size.toLong())
+    }
+
+    /**
+     * 当前拍子的类型
+     */
+    val beatType: BeatType
+        get() = metronomeData.beatArray[soundIndex]
+
+    /**
+     * 当前拍子的采样数
+     */
+    val beatLength: Int
+        get() = (beatEnd - beatStart).toInt()
+
+    /**
+     * 当前拍子是否为小节的最后一拍,nextBeat后进入新的小节
+     */
+    val isBarEnd: Boolean
+        get() = soundIndex == metronomeData.beatArray.size - 1
+
+    /**
+     * 当前拍子在单拍内的子拍索引
+     */
+    val noteIndex: Int
+        get() = soundIndex % metronomeData.noteType.num
+
+    /**
+     * 当前拍子所在的单拍在小节内的索引
+     */
+    val moleculeIndex: Int
+        get() = soundIndex / metronomeData.noteType.num
+
+    /**
+     * 记录当前拍子内已输出的采样
+     */
+    fun advance(frames: Int) {
+        position += frames
+    }
+
+    /**
+     * 进入下一拍,小节结束时应用新的节拍参数
+     * @param next 新的节拍参数,只在当前拍子为小节的最后一拍时应用
+     * @return 应用了新的节拍参数返回true
+     */
+    fun nextBeat(next: MetronomeData? = null): Boolean {
+        var changed = false
+        position = beatEnd
+        segmentBeat++
+        soundIndex++
+        loopIndex++
+        if (soundIndex == metronomeData.beatArray.size) {
+            soundIndex = 0
+            if (next != null) {
+                metronomeData = next
+                segmentStart = beatEnd
+                segmentBeat = 0
+                loopIndex = 0
+                changed = true
+            }
+        }
+        if (loopIndex == metronomeData.bpmArray.size) {
+            loopIndex = 0
+        }
+        beatStart = beatEnd
+        beatEnd = segmentStart + metronomeData.beatOffset(sampleRate, segmentBeat + 1)
+        if (soundIndex == 0) {
+            barStart = beatStart
+            barEnd = segmentStart + metronomeData.beatOffset(
+                sampleRate,
+                segmentBeat + metronomeData.beatArray.size
+            )
+        }
+        return changed
+    }
+}
@@ -2,16 +2,25 @@ package com.lee.metronome
 
 import com.lee.metronome.model.MetronomeData
 import com.lee.metronome.model.MetronomeSoundData
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicReference
 
 /**
  * 节拍器播放处理任务
+ * 由MetronomeScheduler按采样位置决定每拍的起止,叠加声部后直接写入输出,回调只用于通知进度
+ * 节拍参数变化时在调用线程生成新的拍子数据,播放线程在小节开始时只切换引用
  *
  * @author lee
  * @date 2021/1/14
  */
 internal class MetronomeTask(
-    private val metronomeData: MetronomeData,
-    private val soundData: MetronomeSoundData
+    metronomeData: MetronomeData,
+    private val soundData: MetronomeSoundData,
+    private val beatBank: BeatBank,
+    private val voiceMixer: VoiceMixer,
+    private val sampleRate: Int,
+    //音频输出,通常为AudioTR.writeData,写入需阻塞到数据被接收
+    private val output: (ByteBuffer) -> Unit
 ) : Runnable {
     private var type = MetronomeType.COUNT_DOWN
 
@@ -25,8 +34,25 @@ internal class MetronomeTask(
     }
 
     //停止播放标志
+    @Volatile
     private var stop = false
 
+    private val scheduler = MetronomeScheduler(sampleRate, metronomeData)
+
+    /**
+     * 按新的节拍参数生成好的拍子数据与声部声音
+     */
+    private class Prepared(
+        val data: MetronomeData,
+        val beats: BeatBank.Beats,
+        val sounds: Array<ShortArray?>
+    )
+
+    /**
+     * 等待在下一小节生效的数据
+     */
+    private val pending = AtomicReference<Prepared?>()
+
     //重复的小节数
     private var repeat = 4
 
@@ -37,52 +63,37 @@ internal class MetronomeTask(
     private var loopListener: LoopListener? = null
 
     /**
-     * 倒计时监听器
+     * 拍子进度监听器
      */
-    interface CountdownListener {
+    interface BeatListener {
         /**
-         * 倒计时数字
-         */
-        fun onCountdown(count: Int)
-
-        /**
-         * 每拍(包含子拍)的音频数据
-         * @param data 该拍的音频数据
-         * @param size 音频数据的大小,不能以data.size为准
+         * 每拍(包含子拍)的音频数据写入后回调
          * @param index 音频数据一个循环内的索引
          * @param moleculeIndex 小节内的索引,例如3/4,表示一个小节内有3个单拍,该值回调为0~2
          * @param progress 音频数据在该拍内的进度,从0~100
          */
         fun onMetronomeData(
-            data: ByteArray,
-            size: Int,
             index: Int,
             moleculeIndex: Int,
             progress: Float
         )
+    }
+
+    /**
+     * 倒计时监听器
+     */
+    interface CountdownListener : BeatListener {
+        /**
+         * 倒计时数字
+         */
+        fun onCountdown(count: Int)
 
         fun onCountdownEnd()
     }
 
-    interface LoopListener {
+    interface LoopListener : BeatListener {
         fun onLoopStart()
 
-        /**
-         * 每拍(包含子拍)的音频数据
-         * @param data 该拍的音频数据
-         * @param size 音频数据的大小,不能以data.size为准
-         * @param index 音频数据一个循环内的索引
-         * @param moleculeIndex 小节内的索引,例如3/4,表示一个小节内有3个单拍,该值回调为0~2
-         * @param progress 音频数据在该拍内的进度,从0~100
-         */
-        fun onMetronomeData(
-            data: ByteArray,
-            size: Int,
-            index: Int,
-            moleculeIndex: Int,
-            progress: Float
-        )
-
         fun onLoopEnd()
     }
 
@@ -105,7 +116,26 @@ internal class MetronomeTask(
         stop = true
     }
 
+    /**
+     * 更新节拍参数,在下一小节开始时生效,播放不中断
+     * 拍子数据在调用线程生成,不占用播放线程的时间
+     */
+    @Synchronized
+    fun updateMetronome(data: MetronomeData) {
+        soundData.generateBeatData(data.beatSize)
+        soundData.generateNoneData()
+        pending.set(Prepared(data, beatBank.render(soundData), voiceMixer.createSounds(soundData)))
+    }
+
+    /**
+     * 已写入输出的采样数
+     */
+    val position: Long
+        get() = scheduler.position
+
     override fun run() {
+        beatBank.prepare(soundData, sampleRate)
+        voiceMixer.prepare(soundData, beatBank.sliceSize / 2)
         when (type) {
             MetronomeType.COUNT_DOWN -> {
                 startCountDown()
@@ -120,174 +150,83 @@ internal class MetronomeTask(
      * 节拍倒计时
      */
     private fun startCountDown() {
-        val molecule = metronomeData.molecule
         MetronomeLog.log("countDown start")
-
-        //记录小节内的索引,例如3/4,表示一个小节内有3个单拍
-        var moleculeIndex = -1
-
-        //记录一小节内的索引
-        var soundIndex = 0
-        //音频数据一个循环内的索引
-        var bpmIndex = 0
-
-        //单个拍子包含的子拍数量,默认是1个,表示该拍不需要切分多个子拍,用于计算声音在这个拍子内的进度
-        val noteNum: Int = metronomeData.noteType.num
-        //单拍内子拍的索引,例如NoteType.QUAVER表示子拍数量为2,该值为0~1
-        var noteIndex = 0
-
-        var currentSound: ByteArray
-        var currentSoundSize: Int
-
-        var p: Float
         while (!stop && countdownNum > 0) {
-            //每经过一轮音符数量的洗礼,表示过去了一个拍子
-            if (noteIndex % noteNum == 0) {
-                noteIndex = 0
-                if ((moleculeIndex + 1) == molecule) {
-                    moleculeIndex = -1
-                }
-                moleculeIndex++
-            }
-
             //每经历一个拍子,倒计时减1
-            if (bpmIndex % noteNum == 0) {
+            if (scheduler.noteIndex == 0) {
                 //通知倒计时变化
                 countdownListener?.onCountdown(countdownNum)
                 countdownNum--
             }
-
-            //获取当前拍的声音数据
-            currentSound = soundData.getBeat(metronomeData.beatArray[soundIndex])
-            //获取当前拍的数据大小
-            currentSoundSize = metronomeData.bpmArray[bpmIndex]
-
-
-            //将声音数据切割为20ms一次的大小,然后计算在当前拍子内的进度值
-            var audioClip = true
-            var clipSize = 1764
-            var clipTotalSize = 0
-            val clipData = ByteArray(clipSize)
-            while (audioClip) {
-                if (stop) {
-                    //在切割单拍音频的过程中可能触发停止指令,30BPM的时候一拍数据有2秒，不能停止的这么慢
-                    break
-                }
-
-                //当前拍音频数据切割完成后终止循环
-                if (clipTotalSize + clipSize >= currentSoundSize) {
-                    audioClip = false
-                    clipSize = currentSoundSize - clipTotalSize
-                }
-
-                //拷贝数据
-                System.arraycopy(currentSound, clipTotalSize, clipData, 0, clipSize)
-                clipTotalSize += clipSize
-
-                p = clipTotalSize * 100f / currentSoundSize
-
-                countdownListener?.onMetronomeData(
-                    clipData,
-                    clipSize,
-                    bpmIndex / noteNum,
-                    moleculeIndex,
-                    ((p / noteNum + noteIndex * 100f / noteNum)).toInt().toFloat()
-                )
-            }
-            noteIndex++
-            soundIndex++
-            bpmIndex++
-
-            if (soundIndex == metronomeData.beatArray.size) soundIndex = 0
-
-            if (bpmIndex == metronomeData.bpmArray.size) bpmIndex = 0
+            renderBeat(countdownListener)
         }
 
-
         MetronomeLog.log("countDown over")
         countdownListener?.onCountdownEnd()
     }
 
     private fun startLoop() {
-        val molecule = metronomeData.molecule
         MetronomeLog.log("loop start")
         loopListener?.onLoopStart()
-
-        //记录小节内的索引,例如3/4,表示一个小节内有3个单拍
-        var moleculeIndex = -1
-
-        //记录一小节内的索引
-        var soundIndex = 0
-        //音频数据一个循环内的索引
-        var bpmIndex = 0
-
-        //单个拍子包含的子拍数量,默认是1个,表示该拍不需要切分多个子拍,用于计算声音在这个拍子内的进度
-        val noteNum: Int = metronomeData.noteType.num
-        //单拍内子拍的索引,例如NoteType.QUAVER表示子拍数量为2,该值为0~1
-        var noteIndex = 0
-
-        var currentSound: ByteArray
-        var currentSoundSize: Int
-
-        var p: Float
         while (!stop) {
-            //每经过一轮音符数量的洗礼,表示过去了一个拍子
-            if (noteIndex % noteNum == 0) {
-                noteIndex = 0
-                if ((moleculeIndex + 1) == molecule) {
-                    moleculeIndex = -1
-                }
-                moleculeIndex++
-            }
-
-            //获取当前拍的声音数据
-            currentSound = soundData.getBeat(metronomeData.beatArray[soundIndex])
-            //获取当前拍的数据大小
-            currentSoundSize = metronomeData.bpmArray[bpmIndex]
-
-
-            //将声音数据切割为20ms一次的大小,然后计算在当前拍子内的进度值
-            var audioClip = true
-            var clipSize = 1764
-            var clipTotalSize = 0
-            val clipData = ByteArray(clipSize)
-            while (audioClip) {
-                if (stop) {
-                    //在切割单拍音频的过程中可能触发停止指令,30BPM的时候一拍数据有2秒，不能停止的这么慢
-                    break
-                }
-
-                //当前拍音频数据切割完成后终止循环
-                if (clipTotalSize + clipSize >= currentSoundSize) {
-                    audioClip = false
-                    clipSize = currentSoundSize - clipTotalSize
-                }
+            renderBeat(loopListener)
+        }
 
-                //拷贝数据
-                System.arraycopy(currentSound, clipTotalSize, clipData, 0, clipSize)
-                clipTotalSize += clipSize
+        MetronomeLog.log("loop over")
+        loopListener?.onLoopEnd()
+    }
 
-                p = clipTotalSize * 100f / currentSoundSize
+    /**
+     * 输出当前拍(包含子拍)的数据,然后进入下一拍
+     */
+    private fun renderBeat(listener: BeatListener?) {
+        val noteNum = scheduler.metronomeData.noteType.num
+        val noteIndex = scheduler.noteIndex
+        val index = scheduler.loopIndex / noteNum
+        val moleculeIndex = scheduler.moleculeIndex
+        val currentBeat = scheduler.beatType
+        val currentSoundSize = scheduler.beatLength
+        if (scheduler.soundIndex == 0) {
+            voiceMixer.onBarStart()
+        }
 
-                loopListener?.onMetronomeData(
-                    clipData,
-                    clipSize,
-                    bpmIndex / noteNum,
-                    moleculeIndex,
-                    ((p / noteNum + noteIndex * 100f / noteNum)).toInt().toFloat()
+        //将声音数据切割为20ms一次的大小,然后计算在当前拍子内的进度值
+        val clipSize = beatBank.sliceSize / 2
+        var clipTotalSize = 0
+        while (clipTotalSize < currentSoundSize) {
+            if (stop) {
+                //在切割单拍音频的过程中可能触发停止指令,30BPM的时候一拍数据有2秒，不能停止的这么慢
+                return
+            }
+            val size = clipSize.coerceAtMost(currentSoundSize - clipTotalSize)
+
+            //直接取音频库中的数据,没有叠加的声部时不拷贝
+            var data = beatBank.slice(currentBeat, clipTotalSize * 2, size * 2)
+            if (voiceMixer.hasVoices) {
+                data = voiceMixer.mix(
+                    data,
+                    scheduler.position,
+                    scheduler.barStart,
+                    scheduler.barEnd,
+                    beatBank.currentGain
                 )
             }
-            noteIndex++
-            soundIndex++
-            bpmIndex++
-
-            if (soundIndex == metronomeData.beatArray.size) soundIndex = 0
-
-            if (bpmIndex == metronomeData.bpmArray.size) bpmIndex = 0
+            output(data)
+            clipTotalSize += size
+            scheduler.advance(size)
+
+            val p = clipTotalSize * 100f / currentSoundSize
+            listener?.onMetronomeData(
+                index,
+                moleculeIndex,
+                ((p / noteNum + noteIndex * 100f / noteNum)).toInt().toFloat()
+            )
+        }
+        //新的节拍参数与生成好的数据在小节开始时一起切换
+        val next = if (scheduler.isBarEnd) pending.getAndSet(null) else null
+        if (scheduler.nextBeat(next?.data) && next != null) {
+            beatBank.swap(next.beats)
+            voiceMixer.setSounds(next.sounds)
         }
-
-
-        MetronomeLog.log("loop over")
-        loopListener?.onLoopEnd()
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,162 @@
+package com.lee.metronome
+
+import java.io.BufferedOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+
+/**
+ * 节拍声音的pcm缓存
+ * 声音解码并重采样为单声道16位小端pcm后写入磁盘,之后启动时直接读取文件,不再经过MediaCodec解码
+ * 拍子数据需要堆上的数组,文件只有几百KB,一次readFully读入,不使用内存映射
+ * 文件头记录缓存格式版本、采样率、来源标识及来源版本,任一项不一致都视为失效,重新解码后覆盖
+ * 目录中最多保留MAX_FILES个文件,读取时更新修改时间,写入后删除最久未使用的文件
+ */
+internal class SoundCache(private val dir: File) {
+    companion object {
+        /**
+         * 文件头标识 "MPCM"
+         */
+        private const val MAGIC = 0x4D50434D
+
+        /**
+         * 缓存格式版本,修改格式或解码、重采样方式时需要增加
+         */
+        private const val VERSION = 1
+
+        /**
+         * 最多保留的缓存文件数量,足够在几套节拍声音之间切换
+         */
+        private const val MAX_FILES = 12
+
+        /**
+         * 线性插值重采样,单声道16位小端pcm
+         * @param data pcm数据
+         * @param from 原采样率
+         * @param to 目标采样率
+         */
+        fun resample(data: ByteArray, from: Int, to: Int): ByteArray {
+            if (from == to || from <= 0 || to <= 0) {
+                return data
+            }
+            val inCount = data.size / 2
+            val outCount = (inCount.toLong() * to / from).toInt()
+            val out = ByteArray(outCount * 2)
+            for (i in 0 until outCount) {
+                //输出第i个采样在输入中的位置,以1/to为单位
+                val position = i.toLong() * from
+                val index = (position / to).toInt()
+                val fraction = position % to
+                val a = sample(data, index)
+                val b = if (index + 1 < inCount) sample(data, index + 1) else a
+                val value = a + ((b - a) * fraction / to).toInt()
+                out[i * 2] = value.toByte()
+                out[i * 2 + 1] = (value shr 8).toByte()
+            }
+            return out
+        }
+
+        private fun sample(data: ByteArray, index: Int): Int {
+            return (data[index * 2].toInt() and 0xFF) or (data[index * 2 + 1].toInt() shl 8)
+        }
+    }
+
+    /**
+     * 读取缓存
+     * @param id 来源标识,例如资源id或文件路径,决定缓存文件
+     * @param stamp 来源的版本,来源内容变化时需不同,例如文件的修改时间
+     * @param sampleRate 需要的采样率
+     * @return 缓存的pcm数据,没有缓存或缓存失效时返回null
+     */
+    fun load(id: String, stamp: String, sampleRate: Int): ByteArray? {
+        val file = cacheFile(id)
+        if (!file.exists()) {
+            return null
+        }
+        try {
+            RandomAccessFile(file, "r").use { raf ->
+                if (raf.length() < 16
+                    || raf.readInt() != MAGIC
+                    || raf.readInt() != VERSION
+                    || raf.readInt() != sampleRate
+                ) {
+                    return null
+                }
+                val keySize = raf.readInt()
+                if (keySize < 0 || keySize > raf.length() - raf.filePointer - 4) {
+                    return null
+                }
+                val key = ByteArray(keySize)
+                raf.readFully(key)
+                if (String(key, Charsets.UTF_8) != key(id, stamp)) {
+                    return null
+                }
+                val size = raf.readInt()
+                if (size.toLong() != raf.length() - raf.filePointer) {
+                    return null
+                }
+                val data = ByteArray(size)
+                raf.readFully(data)
+                file.setLastModified(System.currentTimeMillis())
+                return data
+            }
+        } catch (e: IOException) {
+            MetronomeLog.log("load sound cache error:$e")
+            return null
+        }
+    }
+
+    /**
+     * 写入缓存,先写临时文件再重命名,写入中断不会留下不完整的缓存
+     */
+    fun save(id: String, stamp: String, sampleRate: Int, data: ByteArray) {
+        val file = cacheFile(id)
+        val temp = File(dir, file.name + ".tmp")
+        try {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw IOException("mkdirs failed:$dir")
+            }
+            val key = key(id, stamp).toByteArray(Charsets.UTF_8)
+            DataOutputStream(BufferedOutputStream(FileOutputStream(temp))).use { out ->
+                out.writeInt(MAGIC)
+                out.writeInt(VERSION)
+                out.writeInt(sampleRate)
+                out.writeInt(key.size)
+                out.write(key)
+                out.writeInt(data.size)
+                out.write(data)
+            }
+            if (!temp.renameTo(file)) {
+                throw IOException("rename failed:$file")
+            }
+        } catch (e: IOException) {
+            MetronomeLog.log("save sound cache error:$e")
+            temp.delete()
+        }
+        trim()
+    }
+
+    /**
+     * 删除最久未使用的文件,使目录中最多保留MAX_FILES个文件,中断写入留下的临时文件也一并清理
+     */
+    private fun trim() {
+        val files = dir.listFiles() ?: return
+        if (files.size <= MAX_FILES) {
+            return
+        }
+        files.sortBy { it.lastModified() }
+        for (i in 0 until files.size - MAX_FILES) {
+            files[i].delete()
+        }
+    }
+
+    private fun key(id: String, stamp: String): String {
+        return "$id|$stamp"
+    }
+
+    private fun cacheFile(id: String): File {
+        return File(dir, Integer.toHexString(id.hashCode()) + ".pcm")
+    }
+}
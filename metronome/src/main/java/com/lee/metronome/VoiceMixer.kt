@@ -0,0 +1,180 @@
+package com.lee.metronome
+
+import com.lee.metronome.model.MetronomeSoundData
+import com.lee.metronome.model.VoiceData
+import com.lee.metronome.type.BeatType
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * 多声部混音
+ * 把各声部在当前数据块内的声音叠加到节拍数据上,每个拍子从起点开始发声,到该声部下一拍开始时截断
+ * 声音、累加与输出缓冲区在prepare时分配,混音过程中不再分配对象
+ * 内层循环为连续数组上的乘加,可以被JIT自动向量化
+ * pcm为16位小端单声道,除setVoices与createSounds外只能在播放线程调用
+ */
+internal class VoiceMixer {
+    /**
+     * 编译后的声部,拍子声音保存为BeatType的序号,重音与音量合并为Q15增益
+     */
+    private class Voice(val pulses: Int, val types: IntArray, val gains: IntArray)
+
+    /**
+     * 各拍子的声音
+     */
+    private var sounds = arrayOfNulls<ShortArray>(BeatType.values().size)
+
+    /**
+     * 正在使用的声部
+     */
+    private var voices = emptyArray<Voice>()
+
+    /**
+     * 等待在下一小节生效的声部
+     */
+    private val pending = AtomicReference<Array<Voice>?>()
+
+    /**
+     * 累加缓冲区
+     */
+    private var sum = IntArray(0)
+    private var samples = ShortArray(0)
+    private var out = ByteBuffer.allocateDirect(0)
+    private var outShorts: ShortBuffer = out.asShortBuffer()
+    private var outView = out
+
+    /**
+     * 是否有需要叠加的声部
+     */
+    val hasVoices: Boolean
+        get() = voices.isNotEmpty()
+
+    /**
+     * 设置声部,在下一小节开始时生效,可在任意线程调用
+     * @param list 为空表示只播放节拍
+     */
+    fun setVoices(list: List<VoiceData>) {
+        pending.set(Array(list.size) { index ->
+            val voice = list[index]
+            val volume = voice.volume.coerceIn(0f, 1f)
+            Voice(
+                voice.pulses,
+                IntArray(voice.pulses) { voice.beatArray[it].ordinal },
+                IntArray(voice.pulses) {
+                    val accent = voice.accentArray?.get(it)?.coerceIn(0f, 1f) ?: 1f
+                    (accent * volume * (1 shl 15)).toInt()
+                })
+        })
+    }
+
+    /**
+     * 按当前的拍子数据生成声音,需在播放线程开始播放前调用
+     * @param maxFrames 单次混音的最大采样数
+     */
+    fun prepare(soundData: MetronomeSoundData, maxFrames: Int) {
+        sounds = createSounds(soundData)
+        if (sum.size < maxFrames) {
+            sum = IntArray(maxFrames)
+            samples = ShortArray(maxFrames)
+            out = ByteBuffer.allocateDirect(maxFrames * 2).order(ByteOrder.LITTLE_ENDIAN)
+            outShorts = out.asShortBuffer()
+            outView = out.asReadOnlyBuffer()
+        }
+        onBarStart()
+    }
+
+    /**
+     * 按当前的拍子数据生成各拍子的声音,每次都分配新的数组,可在任意线程调用
+     */
+    fun createSounds(soundData: MetronomeSoundData): Array<ShortArray?> {
+        val created = arrayOfNulls<ShortArray>(BeatType.values().size)
+        for (type in BeatType.values()) {
+            val data = soundData.getBeat(type) ?: continue
+            val sound = ShortArray(data.size / 2)
+            ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(sound)
+            created[type.ordinal] = sound
+        }
+        return created
+    }
+
+    /**
+     * 切换到createSounds生成的声音,只在播放线程的小节开始时调用
+     */
+    fun setSounds(next: Array<ShortArray?>) {
+        sounds = next
+    }
+
+    /**
+     * 小节开始时调用,应用新设置的声部
+     */
+    fun onBarStart() {
+        val next = pending.getAndSet(null)
+        if (next != null) {
+            voices = next
+        }
+    }
+
+    /**
+     * 叠加各声部
+     * @param main 节拍数据,position至limit为本次数据,不能超出prepare时的maxFrames
+     * @param position 数据块起点的采样位置
+     * @param barStart 所在小节的起点
+     * @param barEnd 所在小节的终点,数据块不能跨越小节
+     * @param gain 主音量,Q15
+     * @return 只读数据,position至limit为混音结果,下次调用前有效
+     */
+    fun mix(main: ByteBuffer, position: Long, barStart: Long, barEnd: Long, gain: Int): ByteBuffer {
+        val frames = main.remaining() / 2
+        val base = main.position()
+        main.order(ByteOrder.LITTLE_ENDIAN)
+        for (i in 0 until frames) {
+            sum[i] = main.getShort(base + i * 2).toInt()
+        }
+
+        val barLength = barEnd - barStart
+        val offset = position - barStart
+        for (voice in voices) {
+            val pulses = voice.pulses
+            //数据块起点所在的拍子
+            var pulse = (offset * pulses / barLength).toInt()
+            while (pulse + 1 < pulses && barLength * (pulse + 1) / pulses <= offset) {
+                pulse++
+            }
+            var i = 0
+            while (i < frames && pulse < pulses) {
+                val start = barLength * pulse / pulses
+                val end = barLength * (pulse + 1) / pulses
+                val count = minOf(frames - i, (end - offset - i).toInt())
+                val sound = sounds[voice.types[pulse]]
+                val g = (voice.gains[pulse].toLong() * gain shr 15).toInt()
+                if (sound != null && g != 0) {
+                    addScaled(sound, (offset + i - start).toInt(), i, count, g)
+                }
+                i += count
+                pulse++
+            }
+        }
+
+        for (i in 0 until frames) {
+            samples[i] = sum[i].coerceIn(Short.MIN_VALUE.toInt(), Short.MAX_VALUE.toInt()).toShort()
+        }
+        outShorts.clear()
+        outShorts.put(samples, 0, frames)
+        outView.limit(frames * 2)
+        outView.position(0)
+        return outView
+    }
+
+    /**
+     * sum[to, to+count) += sound[from, from+count) * gain,超出声音长度的部分不发声
+     */
+    private fun addScaled(sound: ShortArray, from: Int, to: Int, count: Int, gain: Int) {
+        val n = minOf(count, sound.size - from)
+        val sum = sum
+        for (j in 0 until n) {
+            sum[to + j] += (sound[from + j] * gain) shr 15
+        }
+    }
+}
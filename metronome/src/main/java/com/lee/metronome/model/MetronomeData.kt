@@ -109,6 +109,20 @@ class MetronomeData(
         }
     }
 
+    /**
+     * 计算第index拍(包含子拍)的起点相对第0拍的采样数
+     * 每拍长度为 采样率*60/(bpm*子拍数),按精确比例计算,拍数再多也不会累积误差
+     * @param sample 采样率 44100、48000
+     */
+    fun beatOffset(sample: Int, index: Long): Long {
+        var count = bpm.toLong() * noteType.num
+        //与calculateMetronome一致,这两个音符的长度只有实际的1/3
+        if (noteType == NoteType.QUARTER_DOT || noteType == NoteType.QUAVER_TRIPLET) {
+            count *= 3
+        }
+        return index * sample * 60 / count
+    }
+
     fun calculateMetronome(sample: Int, pcmNum: Int) {
         if (recordSection <= 0) {
             //bpm表示一分钟内响多少次, noteType.num表示响的这拍实际有几下
@@ -0,0 +1,24 @@
+package com.lee.metronome.model
+
+import com.lee.metronome.type.BeatType
+
+/**
+ * 叠加在节拍上的声部信息
+ * 一个小节均分为pulses个拍子,与节拍的小节对齐,例如4/4拍下pulses为3即为3对4的复节奏,
+ * pulses为16并在休止处设为BeatType.NONE即可组成clave等节奏型
+ */
+class VoiceData(
+    //一个小节内的拍子数
+    val pulses: Int,
+    //每个拍子的声音,长度需为pulses,BeatType.NONE表示不发声
+    val beatArray: Array<BeatType>,
+    //每个拍子的重音,0~1,为空时全部为1
+    val accentArray: FloatArray? = null,
+    //声部音量,0~1
+    val volume: Float = 1f
+) {
+    init {
+        require(pulses > 0 && beatArray.size == pulses) { "beatArray size must be pulses:$pulses" }
+        require(accentArray == null || accentArray.size == pulses) { "accentArray size must be pulses:$pulses" }
+    }
+}
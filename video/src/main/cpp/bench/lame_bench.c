@@ -0,0 +1,319 @@
+/**
+ * lame编码性能测试,对固定的pcm语料编码并输出实时倍数,用于对比各ABI及SIMD开关的编码速度
+ * 编码参数与Mp3Util一致:VBR默认模式,质量5
+ *
+ * 用法: lame-bench [pcm路径 采样率 通道数] [-t 秒数] [-r 轮数] [-o 输出mp3路径] [-c]
+ * 不指定pcm时使用内置生成的语料(44100Hz双声道扫频加噪声,每次生成结果相同)
+ * -c 编码后用mpglib(hip_decode)解码,检查去掉编码延迟与填充后的采样数及对齐与原始pcm一致,且信噪比不低于CHECK_MIN_SNR,否则返回1
+ */
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <math.h>
+#include "../lame/lame.h"
+
+#if defined(__aarch64__)
+#define BENCH_ABI "arm64-v8a"
+#elif defined(__arm__)
+#define BENCH_ABI "armeabi-v7a"
+#elif defined(__x86_64__)
+#define BENCH_ABI "x86_64"
+#elif defined(__i386__)
+#define BENCH_ABI "x86"
+#else
+#define BENCH_ABI "unknown"
+#endif
+
+#if defined(HAVE_ARM_NEON)
+#define BENCH_SIMD "neon"
+#elif defined(HAVE_XMMINTRIN_H)
+#define BENCH_SIMD "sse"
+#else
+#define BENCH_SIMD "off"
+#endif
+
+//每次送入编码器的采样数,与实时录音20ms一帧接近
+#define BENCH_CHUNK 1152
+
+//解码校验的最低信噪比(dB),解码出错时远低于此值
+#define CHECK_MIN_SNR 10.0
+//解码校验每次送入解码器的字节数,覆盖帧被切开的情况
+#define CHECK_FEED 4096
+//mpglib的解码延迟(采样数)与每帧最多输出的采样数,与native-lib.cpp一致
+#define MPGLIB_DECODER_DELAY 529
+#define MPGLIB_MAX_SAMPLES 1152
+
+static double now_seconds(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+/**
+ * 生成固定的测试语料:扫频正弦加白噪声,右声道为左声道的一半
+ */
+static short *generate_corpus(int sample_rate, int seconds, long *samples) {
+    long count = (long) sample_rate * seconds;
+    short *pcm = (short *) malloc(sizeof(short) * 2 * count);
+    unsigned int seed = 1;
+    long i;
+    if (pcm == NULL) {
+        return NULL;
+    }
+    for (i = 0; i < count; i++) {
+        double t = i / (double) sample_rate;
+        double f = 220 + 200 * sin(t * 0.5);
+        double noise;
+        short v;
+        seed = seed * 1103515245u + 12345u;
+        noise = ((seed >> 16) & 0x7FFF) / 32767.0 - 0.5;
+        v = (short) (8000 * sin(2 * M_PI * f * t) + noise * 1000);
+        pcm[2 * i] = v;
+        pcm[2 * i + 1] = (short) (v / 2);
+    }
+    *samples = count;
+    return pcm;
+}
+
+static short *read_corpus(const char *path, int channels, long *samples) {
+    FILE *file = fopen(path, "rb");
+    long size;
+    short *pcm;
+    if (file == NULL) {
+        return NULL;
+    }
+    fseek(file, 0, SEEK_END);
+    size = ftell(file);
+    fseek(file, 0, SEEK_SET);
+    pcm = (short *) malloc((size_t) size);
+    if (pcm == NULL || fread(pcm, 1, (size_t) size, file) != (size_t) size) {
+        free(pcm);
+        fclose(file);
+        return NULL;
+    }
+    fclose(file);
+    *samples = size / (long) (sizeof(short) * channels);
+    return pcm;
+}
+
+/**
+ * 编码一轮,返回mp3数据大小,out不为空时写入编码结果
+ */
+static long encode_once(const short *pcm, long samples, int sample_rate, int channels,
+                        unsigned char *mp3_buffer, int mp3_size, FILE *out) {
+    lame_t lame = lame_init();
+    long total = 0;
+    long i;
+    int size;
+    lame_set_in_samplerate(lame, sample_rate);
+    lame_set_num_channels(lame, channels);
+    lame_set_out_samplerate(lame, sample_rate);
+    lame_set_quality(lame, 5);
+    lame_set_VBR(lame, vbr_default);
+    if (lame_init_params(lame) < 0) {
+        lame_close(lame);
+        return -1;
+    }
+    for (i = 0; i < samples; i += BENCH_CHUNK) {
+        int n = (int) (samples - i < BENCH_CHUNK ? samples - i : BENCH_CHUNK);
+        const short *chunk = pcm + i * channels;
+        if (channels > 1) {
+            size = lame_encode_buffer_interleaved(lame, (short *) chunk, n, mp3_buffer, mp3_size);
+        } else {
+            size = lame_encode_buffer(lame, chunk, chunk, n, mp3_buffer, mp3_size);
+        }
+        if (size < 0) {
+            lame_close(lame);
+            return -1;
+        }
+        if (out != NULL) {
+            fwrite(mp3_buffer, 1, (size_t) size, out);
+        }
+        total += size;
+    }
+    size = lame_encode_flush(lame, mp3_buffer, mp3_size);
+    if (out != NULL && size > 0) {
+        fwrite(mp3_buffer, 1, (size_t) size, out);
+    }
+    if (out != NULL) {
+        //用包含帧数与编码延迟的lame标签替换开头的占位帧,解码时才能去掉延迟与填充
+        lame_mp3_tags_fid(lame, out);
+    }
+    total += size;
+    lame_close(lame);
+    return total;
+}
+
+/**
+ * 解码校验:解码mp3文件,去掉编码延迟与填充后与原始pcm逐采样比较
+ * 除信噪比外还比较错开前后一个采样时的误差,对齐正确时误差最小,可发现信噪比本身看不出的错位
+ * @return 0通过,1失败
+ */
+static int check_decode(FILE *mp3, const short *pcm, long samples, int channels) {
+    hip_t hip = hip_decode_init();
+    unsigned char input[CHECK_FEED];
+    short pcm_l[MPGLIB_MAX_SAMPLES];
+    short pcm_r[MPGLIB_MAX_SAMPLES];
+    mp3data_struct mp3data;
+    int enc_delay = -1;
+    int enc_padding = -1;
+    double signal = 0;
+    //分别为与前一个、同一个、后一个原始采样比较的误差
+    double noise[3] = {0, 0, 0};
+    double snr;
+    long decoded = 0;
+    long skip = -1;
+    long end = -1;
+    long position = 0;
+    size_t size = 0;
+    int eof = 0;
+    int aligned;
+    if (hip == NULL) {
+        return 1;
+    }
+    memset(&mp3data, 0, sizeof(mp3data));
+    fseek(mp3, 0, SEEK_SET);
+    for (;;) {
+        //与lame前端读取mp3时相同:返回0时继续读取,读到文件末尾后取出mpglib中剩余的帧
+        int n = hip_decode1_headersB(hip, input, size, pcm_l, pcm_r, &mp3data, &enc_delay,
+                                     &enc_padding);
+        int i;
+        size = 0;
+        if (n < 0) {
+            fprintf(stderr, "decode check: decode error\n");
+            hip_decode_exit(hip);
+            return 1;
+        }
+        if (n == 0) {
+            if (eof) {
+                break;
+            }
+            size = fread(input, 1, sizeof(input), mp3);
+            eof = size == 0;
+            continue;
+        }
+        if (skip < 0) {
+            if (enc_delay < 0 || mp3data.nsamp == 0) {
+                fprintf(stderr, "decode check: lame tag not found\n");
+                hip_decode_exit(hip);
+                return 1;
+            }
+            skip = enc_delay + MPGLIB_DECODER_DELAY;
+            end = (long) mp3data.nsamp - enc_padding + MPGLIB_DECODER_DELAY;
+        }
+        for (i = 0; i < n; i++, position++) {
+            int lag;
+            if (position < skip || position >= end) {
+                continue;
+            }
+            if (decoded > 0 && decoded + 1 < samples) {
+                const short *expect = pcm + decoded * channels;
+                signal += (double) expect[0] * expect[0];
+                if (channels > 1) {
+                    signal += (double) expect[1] * expect[1];
+                }
+                for (lag = -1; lag <= 1; lag++) {
+                    const short *other = expect + lag * channels;
+                    double diff = pcm_l[i] - other[0];
+                    noise[lag + 1] += diff * diff;
+                    if (channels > 1) {
+                        diff = pcm_r[i] - other[1];
+                        noise[lag + 1] += diff * diff;
+                    }
+                }
+            }
+            decoded++;
+        }
+    }
+    hip_decode_exit(hip);
+    snr = noise[1] > 0 ? 10 * log10(signal / noise[1]) : 99;
+    aligned = noise[1] < noise[0] && noise[1] < noise[2];
+    printf("decode check: samples=%ld/%ld snr=%.1fdB aligned=%s\n", decoded, samples, snr,
+           aligned ? "yes" : "no");
+    return decoded == samples && aligned && snr >= CHECK_MIN_SNR ? 0 : 1;
+}
+
+int main(int argc, char **argv) {
+    const char *pcm_path = NULL;
+    const char *out_path = NULL;
+    int sample_rate = 44100;
+    int channels = 2;
+    int seconds = 60;
+    int rounds = 3;
+    int check = 0;
+    int mp3_size = (int) (1.25 * BENCH_CHUNK + 7200);
+    unsigned char *mp3_buffer;
+    short *pcm;
+    long samples = 0;
+    long bytes = 0;
+    double best = 0;
+    int i;
+
+    for (i = 1; i < argc; i++) {
+        if (strcmp(argv[i], "-t") == 0 && i + 1 < argc) {
+            seconds = atoi(argv[++i]);
+        } else if (strcmp(argv[i], "-r") == 0 && i + 1 < argc) {
+            rounds = atoi(argv[++i]);
+        } else if (strcmp(argv[i], "-o") == 0 && i + 1 < argc) {
+            out_path = argv[++i];
+        } else if (strcmp(argv[i], "-c") == 0) {
+            check = 1;
+        } else if (pcm_path == NULL && i + 2 < argc) {
+            pcm_path = argv[i];
+            sample_rate = atoi(argv[++i]);
+            channels = atoi(argv[++i]);
+        } else {
+            fprintf(stderr, "usage: %s [pcm sample_rate channels] [-t seconds] [-r rounds] [-o out.mp3] [-c]\n",
+                    argv[0]);
+            return 1;
+        }
+    }
+    pcm = pcm_path != NULL ? read_corpus(pcm_path, channels, &samples)
+                           : generate_corpus(sample_rate, seconds, &samples);
+    mp3_buffer = (unsigned char *) malloc((size_t) mp3_size);
+    if (pcm == NULL || mp3_buffer == NULL || samples == 0) {
+        fprintf(stderr, "load pcm failed\n");
+        return 1;
+    }
+
+    for (i = 0; i < rounds; i++) {
+        FILE *out = (i == 0 && out_path != NULL) ? fopen(out_path, "w+b") : NULL;
+        double start = now_seconds();
+        double speed;
+        bytes = encode_once(pcm, samples, sample_rate, channels, mp3_buffer, mp3_size, out);
+        speed = samples / (double) sample_rate / (now_seconds() - start);
+        if (out != NULL) {
+            fclose(out);
+        }
+        if (bytes < 0) {
+            fprintf(stderr, "encode failed\n");
+            return 1;
+        }
+        if (speed > best) {
+            best = speed;
+        }
+        printf("round %d: %.1fx realtime\n", i + 1, speed);
+    }
+    printf("lame %s abi=%s simd=%s audio=%.1fs mp3=%ld bytes best=%.1fx realtime\n",
+           get_lame_version(), BENCH_ABI, BENCH_SIMD, samples / (double) sample_rate, bytes, best);
+    if (check) {
+        FILE *mp3 = tmpfile();
+        int failed = mp3 == NULL
+                     || encode_once(pcm, samples, sample_rate, channels, mp3_buffer, mp3_size, mp3) < 0
+                     || check_decode(mp3, pcm, samples, channels) != 0;
+        if (mp3 != NULL) {
+            fclose(mp3);
+        }
+        if (failed) {
+            fprintf(stderr, "decode check failed\n");
+            free(mp3_buffer);
+            free(pcm);
+            return 1;
+        }
+    }
+    free(mp3_buffer);
+    free(pcm);
+    return 0;
+}
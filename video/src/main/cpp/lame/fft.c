@@ -44,7 +44,9 @@
 #include "util.h"
 #include "fft.h"
 
-//#include "vector/lame_intrin.h" 
+#if defined(HAVE_XMMINTRIN_H) || defined(HAVE_ARM_NEON)
+#include "vector/lame_intrin.h"
+#endif
 
 
 
@@ -325,5 +327,8 @@ init_fft(lame_internal_flags * const gfc)
     gfc->fft_fht = fht_SSE2;
 #endif
 #endif
+#ifdef HAVE_ARM_NEON
+    gfc->fft_fht = fht_NEON;
+#endif
 #endif
 }
@@ -37,7 +37,7 @@
 #include "bitstream.h"
 #include "vbrquantize.h"
 #include "quantize.h"
-#ifdef HAVE_XMMINTRIN_H
+#if defined(HAVE_XMMINTRIN_H) || defined(HAVE_ARM_NEON)
 #include "vector/lame_intrin.h"
 #endif
 
@@ -103,6 +103,9 @@ init_xrpow_core_init(lame_internal_flags * const gfc)
     gfc->init_xrpow_core = init_xrpow_core_sse;
 #endif
 #endif
+#ifdef HAVE_ARM_NEON
+    gfc->init_xrpow_core = init_xrpow_core_neon;
+#endif
 }
 
 
@@ -33,6 +33,9 @@
 #include "util.h"
 #include "quantize_pvt.h"
 #include "tables.h"
+#ifdef HAVE_ARM_NEON
+#include "vector/lame_intrin.h"
+#endif
 
 
 static const struct {
@@ -110,6 +113,13 @@ static const struct {
 
 
 
+#ifdef HAVE_ARM_NEON
+
+#define quantize_lines_xrpow_01 quantize_lines_xrpow_01_neon
+#define quantize_lines_xrpow quantize_lines_xrpow_neon
+
+#else
+
 static void
 quantize_lines_xrpow_01(unsigned int l, FLOAT istep, const FLOAT * xr, int *ix)
 {
@@ -270,6 +280,8 @@ quantize_lines_xrpow(unsigned int l, FLOAT istep, const FLOAT * xr, int *ix)
 
 #endif
 
+#endif /* HAVE_ARM_NEON */
+
 
 
 /*********************************************************************
@@ -30,4 +30,16 @@ init_xrpow_core_sse(gr_info * const cod_info, FLOAT xrpow[576], int upper, FLOAT
 void
 fht_SSE2(FLOAT* , int);
 
+void
+init_xrpow_core_neon(gr_info * const cod_info, FLOAT xrpow[576], int upper, FLOAT * sum);
+
+void
+fht_NEON(FLOAT* , int);
+
+void
+quantize_lines_xrpow_01_neon(unsigned int l, FLOAT istep, const FLOAT * xr, int *ix);
+
+void
+quantize_lines_xrpow_neon(unsigned int l, FLOAT istep, const FLOAT * xr, int *ix);
+
 #endif
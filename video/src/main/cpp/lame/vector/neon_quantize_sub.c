@@ -0,0 +1,228 @@
+/*
+ * ARM NEON optimized quantization and FFT routines
+ *
+ * NEON counterpart of xmm_quantize_sub.c, used on arm64-v8a.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Library General Public
+ * License as published by the Free Software Foundation; either
+ * version 2 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Library General Public License for more details.
+ *
+ * You should have received a copy of the GNU Library General Public
+ * License along with this library; if not, write to the
+ * Free Software Foundation, Inc., 59 Temple Place - Suite 330,
+ * Boston, MA 02111-1307, USA.
+ */
+
+
+#ifdef HAVE_CONFIG_H
+# include <config.h>
+#endif
+
+#include "lame.h"
+#include "machine.h"
+#include "encoder.h"
+#include "util.h"
+#include "quantize_pvt.h"
+#include "lame_intrin.h"
+
+
+
+#ifdef HAVE_ARM_NEON
+
+#include <arm_neon.h>
+
+#define TRI_SIZE (5-1)  /* 1024 =  4**5 */
+static const FLOAT costab[TRI_SIZE * 2] = {
+    9.238795325112867e-01, 3.826834323650898e-01,
+    9.951847266721969e-01, 9.801714032956060e-02,
+    9.996988186962042e-01, 2.454122852291229e-02,
+    9.999811752826011e-01, 6.135884649154475e-03
+};
+
+
+
+void
+init_xrpow_core_neon(gr_info * const cod_info, FLOAT xrpow[576], int upper, FLOAT * sum)
+{
+    int     i;
+    float   tmp_max;
+    float   tmp_sum;
+    float32x4_t vec_xrpow_max = vdupq_n_f32(0);
+    float32x4_t vec_sum = vdupq_n_f32(0);
+
+    /* upper is inclusive, process upper+1 lines */
+    for (i = 0; i + 4 <= upper + 1; i += 4) {
+        float32x4_t vec_tmp = vabsq_f32(vld1q_f32(&cod_info->xr[i]));
+        vec_sum = vaddq_f32(vec_sum, vec_tmp);
+        vec_tmp = vsqrtq_f32(vmulq_f32(vec_tmp, vsqrtq_f32(vec_tmp)));
+        vec_xrpow_max = vmaxq_f32(vec_xrpow_max, vec_tmp);
+        vst1q_f32(&xrpow[i], vec_tmp);
+    }
+    tmp_sum = vaddvq_f32(vec_sum);
+    tmp_max = vmaxvq_f32(vec_xrpow_max);
+    for (; i <= upper; ++i) {
+        float   tmp = fabsf(cod_info->xr[i]);
+        tmp_sum += tmp;
+        xrpow[i] = sqrtf(tmp * sqrtf(tmp));
+        if (xrpow[i] > tmp_max)
+            tmp_max = xrpow[i];
+    }
+    cod_info->xrpow_max = tmp_max;
+    *sum = tmp_sum;
+}
+
+
+/* same as quantize_lines_xrpow_01 in takehiro.c */
+void
+quantize_lines_xrpow_01_neon(unsigned int l, FLOAT istep, const FLOAT * xr, int *ix)
+{
+    const FLOAT compareval0 = (1.0f - 0.4054f) / istep;
+    const float32x4_t vec_compare = vdupq_n_f32(compareval0);
+    unsigned int i;
+
+    for (i = 0; i + 4 <= l; i += 4) {
+        /* ix = (compareval0 > xr) ? 0 : 1 */
+        uint32x4_t mask = vcgeq_f32(vld1q_f32(&xr[i]), vec_compare);
+        vst1q_s32(&ix[i], vreinterpretq_s32_u32(vshrq_n_u32(mask, 31)));
+    }
+    for (; i < l; i++) {
+        ix[i] = (compareval0 > xr[i]) ? 0 : 1;
+    }
+}
+
+
+/* same as the non IEEE754 hack quantize_lines_xrpow in takehiro.c, results are bit exact */
+void
+quantize_lines_xrpow_neon(unsigned int l, FLOAT istep, const FLOAT * xr, int *ix)
+{
+    const float32x4_t vec_istep = vdupq_n_f32(istep);
+    unsigned int i;
+
+    for (i = 0; i + 4 <= l; i += 4) {
+        float32x4_t x = vmulq_f32(vld1q_f32(&xr[i]), vec_istep);
+        int32x4_t rx = vcvtq_s32_f32(x); /* truncate, same as (int) */
+        float32x4_t adj = vdupq_n_f32(0);
+        /* no gather on NEON, look up the table lane by lane */
+        adj = vsetq_lane_f32(adj43[vgetq_lane_s32(rx, 0)], adj, 0);
+        adj = vsetq_lane_f32(adj43[vgetq_lane_s32(rx, 1)], adj, 1);
+        adj = vsetq_lane_f32(adj43[vgetq_lane_s32(rx, 2)], adj, 2);
+        adj = vsetq_lane_f32(adj43[vgetq_lane_s32(rx, 3)], adj, 3);
+        vst1q_s32(&ix[i], vcvtq_s32_f32(vaddq_f32(x, adj)));
+    }
+    for (; i < l; i++) {
+        FLOAT   x = xr[i] * istep;
+        x += adj43[(int) x];
+        ix[i] = (int) x;
+    }
+}
+
+
+void
+fht_NEON(FLOAT * fz, int n)
+{
+    const FLOAT *tri = costab;
+    int     k4;
+    FLOAT  *fi, *gi;
+    FLOAT const *fn;
+
+    n <<= 1;            /* to get BLKSIZE, because of 3DNow! ASM routine */
+    fn = fz + n;
+    k4 = 4;
+    do {
+        FLOAT   s1, c1;
+        int     i, k1, k2, k3, kx;
+        kx = k4 >> 1;
+        k1 = k4;
+        k2 = k4 << 1;
+        k3 = k2 + k1;
+        k4 = k2 << 1;
+        fi = fz;
+        gi = fi + kx;
+        do {
+            FLOAT   f0, f1, f2, f3;
+            f1 = fi[0] - fi[k1];
+            f0 = fi[0] + fi[k1];
+            f3 = fi[k2] - fi[k3];
+            f2 = fi[k2] + fi[k3];
+            fi[k2] = f0 - f2;
+            fi[0] = f0 + f2;
+            fi[k3] = f1 - f3;
+            fi[k1] = f1 + f3;
+            f1 = gi[0] - gi[k1];
+            f0 = gi[0] + gi[k1];
+            f3 = SQRT2 * gi[k3];
+            f2 = SQRT2 * gi[k2];
+            gi[k2] = f0 - f2;
+            gi[0] = f0 + f2;
+            gi[k3] = f1 - f3;
+            gi[k1] = f1 + f3;
+            gi += k4;
+            fi += k4;
+        } while (fi < fn);
+        c1 = tri[0];
+        s1 = tri[1];
+        for (i = 1; i < kx; i++) {
+            float32x4_t v_s2;
+            float32x4_t v_c2;
+            float32x4_t v_c1;
+            float32x4_t v_s1;
+            FLOAT   c2, s2, s1_2 = s1+s1;
+            c2 = 1 - s1_2 * s1;
+            s2 = s1_2 * c1;
+            fi = fz + i;
+            gi = fz + k1 - i;
+            {
+                const float c1s[4] = {-c1, c1, c1, c1};
+                const float s1s[4] = {s1, -s1, s1, s1};
+                const float c2s[4] = {c2, c2, -c2, -c2};
+                v_c1 = vld1q_f32(c1s);
+                v_s1 = vld1q_f32(s1s);
+                v_c2 = vld1q_f32(c2s);
+            }
+            v_s2 = vdupq_n_f32(s2);
+            do {
+                float32x4_t p, q, r;
+                float   t[4];
+
+                t[0] = fi[k1]; t[1] = fi[k3]; t[2] = gi[k1]; t[3] = gi[k3];
+                q = vld1q_f32(t);                                 /* Q := {fi_k1,fi_k3,gi_k1,gi_k3}*/
+                p = vmulq_f32(v_s2, q);                           /* P := s2 * Q */
+                q = vmulq_f32(v_c2, q);                           /* Q := c2 * Q */
+                q = vextq_f32(q, q, 2);                           /* Q := {-c2*gi_k1,-c2*gi_k3,c2*fi_k1,c2*fi_k3} */
+                p = vaddq_f32(p, q);
+
+                t[0] = gi[0]; t[1] = gi[k2]; t[2] = fi[0]; t[3] = fi[k2];
+                r = vld1q_f32(t);                                 /* R := {gi_0,gi_k2,fi_0,fi_k2} */
+                q = vsubq_f32(r, p);                              /* Q := {gi_0-p0,gi_k2-p1,fi_0-p2,fi_k2-p3} */
+                r = vaddq_f32(r, p);                              /* R := {gi_0+p0,gi_k2+p1,fi_0+p2,fi_k2+p3} */
+                p = vtrnq_f32(q, r).val[0];                       /* P := {q0,r0,q2,r2} */
+                q = vuzpq_f32(q, r).val[1];                       /* Q := {q1,q3,r1,r3} */
+                r = vmulq_f32(v_c1, q);
+                q = vmulq_f32(v_s1, q);
+                q = vrev64q_f32(q);
+                q = vextq_f32(q, q, 2);                           /* Q := {q3,q2,q1,q0} */
+                q = vaddq_f32(q, r);
+
+                vst1q_f32(t, vsubq_f32(p, q));
+                gi[k3] = t[0]; gi[k2] = t[1]; fi[k3] = t[2]; fi[k2] = t[3];
+                vst1q_f32(t, vaddq_f32(p, q));
+                gi[k1] = t[0]; gi[0] = t[1]; fi[k1] = t[2]; fi[0] = t[3];
+
+                gi += k4;
+                fi += k4;
+            } while (fi < fn);
+            c2 = c1;
+            c1 = c2 * tri[0] - s1 * tri[1];
+            s1 = c2 * tri[1] + s1 * tri[0];
+        }
+        tri += 2;
+    } while (k4 < n);
+}
+
+#endif	/* HAVE_ARM_NEON */
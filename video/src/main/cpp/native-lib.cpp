@@ -1,12 +1,26 @@
 #include <jni.h>
 #include <string>
+#include <cstring>
+#include <vector>
+#include <thread>
+#include <atomic>
+#include <chrono>
+#include <mutex>
 #include "lame/lame.h"
 
+#define LOG_TAG "lee_lame"
+#ifdef __ANDROID__
 #include<android/log.h>
 
-#define LOG_TAG "lee_lame"
 #define LOG_D(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
 #define LOG_I(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
+#else
+//linux主机上编译时输出到stderr,便于在普通JVM上测试
+#include <cstdio>
+
+#define LOG_D(...) (fprintf(stderr, LOG_TAG ": " __VA_ARGS__), fputc('\n', stderr))
+#define LOG_I(...) LOG_D(__VA_ARGS__)
+#endif
 
 extern "C" {
 JNIEXPORT jstring JNICALL
@@ -136,84 +150,839 @@ Java_com_lee_lame_mp3_Mp3Util_convert2Mp3(JNIEnv *env, jclass, jstring in_path,
 }
 
 
+//######多线程整文件转换 START######//
+
+/**
+ * 相邻分段之间重叠编码的最少帧数
+ * 每段从起点之前的重叠处开始编码,用于预热心理声学模型、MDCT及重采样滤波器,重叠部分的输出会被丢弃
+ */
+#define SEGMENT_OVERLAP_FRAMES 4
+
+/**
+ * 单个线程至少负责的重叠长度倍数,分段过短时重叠部分占比过高,不如减少线程
+ */
+#define SEGMENT_MIN_OVERLAP_RATIO 8
+
 /**
- * 全局转换实例,用于实时转换
+ * 每次读取的pcm帧数
  */
-static lame_global_flags *lgf = nullptr;
+#define SEGMENT_READ_SAMPLES 8192
+
+/**
+ * lame标签中使用的版本号,定义在lame/version.c中,未在公开头文件中声明
+ */
+extern "C" const char *get_lame_tag_encoder_short_version(void);
+
+/**
+ * 整文件转换参数
+ */
+struct Mp3Job {
+    const char *inPath;
+    long header;
+    int inSample;
+    int inChannel;
+    int outSample;
+    int quality;
+};
+
+/**
+ * 一个分段的编码任务与结果,帧下标均为整个文件中的mp3帧序号
+ */
+struct Mp3Segment {
+    /**
+     * 读取的pcm范围,单位为每声道采样数
+     */
+    long inStart;
+    long inEnd;
+    /**
+     * 本段输出的第一帧对应的帧序号
+     */
+    long firstFrame;
+    /**
+     * 保留的帧范围[keepFrom, keepTo),keepTo小于0表示保留到结尾
+     */
+    long keepFrom;
+    long keepTo;
+    /**
+     * 保留的mp3数据与每帧的大小
+     */
+    std::vector<unsigned char> data;
+    std::vector<int> frames;
+    /**
+     * 已编码的采样数,用于计算进度
+     */
+    std::atomic<long> done{0};
+    /**
+     * 任务是否结束,以及是否成功
+     */
+    std::atomic<bool> finished{false};
+    bool ok = false;
+};
+
+/**
+ * 创建与配置lame实例
+ * 多线程转换时关闭比特池,保证每帧数据自包含,分段可在任意帧边界拼接;同时不写入VBR头,由拼接时统一生成
+ */
+static lame_t createSegmentLame(const Mp3Job &job) {
+    lame_t lame = lame_init();
+    lame_set_in_samplerate(lame, job.inSample);
+    lame_set_num_channels(lame, job.inChannel);
+    lame_set_out_samplerate(lame, job.outSample);
+    lame_set_quality(lame, job.quality);
+    lame_set_VBR(lame, vbr_default); //使用VBR模式
+    lame_set_disable_reservoir(lame, 1);
+    lame_set_bWriteVbrTag(lame, 0);
+    lame_init_params(lame);
+    return lame;
+}
+
+/**
+ * 解析mp3(Layer III)帧头
+ * @return 帧长度,不是有效帧头时返回-1
+ */
+static int mp3FrameLength(const unsigned char *h) {
+    static const int bitrates[2][16] = {
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0},
+            {0, 8,  16, 24, 32, 40, 48, 56, 64,  80,  96,  112, 128, 144, 160, 0}
+    };
+    static const int samples[3] = {44100, 48000, 32000};
+    if (h[0] != 0xFF || (h[1] & 0xE0) != 0xE0) {
+        return -1;
+    }
+    //3:MPEG1 2:MPEG2 0:MPEG2.5
+    int version = (h[1] >> 3) & 3;
+    int layer = (h[1] >> 1) & 3;
+    int bitrateIndex = h[2] >> 4;
+    int sampleIndex = (h[2] >> 2) & 3;
+    if (version == 1 || layer != 1 || bitrateIndex == 0 || bitrateIndex == 15 || sampleIndex == 3) {
+        return -1;
+    }
+    int padding = (h[2] >> 1) & 1;
+    int sample = samples[sampleIndex] >> (version == 3 ? 0 : (version == 2 ? 1 : 2));
+    if (version == 3) {
+        return 144000 * bitrates[0][bitrateIndex] / sample + padding;
+    }
+    return 72000 * bitrates[1][bitrateIndex] / sample + padding;
+}
+
+/**
+ * CRC-16,与lame标签中使用的校验一致
+ */
+static uint16_t mp3Crc16(uint16_t crc, const unsigned char *data, size_t size) {
+    for (size_t i = 0; i < size; i++) {
+        crc ^= data[i];
+        for (int k = 0; k < 8; k++) {
+            crc = (crc & 1) ? (crc >> 1) ^ 0xA001 : crc >> 1;
+        }
+    }
+    return crc;
+}
+
+static void putInt32(unsigned char *p, uint32_t value) {
+    p[0] = value >> 24;
+    p[1] = value >> 16;
+    p[2] = value >> 8;
+    p[3] = value;
+}
+
+/**
+ * 编码一个分段,结束后只保留本段负责的帧
+ */
+static void encodeSegment(const Mp3Job *job, Mp3Segment *seg) {
+    FILE *fIn = fopen(job->inPath, "rb");
+    if (fIn == nullptr) {
+        seg->finished = true;
+        return;
+    }
+    const long frameBytes = sizeof(short int) * job->inChannel;
+    fseek(fIn, job->header + (int64_t) seg->inStart * frameBytes, SEEK_SET);
+
+    lame_t lame = createSegmentLame(*job);
+    std::vector<short int> pcm(SEGMENT_READ_SAMPLES * job->inChannel);
+    //lame建议的输出缓冲区大小 1.25*采样数+7200
+    const int mp3Size = SEGMENT_READ_SAMPLES * 5 / 4 + 7200;
+    std::vector<unsigned char> mp3(mp3Size);
+    std::vector<unsigned char> out;
+
+    long remaining = seg->inEnd - seg->inStart;
+    while (remaining > 0) {
+        long count = remaining < SEGMENT_READ_SAMPLES ? remaining : SEGMENT_READ_SAMPLES;
+        long read = fread(pcm.data(), frameBytes, count, fIn);
+        if (read <= 0) {
+            break;
+        }
+        int write;
+        if (job->inChannel > 1) {
+            write = lame_encode_buffer_interleaved(lame, pcm.data(), read, mp3.data(), mp3Size);
+        } else {
+            write = lame_encode_buffer(lame, pcm.data(), pcm.data(), read, mp3.data(), mp3Size);
+        }
+        if (write > 0) {
+            out.insert(out.end(), mp3.begin(), mp3.begin() + write);
+        }
+        remaining -= read;
+        seg->done += read;
+    }
+    int flush = lame_encode_flush(lame, mp3.data(), mp3Size);
+    if (flush > 0) {
+        out.insert(out.end(), mp3.begin(), mp3.begin() + flush);
+    }
+    lame_close(lame);
+    fclose(fIn);
+
+    //按帧拆分,丢弃重叠部分
+    size_t offset = 0;
+    long frame = seg->firstFrame;
+    while (offset + 4 <= out.size()) {
+        int length = mp3FrameLength(out.data() + offset);
+        if (length <= 0 || offset + length > out.size()) {
+            break;
+        }
+        if (frame >= seg->keepFrom && (seg->keepTo < 0 || frame < seg->keepTo)) {
+            seg->data.insert(seg->data.end(), out.begin() + offset, out.begin() + offset + length);
+            seg->frames.push_back(length);
+        }
+        offset += length;
+        frame++;
+    }
+    seg->ok = true;
+    seg->finished = true;
+}
+
+/**
+ * 已写出的音频帧的统计,用于最后生成标签帧
+ */
+struct Mp3Written {
+    std::vector<int> frames;
+    long musicBytes = 0;
+    uint16_t musicCrc = 0;
+};
+
+/**
+ * 计算能容纳Xing/LAME标签的最小帧
+ * @param first 第一帧音频的帧头
+ * @param header 输出标签帧的帧头
+ * @return 标签帧长度
+ */
+static int tagFrameHeader(const unsigned char *first, unsigned char *header) {
+    int mono = (first[3] >> 6) == 3;
+    int mpeg1 = ((first[1] >> 3) & 3) == 3;
+    int sideInfo = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+    int needSize = 4 + sideInfo + 120 + 36;
+
+    //选择能容纳标签的最小码率
+    header[0] = first[0];
+    header[1] = (unsigned char) (first[1] | 0x01);
+    header[3] = first[3];
+    int frameSize = -1;
+    for (int index = 1; index < 15; index++) {
+        header[2] = (index << 4) | (first[2] & 0x0D);
+        frameSize = mp3FrameLength(header);
+        if (frameSize >= needSize) {
+            break;
+        }
+    }
+    return frameSize;
+}
+
+/**
+ * 生成Xing/LAME标签帧,与lame_mp3_tags_fid写入的内容一致:帧数、字节数、TOC、编码延迟与填充
+ */
+static std::vector<unsigned char> buildTagFrame(lame_t lame, const unsigned char *first,
+                                                const Mp3Written &written, long totalSamples) {
+    int mono = (first[3] >> 6) == 3;
+    int mpeg1 = ((first[1] >> 3) & 3) == 3;
+    int sideInfo = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+    int xingOffset = 4 + sideInfo;
+    int lameOffset = xingOffset + 120;
+
+    unsigned char header[4];
+    int frameSize = tagFrameHeader(first, header);
+    std::vector<unsigned char> tag(frameSize, 0);
+    memcpy(tag.data(), header, 4);
+
+    long frames = written.frames.size();
+    long musicBytes = written.musicBytes;
+    uint16_t musicCrc = written.musicCrc;
+    long totalBytes = frameSize + musicBytes;
+
+    //Xing
+    unsigned char *p = tag.data() + xingOffset;
+    memcpy(p, "Xing", 4);
+    putInt32(p + 4, 0x0F);
+    putInt32(p + 8, frames);
+    putInt32(p + 12, totalBytes);
+    //TOC,百分比位置对应的帧在文件中的偏移,归一化到0~255
+    int percent = 0;
+    long frame = 0;
+    long position = frameSize;
+    for (int length : written.frames) {
+        while (percent < 100 && frame >= percent * frames / 100) {
+            p[16 + percent] = (unsigned char) ((int64_t) position * 256 / totalBytes);
+            percent++;
+        }
+        position += length;
+        frame++;
+    }
+    while (percent < 100) {
+        p[16 + percent] = 255;
+        percent++;
+    }
+    int quality = 100 - 10 * lame_get_VBR_q(lame) - lame_get_quality(lame);
+    putInt32(p + 116, quality < 0 ? 0 : quality);
+
+    //LAME扩展
+    p = tag.data() + lameOffset;
+    const char *version = get_lame_tag_encoder_short_version();
+    memcpy(p, version, strlen(version) < 9 ? strlen(version) : 9);
+    static const unsigned char vbrType[] = {1, 5, 3, 2, 4, 0, 3};
+    int vbr = lame_get_VBR(lame);
+    p[9] = vbr < (int) sizeof(vbrType) ? vbrType[vbr] : 0;
+    int lowpass = (int) (lame_get_lowpassfreq(lame) / 100.0 + 0.5);
+    p[10] = lowpass > 255 ? 255 : lowpass;
+    p[19] = lame_get_ATHtype(lame) + (1 << 4);
+    int minBitrate = lame_get_VBR_min_bitrate_kbps(lame);
+    p[20] = minBitrate > 255 ? 255 : minBitrate;
+    int framesize = lame_get_framesize(lame);
+    int delay = lame_get_encoder_delay(lame);
+    int64_t outSamples = (int64_t) totalSamples * lame_get_out_samplerate(lame) / lame_get_in_samplerate(lame);
+    int64_t padding = (int64_t) frames * framesize - delay - outSamples;
+    if (padding < 0) {
+        padding = 0;
+    }
+    p[21] = delay >> 4;
+    p[22] = ((delay & 0x0F) << 4) | ((padding >> 8) & 0x0F);
+    p[23] = padding & 0xFF;
+    int outSample = lame_get_out_samplerate(lame);
+    int sourceFreq = outSample <= 32000 ? 0 : (outSample == 44100 ? 1 : (outSample == 48000 ? 2 : 3));
+    int stereoMode = mono ? 0 : (lame_get_mode(lame) == JOINT_STEREO ? 3 : 1);
+    p[24] = (stereoMode << 2) | (sourceFreq << 6);
+    putInt32(p + 28, totalBytes);
+    p[32] = musicCrc >> 8;
+    p[33] = musicCrc & 0xFF;
+    uint16_t tagCrc = mp3Crc16(0, tag.data(), lameOffset + 34);
+    p[34] = tagCrc >> 8;
+    p[35] = tagCrc & 0xFF;
+    return tag;
+}
+
+static long gcdLong(long a, long b) {
+    while (b != 0) {
+        long t = a % b;
+        a = b;
+        b = t;
+    }
+    return a;
+}
+
 extern "C"
 JNIEXPORT void JNICALL
-Java_com_lee_lame_mp3_Mp3Util_initMp3Encoder(JNIEnv *env, jclass, jint in_sample,
-                                             jint in_channel, jint out_sample, jint quality) {
-    if (lgf != nullptr) {
-        lame_close(lgf);
-        lgf = nullptr;
+Java_com_lee_lame_mp3_Mp3Util_convert2Mp3Parallel(JNIEnv *env, jclass, jstring in_path,
+                                                  jint in_sample, jint in_channel,
+                                                  jstring mp3_path, jint out_sample,
+                                                  jboolean is_wav, jint quality, jint threads) {
+    char *cWav = JString2CStr(env, in_path);
+    char *cMp3 = JString2CStr(env, mp3_path);
+    LOG_I("inPath = %s", cWav);
+    LOG_I("mp3 = %s", cMp3);
+    auto begin = std::chrono::steady_clock::now();
+
+    Mp3Job job{cWav, is_wav ? 44 : 0, in_sample, in_channel, out_sample, quality};
+    FILE *fWav = fopen(cWav, "rb");
+    if (fWav == nullptr) {
+        LOG_I("open input failed: %s", cWav);
+        free(cWav);
+        free(cMp3);
+        publishJavaEnd(env);
+        return;
+    }
+    FILE *fMp3 = fopen(cMp3, "wb+");
+    if (fMp3 == nullptr) {
+        LOG_I("open output failed: %s", cMp3);
+        fclose(fWav);
+        free(cWav);
+        free(cMp3);
+        publishJavaEnd(env);
+        return;
+    }
+    fseek(fWav, 0, SEEK_END);
+    long fileSize = ftell(fWav);
+    fclose(fWav);
+    const long frameBytes = sizeof(short int) * in_channel;
+    long totalSamples = (fileSize - job.header) / frameBytes;
+
+    //以一个配置相同的实例获取帧长与实际输出采样率
+    lame_t lame = createSegmentLame(job);
+    long framesize = lame_get_framesize(lame);
+    long outRate = lame_get_out_samplerate(lame);
+
+    //分段边界需同时对齐输入采样与输出帧,重采样时取满足整除关系的最小帧数作为对齐单位
+    long unit = outRate / gcdLong(framesize * in_sample, outRate);
+    long unitSamples = unit * framesize * in_sample / outRate;
+    long units = (totalSamples + unitSamples - 1) / unitSamples;
+    long overlapUnits = (SEGMENT_OVERLAP_FRAMES + unit - 1) / unit;
+    long maxSegments = units / (overlapUnits * SEGMENT_MIN_OVERLAP_RATIO);
+    long segmentCount = threads < maxSegments ? threads : maxSegments;
+    if (segmentCount < 1) {
+        segmentCount = 1;
     }
-    lgf = lame_init();
 
-    lame_set_in_samplerate(lgf, in_sample);
-    lame_set_num_channels(lgf, in_channel);
-    lame_set_out_samplerate(lgf, out_sample);
-    lame_set_quality(lgf, quality);
-    lame_set_VBR(lgf, vbr_default); //使用VBR模式
+    std::vector<Mp3Segment> segments(segmentCount);
+    for (long i = 0; i < segmentCount; i++) {
+        Mp3Segment &seg = segments[i];
+        long startUnit = units * i / segmentCount;
+        long endUnit = units * (i + 1) / segmentCount;
+        long feedStart = startUnit - overlapUnits < 0 ? 0 : startUnit - overlapUnits;
+        long feedEnd = i == segmentCount - 1 ? units : endUnit + overlapUnits;
+        seg.inStart = feedStart * unitSamples;
+        seg.inEnd = feedEnd * unitSamples < totalSamples ? feedEnd * unitSamples : totalSamples;
+        seg.firstFrame = feedStart * unit;
+        seg.keepFrom = startUnit * unit;
+        seg.keepTo = i == segmentCount - 1 ? -1 : endUnit * unit;
+    }
+    long feedTotal = 0;
+    for (auto &seg : segments) {
+        feedTotal += seg.inEnd - seg.inStart;
+    }
 
-    lame_init_params(lgf);
+    std::vector<std::thread> workers;
+    for (auto &seg : segments) {
+        workers.emplace_back(encodeSegment, &job, &seg);
+    }
+    //进度只在当前线程回调java,前面的分段都已写出的分段立即写入文件并释放
+    Mp3Written written;
+    unsigned char first[4];
+    bool hasFirst = false;
+    bool ok = true;
+    size_t next = 0;
+    while (next < segments.size()) {
+        std::this_thread::sleep_for(std::chrono::milliseconds(100));
+        long done = 0;
+        for (auto &seg : segments) {
+            done += seg.done;
+        }
+        publishJavaProgress(env, feedTotal > 0 ? done * 100.0 / feedTotal : 100);
+        while (next < segments.size() && segments[next].finished) {
+            Mp3Segment &seg = segments[next++];
+            ok &= seg.ok;
+            if (!ok || seg.data.empty()) {
+                continue;
+            }
+            if (!hasFirst) {
+                //预留标签帧的位置,全部写完后回填
+                memcpy(first, seg.data.data(), 4);
+                hasFirst = true;
+                unsigned char header[4];
+                std::vector<unsigned char> placeholder(tagFrameHeader(first, header), 0);
+                fwrite(placeholder.data(), sizeof(unsigned char), placeholder.size(), fMp3);
+            }
+            fwrite(seg.data.data(), sizeof(unsigned char), seg.data.size(), fMp3);
+            written.frames.insert(written.frames.end(), seg.frames.begin(), seg.frames.end());
+            written.musicBytes += seg.data.size();
+            written.musicCrc = mp3Crc16(written.musicCrc, seg.data.data(), seg.data.size());
+            std::vector<unsigned char>().swap(seg.data);
+            std::vector<int>().swap(seg.frames);
+        }
+    }
+    for (auto &worker : workers) {
+        worker.join();
+    }
 
-    LOG_I("lame init");
+    if (ok && hasFirst) {
+        //写入VBR头,不写入会导致音频开始的时间节点后置50ms左右
+        std::vector<unsigned char> tag = buildTagFrame(lame, first, written, totalSamples);
+        fseek(fMp3, 0, SEEK_SET);
+        fwrite(tag.data(), sizeof(unsigned char), tag.size(), fMp3);
+        fclose(fMp3);
+    } else {
+        LOG_I("convert parallel failed");
+        fclose(fMp3);
+        remove(cMp3);
+    }
+    lame_close(lame);
+    free(cWav);
+    free(cMp3);
+    long cost = std::chrono::duration_cast<std::chrono::milliseconds>(
+            std::chrono::steady_clock::now() - begin).count();
+    LOG_I("convert parallel finish, segments = %ld, threads = %d, cost = %ldms", segmentCount,
+          threads, cost);
+    publishJavaEnd(env);
 }
 
-extern "C"
-JNIEXPORT jint JNICALL
-Java_com_lee_lame_mp3_Mp3Util_encodeMp3(JNIEnv *env, jclass, jshortArray pcm_left,
-                                        jshortArray pcm_right, jint size, jbyteArray mp3_buffer) {
-    jshort *j_buffer_l = env->GetShortArrayElements(pcm_left, nullptr);
+//######多线程整文件转换 END######//
 
-    jshort *j_buffer_r = env->GetShortArrayElements(pcm_right, nullptr);
+//######实时pcm流转换 START######//
 
-    const jsize mp3buffer_size = env->GetArrayLength(mp3_buffer);
+/**
+ * 实时转换实例,每个Mp3Encoder对象持有一个,指针保存在java对象中
+ * 同一实例的调用由java层同步,不同实例之间互不影响
+ */
+struct Mp3EncoderHandle {
+    lame_t lame;
+    int channels;
+    /**
+     * java数组拷贝到的native缓冲区,编码期间不持有java数组,不阻塞GC
+     */
+    std::vector<short int> pcm;
+    std::vector<unsigned char> mp3;
+};
 
-    jbyte *j_mp3buffer = env->GetByteArrayElements(mp3_buffer, nullptr);
+/**
+ * 保证缓冲区容量不小于size
+ */
+template<typename T>
+static T *scratch(std::vector<T> &buffer, size_t size) {
+    if (buffer.size() < size) {
+        buffer.resize(size);
+    }
+    return buffer.data();
+}
 
-    int result = lame_encode_buffer(lgf, j_buffer_l, j_buffer_r,
-                                    size, reinterpret_cast<unsigned char *>(j_mp3buffer),
-                                    mp3buffer_size);
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_lee_lame_mp3_Mp3Encoder_nativeCreate(JNIEnv *env, jclass, jint in_sample,
+                                              jint in_channel, jint out_sample, jint quality) {
+    lame_t lame = lame_init();
+    if (lame == nullptr) {
+        return 0;
+    }
+    lame_set_in_samplerate(lame, in_sample);
+    lame_set_num_channels(lame, in_channel);
+    lame_set_out_samplerate(lame, out_sample);
+    lame_set_quality(lame, quality);
+    lame_set_VBR(lame, vbr_default); //使用VBR模式
+    if (lame_init_params(lame) < 0) {
+        lame_close(lame);
+        return 0;
+    }
+    auto *handle = new Mp3EncoderHandle{lame, in_channel, {}, {}};
+    LOG_I("lame init");
+    return reinterpret_cast<jlong>(handle);
+}
 
-    env->ReleaseShortArrayElements(pcm_left, j_buffer_l, 0);
-    env->ReleaseShortArrayElements(pcm_right, j_buffer_r, 0);
-    env->ReleaseByteArrayElements(mp3_buffer, j_mp3buffer, 0);
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_lee_lame_mp3_Mp3Encoder_nativeEncode(JNIEnv *env, jclass, jlong handle,
+                                              jshortArray pcm_left, jshortArray pcm_right,
+                                              jint size, jbyteArray mp3_buffer) {
+    auto *encoder = reinterpret_cast<Mp3EncoderHandle *>(handle);
+    const jsize mp3buffer_size = env->GetArrayLength(mp3_buffer);
+    //拷贝到实例自己的缓冲区后编码,多个实例同时编码时不会长时间阻塞GC
+    short int *buffer = scratch(encoder->pcm, (size_t) size * 2);
+    env->GetShortArrayRegion(pcm_left, 0, size, buffer);
+    env->GetShortArrayRegion(pcm_right, 0, size, buffer + size);
+    unsigned char *mp3 = scratch(encoder->mp3, (size_t) mp3buffer_size);
 
+    int result = lame_encode_buffer(encoder->lame, buffer, buffer + size, size, mp3,
+                                    mp3buffer_size);
+    if (result > 0) {
+        env->SetByteArrayRegion(mp3_buffer, 0, result, reinterpret_cast<jbyte *>(mp3));
+    }
     return result;
 }
 
 extern "C"
-JNIEXPORT int JNICALL
-Java_com_lee_lame_mp3_Mp3Util_flushMp3(JNIEnv *env, jclass, jbyteArray mp3_buffer,
-                                       jstring mp3_path) {
+JNIEXPORT jint JNICALL
+Java_com_lee_lame_mp3_Mp3Encoder_nativeEncodeInterleaved(JNIEnv *env, jclass, jlong handle,
+                                                         jbyteArray pcm, jint size,
+                                                         jbyteArray mp3_buffer) {
+    auto *encoder = reinterpret_cast<Mp3EncoderHandle *>(handle);
+    const jsize mp3buffer_size = env->GetArrayLength(mp3_buffer);
+    //每声道的采样数
+    int samples = size / (int) (sizeof(short int) * encoder->channels);
+    short int *j_pcm = scratch(encoder->pcm, (size_t) samples * encoder->channels);
+    env->GetByteArrayRegion(pcm, 0, samples * encoder->channels * (int) sizeof(short int),
+                            reinterpret_cast<jbyte *>(j_pcm));
+    unsigned char *mp3 = scratch(encoder->mp3, (size_t) mp3buffer_size);
+
+    int result;
+    if (encoder->channels > 1) {
+        result = lame_encode_buffer_interleaved(encoder->lame, j_pcm, samples, mp3,
+                                                mp3buffer_size);
+    } else {
+        result = lame_encode_buffer(encoder->lame, j_pcm, j_pcm, samples, mp3, mp3buffer_size);
+    }
+    if (result > 0) {
+        env->SetByteArrayRegion(mp3_buffer, 0, result, reinterpret_cast<jbyte *>(mp3));
+    }
+    return result;
+}
 
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_lee_lame_mp3_Mp3Encoder_nativeEncodeDirect(JNIEnv *env, jclass, jlong handle,
+                                                    jobject pcm, jint pcm_offset, jint size,
+                                                    jobject mp3_buffer, jint mp3_offset,
+                                                    jint mp3_size) {
+    auto *encoder = reinterpret_cast<Mp3EncoderHandle *>(handle);
+    auto *j_pcm = (unsigned char *) env->GetDirectBufferAddress(pcm);
+    auto *j_mp3buffer = (unsigned char *) env->GetDirectBufferAddress(mp3_buffer);
+    if (j_pcm == nullptr || j_mp3buffer == nullptr) {
+        return -1;
+    }
+    //直接读写缓冲区内存,不经过任何拷贝
+    auto *samples_pcm = reinterpret_cast<short int *>(j_pcm + pcm_offset);
+    int samples = size / (int) (sizeof(short int) * encoder->channels);
+    if (encoder->channels > 1) {
+        return lame_encode_buffer_interleaved(encoder->lame, samples_pcm, samples,
+                                              j_mp3buffer + mp3_offset, mp3_size);
+    }
+    return lame_encode_buffer(encoder->lame, samples_pcm, samples_pcm, samples,
+                              j_mp3buffer + mp3_offset, mp3_size);
+}
 
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_lee_lame_mp3_Mp3Encoder_nativeFlush(JNIEnv *env, jclass, jlong handle,
+                                             jbyteArray mp3_buffer) {
+    auto *encoder = reinterpret_cast<Mp3EncoderHandle *>(handle);
     const jsize mp3buf_size = env->GetArrayLength(mp3_buffer);
     jbyte *j_mp3buf = env->GetByteArrayElements(mp3_buffer, nullptr);
-
-    int flush = lame_encode_flush(lgf, reinterpret_cast<unsigned char *>(j_mp3buf), mp3buf_size);
+    int flush = lame_encode_flush(encoder->lame, reinterpret_cast<unsigned char *>(j_mp3buf),
+                                  mp3buf_size);
+    env->ReleaseByteArrayElements(mp3_buffer, j_mp3buf, 0);
     LOG_D("lame flush %d", flush);
+    return flush;
+}
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_lee_lame_mp3_Mp3Encoder_nativeWriteTag(JNIEnv *env, jclass, jlong handle,
+                                                jstring mp3_path) {
+    auto *encoder = reinterpret_cast<Mp3EncoderHandle *>(handle);
     char *cMp3 = JString2CStr(env, mp3_path);
     FILE *fMp3 = fopen(cMp3, "rb+");
+    if (fMp3 != nullptr) {
+        //写入VBR头,不写入会导致音频开始的时间节点后置50ms左右
+        lame_mp3_tags_fid(encoder->lame, fMp3);
+        fclose(fMp3);
+    }
+    free(cMp3);
+    LOG_I("lame write tag over");
+}
 
-    //写入VBR头,不写入会导致音频开始的时间节点后置50ms左右
-    lame_mp3_tags_fid(lgf, fMp3);
-
-    env->ReleaseByteArrayElements(mp3_buffer, j_mp3buf, 0);
-    fclose(fMp3);
-    LOG_I("lame flush over");
-    return flush;
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_lee_lame_mp3_Mp3Encoder_nativeGetTag(JNIEnv *env, jclass, jlong handle,
+                                              jbyteArray tag_buffer) {
+    auto *encoder = reinterpret_cast<Mp3EncoderHandle *>(handle);
+    const jsize tag_size = env->GetArrayLength(tag_buffer);
+    jbyte *j_tag = env->GetByteArrayElements(tag_buffer, nullptr);
+    //生成与流开头占位帧等长的Xing/LAME标签帧,由调用方写回原位置,无需重新打开文件
+    size_t size = lame_get_lametag_frame(encoder->lame, reinterpret_cast<unsigned char *>(j_tag),
+                                         (size_t) tag_size);
+    env->ReleaseByteArrayElements(tag_buffer, j_tag, 0);
+    return (jint) size;
 }
 
 extern "C"
 JNIEXPORT void JNICALL
-Java_com_lee_lame_mp3_Mp3Util_closeMp3Encoder(JNIEnv *env, jclass) {
-    if (lgf != nullptr) {
-        lame_close(lgf);
-        lgf = nullptr;
-    }
+Java_com_lee_lame_mp3_Mp3Encoder_nativeClose(JNIEnv *env, jclass, jlong handle) {
+    auto *encoder = reinterpret_cast<Mp3EncoderHandle *>(handle);
+    lame_close(encoder->lame);
+    delete encoder;
     LOG_I("lame close");
-}
\ No newline at end of file
+}
+
+//######实时pcm流转换 END######//
+
+//######mp3解码 START######//
+
+//hip_decode1_headersB使用静态的输出缓冲区,不同实例的解码调用也需要互斥
+static std::mutex hipLock;
+//mpglib解码器自身的延迟采样数,与lame解码时使用的值一致
+#define MPGLIB_DECODER_DELAY 529
+//一帧每声道的最大采样数
+#define MPGLIB_MAX_SAMPLES 1152
+
+/**
+ * 流式解码实例,每个Mp3Decoder对象持有一个
+ * 解码出的交错pcm先放入hold,去掉编码延迟,并保留末尾填充长度的采样不输出,结束时丢弃
+ */
+struct Mp3DecoderHandle {
+    hip_t hip;
+    bool gapless;
+    bool parsed;
+    int sample_rate;
+    int channels;
+    int bitrate;
+    long total_samples;
+    //开头还需丢弃的采样帧数
+    int skip;
+    //末尾不输出的采样帧数
+    int keep;
+    std::vector<short> hold;
+    size_t hold_start;
+};
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_lee_lame_mp3_Mp3Decoder_nativeCreate(JNIEnv *env, jclass, jboolean gapless) {
+    hip_t hip = hip_decode_init();
+    if (hip == nullptr) {
+        return 0;
+    }
+    auto *handle = new Mp3DecoderHandle();
+    handle->hip = hip;
+    handle->gapless = gapless;
+    handle->hold.reserve(MPGLIB_MAX_SAMPLES * 2 * 2);
+    LOG_I("hip init");
+    return reinterpret_cast<jlong>(handle);
+}
+
+/**
+ * hold中是否还有可输出的数据,有则说明输出缓冲区已满
+ */
+static bool hasPending(Mp3DecoderHandle *decoder) {
+    return decoder->hold.size() - decoder->hold_start > (size_t) decoder->keep * decoder->channels;
+}
+
+/**
+ * 输出hold中可输出的数据,返回写入的字节数
+ */
+static int drainHold(Mp3DecoderHandle *decoder, unsigned char *out, int out_size) {
+    if (!hasPending(decoder)) {
+        return 0;
+    }
+    size_t keep = (size_t) decoder->keep * decoder->channels;
+    size_t available = decoder->hold.size() - decoder->hold_start;
+    size_t count = available - keep;
+    //只输出完整的采样帧
+    size_t frame = (size_t) decoder->channels;
+    size_t room = (size_t) out_size / sizeof(short) / frame * frame;
+    if (count > room) {
+        count = room;
+    }
+    memcpy(out, decoder->hold.data() + decoder->hold_start, count * sizeof(short));
+    decoder->hold_start += count;
+    if (decoder->hold_start == decoder->hold.size()) {
+        decoder->hold.clear();
+        decoder->hold_start = 0;
+    } else if (decoder->hold_start > decoder->hold.size() / 2) {
+        decoder->hold.erase(decoder->hold.begin(), decoder->hold.begin() + decoder->hold_start);
+        decoder->hold_start = 0;
+    }
+    return (int) (count * sizeof(short));
+}
+
+/**
+ * 送入数据(可为空)并解码一帧放入hold,返回本帧每声道的采样数,0表示需要更多数据,-1表示出错
+ * mpglib在内部保存送入的数据,之后以空数据调用即可继续解码
+ */
+static int decodeFrame(Mp3DecoderHandle *decoder, unsigned char *mp3, size_t size) {
+    short pcm_l[MPGLIB_MAX_SAMPLES];
+    short pcm_r[MPGLIB_MAX_SAMPLES];
+    mp3data_struct mp3data;
+    int enc_delay = -1;
+    int enc_padding = -1;
+    memset(&mp3data, 0, sizeof(mp3data));
+    int samples = hip_decode1_headersB(decoder->hip, mp3, size, pcm_l, pcm_r, &mp3data,
+                                       &enc_delay, &enc_padding);
+    if (mp3data.header_parsed && !decoder->parsed) {
+        decoder->parsed = true;
+        decoder->sample_rate = mp3data.samplerate;
+        decoder->channels = mp3data.stereo;
+        decoder->bitrate = mp3data.bitrate;
+        decoder->total_samples = (long) mp3data.nsamp;
+        if (decoder->gapless && enc_delay >= 0) {
+            //与lame解码时的处理一致:去掉编码延迟与解码器延迟,以及末尾的填充
+            decoder->skip = enc_delay + MPGLIB_DECODER_DELAY;
+            decoder->keep = enc_padding > MPGLIB_DECODER_DELAY ?
+                            enc_padding - MPGLIB_DECODER_DELAY : 0;
+        }
+    }
+    if (samples <= 0) {
+        return samples;
+    }
+    int start = 0;
+    if (decoder->skip > 0) {
+        start = decoder->skip < samples ? decoder->skip : samples;
+        decoder->skip -= start;
+    }
+    for (int i = start; i < samples; i++) {
+        decoder->hold.push_back(pcm_l[i]);
+        if (decoder->channels > 1) {
+            decoder->hold.push_back(pcm_r[i]);
+        }
+    }
+    return samples;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_lee_lame_mp3_Mp3Decoder_nativeDecode(JNIEnv *env, jclass, jlong handle,
+                                              jobject mp3_buffer, jint mp3_offset, jint mp3_size,
+                                              jobject pcm, jint pcm_offset, jint pcm_size) {
+    auto *decoder = reinterpret_cast<Mp3DecoderHandle *>(handle);
+    auto *j_pcm = (unsigned char *) env->GetDirectBufferAddress(pcm);
+    auto *j_mp3 = mp3_size > 0 ? (unsigned char *) env->GetDirectBufferAddress(mp3_buffer)
+                               : nullptr;
+    if (j_pcm == nullptr || (mp3_size > 0 && j_mp3 == nullptr)) {
+        return -2;
+    }
+    j_pcm += pcm_offset;
+    std::lock_guard<std::mutex> lock(hipLock);
+    //输入数据由mpglib内部拷贝保存,这里一次送入,之后每次解码一帧直到需要更多数据或输出已满
+    unsigned char *input = mp3_size > 0 ? j_mp3 + mp3_offset : nullptr;
+    size_t input_size = (size_t) mp3_size;
+    int written = drainHold(decoder, j_pcm, pcm_size);
+    while (input != nullptr || !hasPending(decoder)) {
+        int samples = decodeFrame(decoder, input, input_size);
+        input = nullptr;
+        input_size = 0;
+        if (samples < 0) {
+            return -1;
+        }
+        if (samples == 0) {
+            break;
+        }
+        written += drainHold(decoder, j_pcm + written, pcm_size - written);
+    }
+    return written;
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_lee_lame_mp3_Mp3Decoder_nativeFinish(JNIEnv *env, jclass, jlong handle,
+                                              jobject pcm, jint pcm_offset, jint pcm_size) {
+    auto *decoder = reinterpret_cast<Mp3DecoderHandle *>(handle);
+    auto *j_pcm = (unsigned char *) env->GetDirectBufferAddress(pcm);
+    if (j_pcm == nullptr) {
+        return -2;
+    }
+    std::lock_guard<std::mutex> lock(hipLock);
+    //输入结束,继续解码mpglib中缓存的完整帧,末尾不完整的帧丢弃
+    int written = drainHold(decoder, j_pcm + pcm_offset, pcm_size);
+    while (!hasPending(decoder)) {
+        if (decodeFrame(decoder, nullptr, 0) <= 0) {
+            break;
+        }
+        written += drainHold(decoder, j_pcm + pcm_offset + written, pcm_size - written);
+    }
+    return written;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_lee_lame_mp3_Mp3Decoder_nativeGetFormat(JNIEnv *env, jclass, jlong handle,
+                                                 jlongArray format) {
+    auto *decoder = reinterpret_cast<Mp3DecoderHandle *>(handle);
+    if (!decoder->parsed) {
+        return JNI_FALSE;
+    }
+    jlong values[] = {decoder->sample_rate, decoder->channels, decoder->bitrate,
+                      decoder->total_samples};
+    env->SetLongArrayRegion(format, 0, 4, values);
+    return JNI_TRUE;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_lee_lame_mp3_Mp3Decoder_nativeClose(JNIEnv *env, jclass, jlong handle) {
+    auto *decoder = reinterpret_cast<Mp3DecoderHandle *>(handle);
+    hip_decode_exit(decoder->hip);
+    delete decoder;
+    LOG_I("hip close");
+}
+
+//######mp3解码 END######//
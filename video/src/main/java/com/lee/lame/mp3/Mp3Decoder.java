@@ -0,0 +1,164 @@
+package com.lee.lame.mp3;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * mp3流解码为pcm,基于lame的mpglib接口(hip_decode1_headersB),不依赖MediaCodec,可在普通JVM上运行,
+ * 支持MPEG-1/2/2.5的Layer I/II/III
+ * 输入与输出均为direct缓冲区,native直接读写,输出为16位小端交错pcm
+ * 同一实例的方法可在多个线程调用,mpglib解码时使用静态缓冲区,不同实例的解码调用在native中互斥,
+ * 使用完毕后需调用close释放native资源
+ */
+public class Mp3Decoder implements Closeable {
+    static {
+        System.loadLibrary("lame-lib");
+    }
+
+    /**
+     * 一帧解码后的最大字节数,1152采样*2声道*2字节
+     */
+    public static final int MAX_FRAME_BYTES = 1152 * 2 * 2;
+
+    /**
+     * native解码器指针,为0表示已关闭
+     */
+    private long handle;
+
+    /**
+     * 采样率,声道数,码率(kbps),总采样数(没有Xing头时为0)
+     */
+    private final long[] format = new long[4];
+    private boolean formatParsed;
+
+    public Mp3Decoder() {
+        this(true);
+    }
+
+    /**
+     * @param gapless 是否根据lame的VBR头去掉开头的编码延迟与末尾的填充,使解码结果与编码前的pcm对齐
+     */
+    public Mp3Decoder(boolean gapless) {
+        handle = nativeCreate(gapless);
+        if (handle == 0) {
+            throw new IllegalStateException("hip init failed");
+        }
+    }
+
+    /**
+     * 解码mp3流,mp3中position至limit的数据全部送入解码器(由native缓存),position移到limit
+     * 解码结果写入pcm的position处,position随之后移,pcm空间不足时剩余的帧保留在解码器中,
+     * 之后可传入没有剩余数据的mp3缓冲区继续取出
+     *
+     * @param mp3 mp3流数据,必须为direct缓冲区
+     * @param pcm 解码得到的pcm,必须为direct缓冲区,剩余空间建议不小于{@link #MAX_FRAME_BYTES}
+     * @return 写入pcm的字节数,0表示需要更多mp3数据
+     */
+    public synchronized int decode(ByteBuffer mp3, ByteBuffer pcm) {
+        if (!mp3.isDirect() || !pcm.isDirect()) {
+            throw new IllegalArgumentException("mp3 and pcm must be direct buffers");
+        }
+        int size = nativeDecode(checkHandle(), mp3, mp3.position(), mp3.remaining(),
+                pcm, pcm.position(), pcm.remaining());
+        if (size < 0) {
+            throw new IllegalStateException("mp3 decode error " + size);
+        }
+        mp3.position(mp3.limit());
+        pcm.position(pcm.position() + size);
+        return size;
+    }
+
+    /**
+     * mp3流已全部送入后调用,取出解码器中剩余的数据并丢弃末尾的填充,返回0前需重复调用
+     *
+     * @param pcm 解码得到的pcm,必须为direct缓冲区
+     * @return 写入pcm的字节数,0表示已全部取出
+     */
+    public synchronized int finish(ByteBuffer pcm) {
+        if (!pcm.isDirect()) {
+            throw new IllegalArgumentException("pcm must be a direct buffer");
+        }
+        int size = nativeFinish(checkHandle(), pcm, pcm.position(), pcm.remaining());
+        if (size < 0) {
+            throw new IllegalStateException("mp3 decode error " + size);
+        }
+        pcm.position(pcm.position() + size);
+        return size;
+    }
+
+    /**
+     * @return 采样率,解析到第一帧之前为0
+     */
+    public synchronized int getSampleRate() {
+        return (int) getFormat()[0];
+    }
+
+    /**
+     * @return 声道数,解析到第一帧之前为0
+     */
+    public synchronized int getChannels() {
+        return (int) getFormat()[1];
+    }
+
+    /**
+     * @return 第一帧的码率,单位kbps
+     */
+    public synchronized int getBitrate() {
+        return (int) getFormat()[2];
+    }
+
+    /**
+     * @return Xing头中记录的每声道总采样数(包含编码延迟与填充),没有Xing头时为0
+     */
+    public synchronized long getTotalSamples() {
+        return getFormat()[3];
+    }
+
+    /**
+     * 释放native解码器,可重复调用
+     */
+    @Override
+    public synchronized void close() {
+        if (handle != 0) {
+            nativeClose(handle);
+            handle = 0;
+        }
+    }
+
+    /**
+     * 未调用close时兜底释放,java.lang.ref.Cleaner需要android 13,无法使用
+     */
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            close();
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private long[] getFormat() {
+        if (!formatParsed) {
+            formatParsed = nativeGetFormat(checkHandle(), format);
+        }
+        return format;
+    }
+
+    private long checkHandle() {
+        if (handle == 0) {
+            throw new IllegalStateException("Mp3Decoder is closed");
+        }
+        return handle;
+    }
+
+    private static native long nativeCreate(boolean gapless);
+
+    private static native int nativeDecode(long handle, ByteBuffer mp3, int mp3Offset, int mp3Size,
+                                           ByteBuffer pcm, int pcmOffset, int pcmSize);
+
+    private static native int nativeFinish(long handle, ByteBuffer pcm, int pcmOffset, int pcmSize);
+
+    private static native boolean nativeGetFormat(long handle, long[] format);
+
+    private static native void nativeClose(long handle);
+}
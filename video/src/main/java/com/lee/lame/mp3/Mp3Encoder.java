@@ -0,0 +1,165 @@
+package com.lee.lame.mp3;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * 实时pcm转mp3编码器
+ * 每个实例持有独立的native编码器,可同时存在多个实例分别编码不同的音源
+ * 同一实例的方法可在多个线程调用,使用完毕后需调用close释放native资源
+ */
+public class Mp3Encoder implements Closeable {
+    static {
+        System.loadLibrary("lame-lib");
+    }
+
+    /**
+     * 编码参数
+     */
+    final Mp3Data mp3;
+
+    /**
+     * native编码器指针,为0表示已关闭
+     */
+    private long handle;
+
+    public Mp3Encoder(int inSample, int inChannel, int outSample, String mp3Path) {
+        this(inSample, inChannel, outSample, 5, mp3Path);
+    }
+
+    /**
+     * @param inSample  pcm采样率
+     * @param inChannel pcm通道数
+     * @param outSample 输出采样率
+     * @param quality   转换质量0~9
+     * @param mp3Path   输出MP3的路径,转换完成时需要添加vbr头信息,为空时不写入
+     */
+    public Mp3Encoder(int inSample, int inChannel, int outSample, int quality, String mp3Path) {
+        mp3 = new Mp3Data(inSample, inChannel, outSample, quality, mp3Path);
+        handle = nativeCreate(inSample, inChannel, outSample, quality);
+        if (handle == 0) {
+            throw new IllegalStateException("lame init failed");
+        }
+    }
+
+    /**
+     * 将交错的pcm流转码为mp3流
+     *
+     * @param pcm       pcm流数据,16位小端
+     * @param size      pcm流数据实际长度
+     * @param mp3Buffer 转换后的mp3流
+     * @return 转码得到的mp3数据大小
+     */
+    public synchronized int encode(byte[] pcm, int size, byte[] mp3Buffer) {
+        return nativeEncodeInterleaved(checkHandle(), pcm, size, mp3Buffer);
+    }
+
+    /**
+     * 将交错的pcm流转码为mp3流,native直接读写缓冲区内存,java层不产生任何分配与拷贝
+     * 读取pcm中position至limit的完整采样帧,编码结果写入mp3Buffer的position处,两者的position随之后移
+     *
+     * @param pcm       pcm流数据,16位小端,必须为direct缓冲区,末尾不完整的采样帧保留在缓冲区中
+     * @param mp3Buffer 转换后的mp3流,必须为direct缓冲区,剩余空间建议不小于1.25*采样数+7200字节
+     * @return 转码得到的mp3数据大小,小于0表示出错(-1为mp3Buffer空间不足)
+     */
+    public synchronized int encode(ByteBuffer pcm, ByteBuffer mp3Buffer) {
+        if (!pcm.isDirect() || !mp3Buffer.isDirect()) {
+            throw new IllegalArgumentException("pcm and mp3Buffer must be direct buffers");
+        }
+        int frameBytes = 2 * mp3.inChannel;
+        int size = pcm.remaining() / frameBytes * frameBytes;
+        int result = nativeEncodeDirect(checkHandle(), pcm, pcm.position(), size,
+                mp3Buffer, mp3Buffer.position(), mp3Buffer.remaining());
+        if (result >= 0) {
+            pcm.position(pcm.position() + size);
+            mp3Buffer.position(mp3Buffer.position() + result);
+        }
+        return result;
+    }
+
+    /**
+     * 将左右声道分离的pcm流转码为mp3流
+     *
+     * @param pcmLeft   左声道数据
+     * @param pcmRight  右声道数据,单声道时传入左声道数据
+     * @param size      每个声道的采样数
+     * @param mp3Buffer 转换后的mp3流
+     * @return 转码得到的mp3数据大小
+     */
+    public synchronized int encode(short[] pcmLeft, short[] pcmRight, int size, byte[] mp3Buffer) {
+        return nativeEncode(checkHandle(), pcmLeft, pcmRight, size, mp3Buffer);
+    }
+
+    /**
+     * 关闭前刷新缓冲区数据,设置了输出路径时同时写入vbr头信息
+     *
+     * @param mp3Buffer 转换后的mp3流
+     * @return 返回缓冲区的数据大小
+     */
+    public synchronized int flush(byte[] mp3Buffer) {
+        long handle = checkHandle();
+        int size = nativeFlush(handle, mp3Buffer);
+        if (mp3.outPath != null) {
+            nativeWriteTag(handle, mp3.outPath);
+        }
+        return size;
+    }
+
+    /**
+     * 获取Xing/LAME标签帧,需在flush之后调用
+     * 编码时流的第一帧为等长的占位帧,将标签帧写回该位置即可,无需按路径重新打开文件
+     *
+     * @param tagBuffer 标签帧缓冲区,长度不小于一个mp3帧(2881字节)
+     * @return 标签帧大小,为0表示没有标签,大于缓冲区长度表示缓冲区不足
+     */
+    public synchronized int getLameTag(byte[] tagBuffer) {
+        return nativeGetTag(checkHandle(), tagBuffer);
+    }
+
+    /**
+     * 释放native编码器,可重复调用
+     */
+    @Override
+    public synchronized void close() {
+        if (handle != 0) {
+            nativeClose(handle);
+            handle = 0;
+        }
+    }
+
+    /**
+     * 未调用close时兜底释放,java.lang.ref.Cleaner需要android 13,无法使用
+     */
+    @Override
+    protected void finalize() throws Throwable {
+        try {
+            close();
+        } finally {
+            super.finalize();
+        }
+    }
+
+    private long checkHandle() {
+        if (handle == 0) {
+            throw new IllegalStateException("Mp3Encoder is closed");
+        }
+        return handle;
+    }
+
+    private static native long nativeCreate(int inSample, int inChannel, int outSample, int quality);
+
+    private static native int nativeEncode(long handle, short[] pcmLeft, short[] pcmRight, int size, byte[] mp3Buffer);
+
+    private static native int nativeEncodeInterleaved(long handle, byte[] pcm, int size, byte[] mp3Buffer);
+
+    private static native int nativeEncodeDirect(long handle, ByteBuffer pcm, int pcmOffset, int size,
+                                                 ByteBuffer mp3Buffer, int mp3Offset, int mp3Size);
+
+    private static native int nativeFlush(long handle, byte[] mp3Buffer);
+
+    private static native void nativeWriteTag(long handle, String mp3Path);
+
+    private static native int nativeGetTag(long handle, byte[] tagBuffer);
+
+    private static native void nativeClose(long handle);
+}
@@ -1,8 +1,6 @@
 package com.lee.lame.mp3;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
 
 /**
  * mp3工具类
@@ -42,6 +40,19 @@ public class Mp3Util {
         convert2Mp3(pcmPath, inSample, inChannel, mp3Path, outSample, false, quality);
     }
 
+    /**
+     * 多线程将pcm文件转换为mp3,适用于较长的文件
+     *
+     * @param threads 线程数量,小于等于1时单线程转换
+     */
+    public static void convert4Pcm(String pcmPath, int inSample, int inChannel, String mp3Path, int outSample, int quality, int threads) {
+        if (threads <= 1) {
+            convert2Mp3(pcmPath, inSample, inChannel, mp3Path, outSample, false, quality);
+        } else {
+            convert2Mp3Parallel(pcmPath, inSample, inChannel, mp3Path, outSample, false, quality, threads);
+        }
+    }
+
     //将wav文件转换为mp3
     public static void convert4Wav(String wavPath, int inSample, int inChannel, String mp3Path, int outSample) {
         convert4Wav(wavPath, inSample, inChannel, mp3Path, outSample, 5);
@@ -51,6 +62,19 @@ public class Mp3Util {
         convert2Mp3(wavPath, inSample, inChannel, mp3Path, outSample, true, quality);
     }
 
+    /**
+     * 多线程将wav文件转换为mp3,适用于较长的文件
+     *
+     * @param threads 线程数量,小于等于1时单线程转换
+     */
+    public static void convert4Wav(String wavPath, int inSample, int inChannel, String mp3Path, int outSample, int quality, int threads) {
+        if (threads <= 1) {
+            convert2Mp3(wavPath, inSample, inChannel, mp3Path, outSample, true, quality);
+        } else {
+            convert2Mp3Parallel(wavPath, inSample, inChannel, mp3Path, outSample, true, quality, threads);
+        }
+    }
+
     /**
      * 将wav或pcm文件转换为mp3
      *
@@ -64,6 +88,15 @@ public class Mp3Util {
      */
     private static native void convert2Mp3(String inPath, int inSample, int inChannel, String mp3Path, int outSample, boolean isWav, int quality);
 
+    /**
+     * 多线程将wav或pcm文件转换为mp3
+     * 文件按mp3帧边界分为多段,每段由独立的lame实例编码,相邻段重叠编码少量帧后丢弃重叠部分再拼接,
+     * 为保证拼接处每帧数据自包含,该模式关闭了比特池,同码率下音质略低于单线程转换
+     *
+     * @param threads 线程数量,文件较短时实际线程数会减少
+     */
+    private static native void convert2Mp3Parallel(String inPath, int inSample, int inChannel, String mp3Path, int outSample, boolean isWav, int quality, int threads);
+
     /**
      * JNI回调函数
      *
@@ -84,14 +117,17 @@ public class Mp3Util {
     //######整个文件的转换 END######//
 
     //######实时pcm流转换 START######//
-    private static Mp3Data mp3;
+    /**
+     * 兼容旧接口的默认实例,需要同时编码多路音源时直接使用{@link Mp3Encoder}
+     */
+    private static Mp3Encoder mp3;
 
     public static void initRealTimeMp3(int inSample, int inChannel, int outSample, String mp3Path) {
         initRealTimeMp3(inSample, inChannel, outSample, 5, mp3Path);
     }
 
     /**
-     * 初始化一个实时转换pcm到mp3的实例
+     * 初始化一个实时转换pcm到mp3的实例,已存在的默认实例会被关闭
      *
      * @param inSample  pcm采样率
      * @param inChannel pcm通道数
@@ -99,9 +135,11 @@ public class Mp3Util {
      * @param quality   转换质量0~9
      * @param mp3Path   输出MP3的路径,转换完成时需要添加vbr头信息
      */
-    public static void initRealTimeMp3(int inSample, int inChannel, int outSample, int quality, String mp3Path) {
-        mp3 = new Mp3Data(inSample, inChannel, outSample, quality, mp3Path);
-        initMp3Encoder(inSample, inChannel, outSample, quality);
+    public static synchronized void initRealTimeMp3(int inSample, int inChannel, int outSample, int quality, String mp3Path) {
+        if (mp3 != null) {
+            mp3.close();
+        }
+        mp3 = new Mp3Encoder(inSample, inChannel, outSample, quality, mp3Path);
     }
 
     /**
@@ -113,123 +151,41 @@ public class Mp3Util {
      * @return 转码得到的mp3数据大小
      */
     public static int encodeRealTimeMp3(byte[] pcm, int size, byte[] mp3Buffer) {
-        return encodeMp3(pcm, mp3.inChannel, size, mp3Buffer);
-    }
-
-    /**
-     * 关闭前刷新缓冲区数据
-     *
-     * @param mp3Buffer 转换后的mp3流
-     * @return 返回缓冲区的数据大小
-     */
-    public static int flushRealTimeMp3(byte[] mp3Buffer) {
-        return flushMp3(mp3Buffer, mp3.outPath);
-    }
-
-    /**
-     * 关闭实例对象
-     */
-    public static void closeRealTimeMp3() {
-        closeMp3Encoder();
-        mp3 = null;
-    }
-
-
-    /**
-     * 初始化一个实时转换pcm到mp3的实例
-     *
-     * @param inSample  pcm采样率
-     * @param inChannel pcm通道数
-     * @param outSample 输出采样率
-     * @param quality   转换质量0~9
-     */
-    private static native void initMp3Encoder(int inSample, int inChannel, int outSample, int quality);
-
-
-    private static int encodeMp3(byte[] pcm, int channel, int size, byte[] mp3Buffer) {
-        byte[] pcmData;
-        if (size != pcm.length) {
-            pcmData = new byte[size];
-            System.arraycopy(pcm, 0, pcmData, 0, size);
-        } else {
-            pcmData = pcm;
-        }
-        short[] pcmLeft;
-        short[] pcmRight;
-        if (channel > 1) {
-            pcmLeft = byte2Short(channelSingleLeft(pcmData, channel));
-            pcmRight = byte2Short(channelSingleRight(pcmData, channel));
-        } else {
-            pcmLeft = byte2Short(pcmData);
-            pcmRight = pcmLeft;
-        }
-        int pcmSize = pcmLeft.length;
-        return encodeMp3(pcmLeft, pcmRight, pcmSize, mp3Buffer);
+        return mp3.encode(pcm, size, mp3Buffer);
     }
 
     /**
-     * 实时将pcm流转码为mp3流
+     * 实时将pcm流转码为mp3流,两个缓冲区均需为direct缓冲区,详见{@link Mp3Encoder#encode(ByteBuffer, ByteBuffer)}
      *
-     * @param pcmLeft   左声道数据
-     * @param pcmRight  右声道数据
-     * @param size      pcm流数据实际长度
+     * @param pcm       pcm流数据
      * @param mp3Buffer 转换后的mp3流
      * @return 转码得到的mp3数据大小
      */
-    private static native int encodeMp3(short[] pcmLeft, short[] pcmRight, int size, byte[] mp3Buffer);
+    public static int encodeRealTimeMp3(ByteBuffer pcm, ByteBuffer mp3Buffer) {
+        return mp3.encode(pcm, mp3Buffer);
+    }
 
     /**
      * 关闭前刷新缓冲区数据
      *
      * @param mp3Buffer 转换后的mp3流
-     * @param mp3Path   需要mp3文件的路径,写入MP3 vbr头信息,这样MP3音频波开始的位置不会发生后置偏移,同时长度信息也会准确
      * @return 返回缓冲区的数据大小
      */
-    private static native int flushMp3(byte[] mp3Buffer, String mp3Path);
-
-    /**
-     * 关闭实例对象
-     */
-    private static native void closeMp3Encoder();
-
-    //######实时pcm流转换 END######//
-
-    /**
-     * byte数组转short
-     */
-    private static short[] byte2Short(byte[] src) {
-        ShortBuffer buffer = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
-        short[] result = new short[buffer.capacity()];
-        buffer.get(result);
-        return result;
-    }
-
-    /**
-     * 获取左声道数据
-     */
-    private static byte[] channelSingleLeft(byte[] chunk, int channels) {
-        byte[] singleChunk = new byte[chunk.length / channels];
-
-        for (int i = 0, count = 0; i < chunk.length; count += 2, i += channels * 2) {
-            singleChunk[count] = chunk[i];
-            singleChunk[count + 1] = chunk[i + 1];
-        }
-        return singleChunk;
+    public static int flushRealTimeMp3(byte[] mp3Buffer) {
+        return mp3.flush(mp3Buffer);
     }
 
     /**
-     * 获取右声道数据
+     * 关闭实例对象
      */
-    private static byte[] channelSingleRight(byte[] chunk, int channels) {
-        byte[] singleChunk = new byte[chunk.length / channels];
-
-        for (int i = 0, count = 0; i < chunk.length; count += 2, i += channels * 2) {
-            singleChunk[count] = chunk[i + 2];
-            singleChunk[count + 1] = chunk[i + 3];
+    public static synchronized void closeRealTimeMp3() {
+        if (mp3 != null) {
+            mp3.close();
+            mp3 = null;
         }
-        return singleChunk;
     }
 
+    //######实时pcm流转换 END######//
 
     public static double getVolume(byte[] buffer, int size) {
         long v = 0;
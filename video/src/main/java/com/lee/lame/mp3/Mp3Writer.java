@@ -0,0 +1,259 @@
+package com.lee.lame.mp3;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 实时pcm转mp3并直接写入输出,适用于长时间录音
+ * 编码结果先攒到64KB的缓冲区,由后台写线程批量写出,避免每20ms一次的小块写入
+ * 输出为FileChannel时,关闭时在原位置写回VBR头,不需要按路径重新打开文件
+ * 写入方法需在同一线程调用,使用完毕后需调用close
+ */
+public class Mp3Writer implements Closeable {
+    /**
+     * 缓冲区攒够该大小后交给写线程
+     */
+    private static final int BATCH_SIZE = 64 * 1024;
+    /**
+     * 单次编码的最大采样数,保证编码结果(1.25*采样数+7200)不超出缓冲区剩余空间
+     */
+    private static final int MAX_SAMPLES = 16 * 1024;
+    private static final int BUFFER_SIZE = BATCH_SIZE + MAX_SAMPLES * 5 / 4 + 7200;
+    /**
+     * 缓冲区数量,写线程跟不上时编码线程等待空闲缓冲区
+     */
+    private static final int BUFFER_COUNT = 4;
+    /**
+     * mp3帧的最大长度
+     */
+    private static final int MAX_FRAME_SIZE = 2881;
+    /**
+     * 通知写线程结束
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final Mp3Encoder encoder;
+    private final WritableByteChannel channel;
+    /**
+     * 可随机写的输出,为空时不写回VBR头
+     */
+    private final FileChannel fileChannel;
+    /**
+     * 流开始的位置,VBR占位帧所在位置
+     */
+    private final long startPosition;
+    /**
+     * 一个完整采样帧的字节数
+     */
+    private final int frameBytes;
+
+    private final BlockingQueue<ByteBuffer> pending = new ArrayBlockingQueue<>(BUFFER_COUNT + 1);
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private final Thread writer;
+    private ByteBuffer current;
+    private int allocated;
+    /**
+     * byte[]输入时的中转缓冲区
+     */
+    private ByteBuffer pcmBuffer;
+    private volatile IOException error;
+    private boolean closed;
+
+    public Mp3Writer(int inSample, int inChannel, int outSample, String mp3Path) throws IOException {
+        this(inSample, inChannel, outSample, 5, new FileOutputStream(mp3Path));
+    }
+
+    /**
+     * @param out 输出流,为FileOutputStream时关闭时写回VBR头,关闭时一并关闭
+     */
+    public Mp3Writer(int inSample, int inChannel, int outSample, int quality, OutputStream out) throws IOException {
+        this(inSample, inChannel, outSample, quality,
+                out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out));
+    }
+
+    /**
+     * @param inSample  pcm采样率
+     * @param inChannel pcm通道数
+     * @param outSample 输出采样率
+     * @param quality   转换质量0~9
+     * @param channel   输出通道,从当前位置开始写入,为FileChannel时关闭时写回VBR头,关闭时一并关闭
+     */
+    public Mp3Writer(int inSample, int inChannel, int outSample, int quality, WritableByteChannel channel) throws IOException {
+        this.channel = channel;
+        fileChannel = channel instanceof FileChannel ? (FileChannel) channel : null;
+        startPosition = fileChannel != null ? fileChannel.position() : 0;
+        frameBytes = 2 * inChannel;
+        encoder = new Mp3Encoder(inSample, inChannel, outSample, quality, null);
+        current = obtainBuffer();
+        writer = new Thread(this::writeLoop, "Mp3Writer");
+        writer.start();
+    }
+
+    /**
+     * 编码交错的pcm流并写入输出
+     *
+     * @param pcm  pcm流数据,16位小端
+     * @param size pcm流数据实际长度
+     */
+    public void write(byte[] pcm, int size) throws IOException {
+        write(pcm, 0, size);
+    }
+
+    public synchronized void write(byte[] pcm, int offset, int size) throws IOException {
+        if (pcmBuffer == null) {
+            pcmBuffer = ByteBuffer.allocateDirect(MAX_SAMPLES * frameBytes);
+        }
+        int end = offset + size - size % frameBytes;
+        while (offset < end) {
+            int length = Math.min(pcmBuffer.capacity(), end - offset);
+            pcmBuffer.clear();
+            pcmBuffer.put(pcm, offset, length);
+            pcmBuffer.flip();
+            write(pcmBuffer);
+            offset += length;
+        }
+    }
+
+    /**
+     * 编码交错的pcm流并写入输出,读取position至limit的完整采样帧,末尾不完整的采样帧保留在缓冲区中
+     *
+     * @param pcm pcm流数据,16位小端,必须为direct缓冲区
+     */
+    public synchronized void write(ByteBuffer pcm) throws IOException {
+        checkState();
+        int limit = pcm.limit();
+        try {
+            while (pcm.remaining() >= frameBytes) {
+                if (current == null) {
+                    current = obtainBuffer();
+                }
+                pcm.limit(Math.min(limit, pcm.position() + MAX_SAMPLES * frameBytes));
+                int result = encoder.encode(pcm, current);
+                if (result < 0) {
+                    throw new IOException("lame encode error " + result);
+                }
+                pcm.limit(limit);
+                if (current.position() >= BATCH_SIZE) {
+                    submit();
+                }
+            }
+        } finally {
+            pcm.limit(limit);
+        }
+    }
+
+    /**
+     * 刷新编码器剩余数据,等待写线程写完,写回VBR头并关闭输出,可重复调用
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            byte[] tail = new byte[7200];
+            int size = encoder.flush(tail);
+            if (size > 0 && current != null) {
+                current.put(tail, 0, size);
+            }
+            if (current != null) {
+                pending.put(current);
+                current = null;
+            }
+            pending.put(END);
+            writer.join();
+            if (error != null) {
+                throw error;
+            }
+            if (fileChannel != null) {
+                //写回VBR头,不写入会导致音频开始的时间节点后置50ms左右
+                byte[] tag = new byte[MAX_FRAME_SIZE];
+                int tagSize = encoder.getLameTag(tag);
+                if (tagSize > 0 && tagSize <= tag.length) {
+                    ByteBuffer buffer = ByteBuffer.wrap(tag, 0, tagSize);
+                    long position = startPosition;
+                    while (buffer.hasRemaining()) {
+                        position += fileChannel.write(buffer, position);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            writer.interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            encoder.close();
+            channel.close();
+        }
+    }
+
+    /**
+     * 当前缓冲区交给写线程,并换一个空闲缓冲区
+     */
+    private void submit() throws IOException {
+        try {
+            pending.put(current);
+            current = null;
+            current = obtainBuffer();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    private ByteBuffer obtainBuffer() throws IOException {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            if (allocated < BUFFER_COUNT) {
+                allocated++;
+                return ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            try {
+                buffer = free.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        return buffer;
+    }
+
+    private void checkState() throws IOException {
+        if (closed) {
+            throw new IOException("Mp3Writer is closed");
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteBuffer buffer = pending.take();
+                if (buffer == END) {
+                    break;
+                }
+                buffer.flip();
+                try {
+                    //出错后只回收缓冲区,由编码线程在下次写入时抛出异常
+                    while (error == null && buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+                buffer.clear();
+                free.offer(buffer);
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
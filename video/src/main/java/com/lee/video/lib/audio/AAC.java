@@ -6,9 +6,10 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.util.Log;
 
+import com.lee.video.lib.repack.FrameObject;
+import com.lee.video.lib.repack.FrameQueue;
+
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -87,9 +88,9 @@ public class AAC {
     private final ScheduledExecutorService pool = Executors.newScheduledThreadPool(2);
 
     /**
-     * 编解码数据队列-缓存当前待编解码的数据
+     * 编解码数据队列-缓存当前待编解码的数据,队列满时压入方阻塞等待
      */
-    private final List<byte[]> audioQueue = new ArrayList<>();
+    private final FrameQueue audioQueue = new FrameQueue(32, 4096);
 
     /**
      * 编解码任务等待时间-单位为微秒,1000微秒为1毫秒
@@ -104,7 +105,7 @@ public class AAC {
     /**
      * 停止编解码器,因为缓存的原因,所以需要将数据完全处理完毕
      */
-    private boolean isStopTask = false;
+    private volatile boolean isStopTask = false;
 
     /**
      * 压入线程是否终止
@@ -233,24 +234,24 @@ public class AAC {
             dos = false;
             long pts = 0;
             while (true) {
-                if (audioQueue.size() > 0) {
+                //队列为空时阻塞等待,不再空转
+                FrameObject frame = audioQueue.take(waitTime);
+                if (frame != null) {
                     int index = codec.dequeueInputBuffer(waitTime);
                     if (index < 0) {
+                        //数据保留在队列中下次再压入
                         continue;
                     }
                     ByteBuffer inputBuffer = codec.getInputBuffer(index);
                     if (inputBuffer == null) {
                         continue;
                     }
-                    byte[] inData = audioQueue.remove(0);
-                    if (inData != null) {
-                        inputBuffer.put(inData, 0, inData.length);
-                        codec.queueInputBuffer(index, 0, inData.length, pts, 0);
-                        pts += (inData.length / 88.2f) * 1000;
-                    } else {
-                        codec.queueInputBuffer(index, 0, 0, 0, 0);
-                    }
-                } else if (isStopTask) {
+                    int size = frame.getBufferInfo().size;
+                    inputBuffer.put(frame.getBuffer());
+                    codec.queueInputBuffer(index, 0, size, pts, 0);
+                    pts += (size / 88.2f) * 1000;
+                    audioQueue.release();
+                } else if (isStopTask && audioQueue.peek() == null) {
                     //停止了任务,压入结束标志
                     int index = codec.dequeueInputBuffer(waitTime);
                     if (index < 0) {
@@ -334,9 +335,8 @@ public class AAC {
             //编码器未配置
             return;
         }
-        byte[] s = new byte[size];
-        System.arraycopy(data, 0, s, 0, size);
-        audioQueue.add(s);
+        //数据拷贝至队列的复用缓冲区,队列满时阻塞
+        audioQueue.put(data, 0, size, 0);
         if (!isRun) {
             isRun = true;
             isStopTask = false;
@@ -364,11 +364,19 @@ public class AAC {
         codec.release();
         codec = null;
         bufferInfo = null;
+        audioQueue.close();
         if (aacListener != null) {
             aacListener.onRelease();
         }
     }
 
+    /**
+     * 编解码数据队列,可读取队列深度与阻塞统计
+     */
+    public FrameQueue getAudioQueue() {
+        return audioQueue;
+    }
+
     /**
      * aac解码,将aac帧数据解码为pcm流
      */
@@ -526,9 +534,8 @@ public class AAC {
         if (!decoderPre) {
             return;
         }
-        byte[] s = new byte[size];
-        System.arraycopy(data, 0, s, 0, size);
-        audioQueue.add(s);
+        //数据拷贝至队列的复用缓冲区,队列满时阻塞
+        audioQueue.put(data, 0, size, 0);
         if (!isRun) {
             isRun = true;
             isStopTask = false;
@@ -2,6 +2,9 @@ package com.lee.video.lib.audio;
 
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
 /**
  * 音轨混合器-针对PCM16位数据
  *
@@ -11,6 +14,21 @@ import android.util.Log;
 public abstract class AudioMixer {
     public static final String TAG = "AudioMixer";
 
+    /**
+     * 流式混合时复用的每轨数据,按需扩容
+     */
+    private short[][] streamRoadAudio = new short[0][0];
+
+    /**
+     * 流式混合时复用的混合结果
+     */
+    private short[] streamMixAudio = new short[0];
+
+    /**
+     * 流式混合时复用的字节结果
+     */
+    private byte[] streamRealAudio = new byte[0];
+
     /**
      * 默认创建一个极值合成器
      */
@@ -93,6 +111,78 @@ public abstract class AudioMixer {
         return realMixAudio;
     }
 
+    /**
+     * 流式混合音频数据,内部缓冲区按实例复用,稳定运行后不再分配内存
+     * 同一实例不可在多个线程同时调用
+     *
+     * @param data   每轨音频数据,pcm位数需要为16位小端,从position开始读取,读取后position后移
+     * @param output 混合后的数据写入该缓冲区,从position开始写入
+     * @return 本次混合的采样点数,参数不合法时返回-1
+     */
+    public int mixAudio(ByteBuffer[] data, ByteBuffer output) {
+        if (data == null || data.length == 0 || output == null) {
+            return -1;
+        }
+        int column = Integer.MAX_VALUE;
+        for (ByteBuffer track : data) {
+            column = Math.min(column, track.remaining() / 2);
+        }
+        column = Math.min(column, output.remaining() / 2);
+        ensureStreamBuffer(data.length, column);
+
+        for (int r = 0; r < data.length; ++r) {
+            ByteBuffer track = data[r];
+            int pos = track.position();
+            for (int c = 0; c < column; ++c) {
+                streamRoadAudio[r][c] = (short) ((track.get(pos + c * 2) & 0xff) | (track.get(pos + c * 2 + 1) & 0xff) << 8);
+            }
+            track.position(pos + column * 2);
+        }
+        mix(streamRoadAudio, streamMixAudio, streamRealAudio, data.length, column);
+        output.put(streamRealAudio, 0, column * 2);
+        return column;
+    }
+
+    /**
+     * 流式混合音频数据,内部缓冲区按实例复用,稳定运行后不再分配内存
+     * 同一实例不可在多个线程同时调用
+     *
+     * @param data   每轨音频数据,从position开始读取,读取后position后移
+     * @param output 混合后的数据写入该缓冲区,从position开始写入
+     * @return 本次混合的采样点数,参数不合法时返回-1
+     */
+    public int mixAudio(ShortBuffer[] data, ShortBuffer output) {
+        if (data == null || data.length == 0 || output == null) {
+            return -1;
+        }
+        int column = output.remaining();
+        for (ShortBuffer track : data) {
+            column = Math.min(column, track.remaining());
+        }
+        ensureStreamBuffer(data.length, column);
+
+        for (int r = 0; r < data.length; ++r) {
+            data[r].get(streamRoadAudio[r], 0, column);
+        }
+        mix(streamRoadAudio, streamMixAudio, streamRealAudio, data.length, column);
+        output.put(streamMixAudio, 0, column);
+        return column;
+    }
+
+    /**
+     * 确保流式混合的复用缓冲区足够容纳本次数据
+     */
+    private void ensureStreamBuffer(int row, int column) {
+        if (streamRoadAudio.length < row || (row > 0 && streamRoadAudio[0].length < column)) {
+            int size = Math.max(column, streamRoadAudio.length > 0 ? streamRoadAudio[0].length : 0);
+            streamRoadAudio = new short[Math.max(row, streamRoadAudio.length)][size];
+        }
+        if (streamMixAudio.length < column) {
+            streamMixAudio = new short[column];
+            streamRealAudio = new byte[column * 2];
+        }
+    }
+
     /**
      * @param row    参与合成的音频数量
      * @param column 一段音频的采样点数，这里所有参与合成的音频的采样点数都是相同的
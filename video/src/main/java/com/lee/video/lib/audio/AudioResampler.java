@@ -0,0 +1,355 @@
+package com.lee.video.lib.audio;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * 流式采样率转换器-针对PCM16位交错数据
+ * 使用加窗sinc的多相滤波器组,分块之间保留历史数据,避免分块边界处的爆音
+ * 支持多声道交错数据,每个声道独立滤波
+ * 同一实例不可在多个线程同时调用
+ */
+public class AudioResampler {
+    /**
+     * 低质量,单侧4个抽头
+     */
+    public static final int QUALITY_LOW = 0;
+
+    /**
+     * 中等质量,单侧8个抽头
+     */
+    public static final int QUALITY_MEDIUM = 1;
+
+    /**
+     * 高质量,单侧16个抽头
+     */
+    public static final int QUALITY_HIGH = 2;
+
+    /**
+     * 每次从输入中搬入内部缓冲区的最大帧数
+     */
+    private static final int BLOCK_FRAMES = 1024;
+
+    /**
+     * flush时使用的空输入
+     */
+    private static final ShortBuffer EMPTY_SHORTS = ShortBuffer.allocate(0);
+    private static final ByteBuffer EMPTY_BYTES = ByteBuffer.allocate(0);
+
+    private final int channels;
+
+    /**
+     * 约分后的上采样倍数,即相位数量
+     */
+    private final int up;
+
+    /**
+     * 约分后的下采样倍数
+     */
+    private final int down;
+
+    /**
+     * 单侧抽头数量,每个相位共2*halfTaps个抽头
+     */
+    private final int halfTaps;
+
+    /**
+     * 多相滤波器组,相位p的第k个抽头位于 p*2*halfTaps+k
+     */
+    private final float[] filters;
+
+    /**
+     * 输入历史数据,交错存储
+     */
+    private final float[] history;
+
+    /**
+     * history中有效的帧数
+     */
+    private int frames;
+
+    /**
+     * 当前输出对应的输入帧下标
+     */
+    private int index;
+
+    /**
+     * 当前输出对应的相位
+     */
+    private int phase;
+
+    /**
+     * flush时还需在末尾补充的静音帧数,-1表示未开始flush
+     */
+    private int flushLeft;
+
+    /**
+     * @param inRate   输入采样率
+     * @param outRate  输出采样率
+     * @param channels 声道数量
+     * @param quality  {@link #QUALITY_LOW}/{@link #QUALITY_MEDIUM}/{@link #QUALITY_HIGH}
+     */
+    public AudioResampler(int inRate, int outRate, int channels, int quality) {
+        if (inRate <= 0 || outRate <= 0 || channels <= 0) {
+            throw new IllegalArgumentException("inRate:" + inRate + ",outRate:" + outRate + ",channels:" + channels);
+        }
+        this.channels = channels;
+        int gcd = gcd(inRate, outRate);
+        up = outRate / gcd;
+        down = inRate / gcd;
+        switch (quality) {
+            case QUALITY_LOW:
+                halfTaps = 4;
+                break;
+            case QUALITY_HIGH:
+                halfTaps = 16;
+                break;
+            default:
+                halfTaps = 8;
+                break;
+        }
+        filters = createFilters(up, down, halfTaps);
+        history = new float[(2 * halfTaps + BLOCK_FRAMES) * channels];
+        reset();
+    }
+
+    /**
+     * 清空历史数据,用于seek或切换音源
+     */
+    public void reset() {
+        //预先填充静音,使首个输入帧位于滤波器中心
+        frames = halfTaps - 1;
+        index = halfTaps - 1;
+        phase = 0;
+        flushLeft = -1;
+        for (int i = 0; i < frames * channels; i++) {
+            history[i] = 0;
+        }
+    }
+
+    /**
+     * 估算指定输入帧数转换后的最大输出帧数,可用于分配输出缓冲区
+     */
+    public int getOutputFrames(int inputFrames) {
+        return (int) (((long) inputFrames + 2 * halfTaps) * up / down) + 1;
+    }
+
+    /**
+     * 转换采样率
+     *
+     * @param input  交错的16位数据,从position开始读取,已读取的数据position后移
+     * @param output 转换后的数据写入该缓冲区,写满后剩余输入保留在input中
+     * @return 本次写入output的帧数
+     */
+    public int resample(ShortBuffer input, ShortBuffer output) {
+        int written = 0;
+        while (true) {
+            while (output.remaining() >= channels && index + halfTaps < frames) {
+                int base = output.position();
+                for (int c = 0; c < channels; c++) {
+                    output.put(base + c, toShort(filter(c)));
+                }
+                output.position(base + channels);
+                written++;
+                advance();
+            }
+            if (output.remaining() < channels || input.remaining() < channels) {
+                return written;
+            }
+            compact();
+            int count = Math.min(input.remaining() / channels, history.length / channels - frames);
+            int offset = frames * channels;
+            for (int i = 0; i < count * channels; i++) {
+                history[offset + i] = input.get();
+            }
+            frames += count;
+        }
+    }
+
+    /**
+     * 转换采样率
+     *
+     * @param input  交错的16位小端数据,从position开始读取,已读取的数据position后移
+     * @param output 转换后的数据写入该缓冲区,写满后剩余输入保留在input中
+     * @return 本次写入output的帧数
+     */
+    public int resample(ByteBuffer input, ByteBuffer output) {
+        int frameBytes = channels * 2;
+        int written = 0;
+        while (true) {
+            while (output.remaining() >= frameBytes && index + halfTaps < frames) {
+                int base = output.position();
+                for (int c = 0; c < channels; c++) {
+                    short value = toShort(filter(c));
+                    output.put(base + c * 2, (byte) (value & 0xFF));
+                    output.put(base + c * 2 + 1, (byte) ((value >> 8) & 0xFF));
+                }
+                output.position(base + frameBytes);
+                written++;
+                advance();
+            }
+            if (output.remaining() < frameBytes || input.remaining() < frameBytes) {
+                return written;
+            }
+            compact();
+            int count = Math.min(input.remaining() / frameBytes, history.length / channels - frames);
+            int offset = frames * channels;
+            int pos = input.position();
+            for (int i = 0; i < count * channels; i++) {
+                history[offset + i] = (short) ((input.get(pos + i * 2) & 0xFF) | (input.get(pos + i * 2 + 1) << 8));
+            }
+            input.position(pos + count * frameBytes);
+            frames += count;
+        }
+    }
+
+    /**
+     * 输入结束后调用,在末尾补halfTaps帧静音,输出滤波器还缺少后续数据的最后几帧
+     * output空间不足时可再次调用取出剩余数据,之后需reset才能转换新的输入
+     *
+     * @param output 转换后的数据写入该缓冲区
+     * @return 本次写入output的帧数,0表示已全部输出
+     */
+    public int flush(ShortBuffer output) {
+        int written = resample(EMPTY_SHORTS, output);
+        while (output.remaining() >= channels && padSilence()) {
+            written += resample(EMPTY_SHORTS, output);
+        }
+        return written;
+    }
+
+    /**
+     * 输入结束后调用,在末尾补halfTaps帧静音,输出滤波器还缺少后续数据的最后几帧
+     * output空间不足时可再次调用取出剩余数据,之后需reset才能转换新的输入
+     *
+     * @param output 转换后的16位小端数据写入该缓冲区
+     * @return 本次写入output的帧数,0表示已全部输出
+     */
+    public int flush(ByteBuffer output) {
+        int written = resample(EMPTY_BYTES, output);
+        while (output.remaining() >= channels * 2 && padSilence()) {
+            written += resample(EMPTY_BYTES, output);
+        }
+        return written;
+    }
+
+    /**
+     * 在历史数据末尾补充flush需要的静音
+     *
+     * @return 是否补充了静音
+     */
+    private boolean padSilence() {
+        if (flushLeft < 0) {
+            flushLeft = halfTaps;
+        }
+        if (flushLeft == 0) {
+            return false;
+        }
+        compact();
+        int count = Math.min(flushLeft, history.length / channels - frames);
+        for (int i = frames * channels; i < (frames + count) * channels; i++) {
+            history[i] = 0;
+        }
+        frames += count;
+        flushLeft -= count;
+        return count > 0;
+    }
+
+    /**
+     * 计算声道c在当前位置的输出值
+     */
+    private float filter(int c) {
+        int taps = 2 * halfTaps;
+        int f = phase * taps;
+        int h = (index - halfTaps + 1) * channels + c;
+        float sum = 0;
+        for (int k = 0; k < taps; k++, h += channels) {
+            sum += filters[f + k] * history[h];
+        }
+        return sum;
+    }
+
+    /**
+     * 前进到下一个输出位置
+     */
+    private void advance() {
+        phase += down;
+        index += phase / up;
+        phase %= up;
+    }
+
+    /**
+     * 丢弃滤波器已不再需要的历史数据
+     */
+    private void compact() {
+        //大比例降采样时index可能越过已有数据,只丢弃已有的帧以保持下标对齐
+        int drop = Math.min(index - halfTaps + 1, frames);
+        if (drop <= 0) {
+            return;
+        }
+        int keep = frames - drop;
+        System.arraycopy(history, drop * channels, history, 0, keep * channels);
+        frames = keep;
+        index -= drop;
+    }
+
+    private static short toShort(float value) {
+        int v = Math.round(value);
+        if (v > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (v < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) v;
+    }
+
+    /**
+     * 生成多相滤波器组,每个相位归一化以保证直流增益为1
+     */
+    private static float[] createFilters(int up, int down, int halfTaps) {
+        int taps = 2 * halfTaps;
+        //降采样时截止频率跟随输出采样率,留出少量过渡带
+        double cutoff = Math.min(1.0, (double) up / down) * 0.95;
+        float[] filters = new float[up * taps];
+        for (int p = 0; p < up; p++) {
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                double t = (k - halfTaps + 1) - (double) p / up;
+                double value = cutoff * sinc(cutoff * t) * blackman(t / halfTaps);
+                filters[p * taps + k] = (float) value;
+                sum += value;
+            }
+            for (int k = 0; k < taps; k++) {
+                filters[p * taps + k] /= sum;
+            }
+        }
+        return filters;
+    }
+
+    private static double sinc(double x) {
+        if (x == 0) {
+            return 1;
+        }
+        return Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    /**
+     * blackman窗,x取值范围[-1,1]
+     */
+    private static double blackman(double x) {
+        if (x <= -1 || x >= 1) {
+            return 0;
+        }
+        double a = Math.PI * (x + 1);
+        return 0.42 - 0.5 * Math.cos(a) + 0.08 * Math.cos(2 * a);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -6,6 +6,9 @@ import android.media.AudioManager;
 import android.media.AudioRecord;
 import android.media.AudioTrack;
 import android.media.MediaRecorder;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
 
 /**
  * 简化AudioTrack、AudioRecord的使用
@@ -165,6 +168,38 @@ public final class AudioTR {
         }
     }
 
+    /**
+     * 写入数据,直接读取缓冲区内容,不产生额外拷贝
+     *
+     * @param chunk 从position开始读取size字节,写入后position后移
+     */
+    public void writeData(ByteBuffer chunk, int size) {
+        if (checkTrack()) {
+            audioTrack.write(chunk, size, AudioTrack.WRITE_BLOCKING);
+        }
+    }
+
+    /**
+     * 获取播放头位置,即已经播放的帧数
+     */
+    public long getPlaybackHeadPosition() {
+        if (checkTrack()) {
+            //该值为无符号int
+            return audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        }
+        return 0;
+    }
+
+    /**
+     * 获取track缓冲区能容纳的帧数
+     */
+    public int getBufferSizeInFrames() {
+        if (checkTrack() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return audioTrack.getBufferSizeInFrames();
+        }
+        return 0;
+    }
+
     /**
      * 设置音量
      */
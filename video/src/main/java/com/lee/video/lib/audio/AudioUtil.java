@@ -225,6 +225,7 @@ public class AudioUtil {
 
     /**
      * 采样率转换
+     * 仅适用于单声道的完整数据,分块调用时块与块之间不保留状态,流式数据请使用{@link AudioResampler}
      *
      * @param chunk        需要转换的pcm数据
      * @param inputSample  转换前的采样率
@@ -4,7 +4,11 @@ import android.media.MediaCodec
 import android.media.MediaExtractor
 import android.media.MediaFormat
 import android.util.Log
+import android.view.Surface
+import java.util.ArrayDeque
 import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
 
 /**
  * 解码器基类
@@ -97,6 +101,11 @@ abstract class BaseDecoder {
      */
     protected var interceptor: NetInterceptor? = null
 
+    /**
+     * 音视频同步时钟,音频写入后更新,视频据此送显,单独使用时可为空
+     */
+    protected var clock: MediaClock? = null
+
     /**
      * 解码器
      */
@@ -119,10 +128,58 @@ abstract class BaseDecoder {
 
 
     /**
-     * 播放标志
+     * 状态锁,播放状态变化时通过stateCondition唤醒等待中的解码与渲染线程
+     */
+    private val stateLock = ReentrantLock()
+    private val stateCondition = stateLock.newCondition()
+
+    /**
+     * 最近一次状态变化的时间,纳秒值,用于统计指令响应耗时
+     */
+    @Volatile
+    private var commandTime = 0L
+
+    /**
+     * 最近一次指令从发出到解码线程响应的耗时,单位为微秒
+     */
+    @Volatile
+    var lastCommandLatency = 0L
+        private set
+
+    /**
+     * 是否使用异步回调模式
+     * true 使用MediaCodec.setCallback在CodecLooper共用线程上编解码,不再占用解码与渲染线程,需要android 6.0,低版本自动使用同步模式
+     * false 同步模式,解码与渲染各占用一个线程
+     */
+    protected var asyncMode = false
+
+    /**
+     * 异步模式下等待处理的输入、输出缓冲区索引,只在CodecLooper线程访问
+     */
+    private val pendingInput = ArrayDeque<Int>()
+    private val pendingOutput = ArrayDeque<Int>()
+
+    /**
+     * 异步模式下输出缓冲区的信息,以缓冲区索引为下标
+     */
+    private var pendingInfo = arrayOfNulls<MediaCodec.BufferInfo>(16)
+
+    /**
+     * 异步模式下驱动状态处理与数据流转
+     */
+    private val pumpTask = Runnable { pump() }
+
+    /**
+     * 播放标志,赋值后立即唤醒等待中的线程
      */
     @Volatile
     protected var playStatus = State.NO_PLAY
+        set(value) {
+            field = value
+            commandTime = System.nanoTime()
+            signalState()
+            postPump()
+        }
 
     /**
      * 记录跳转前的状态,跳转完成后,还原该状态
@@ -154,6 +211,10 @@ abstract class BaseDecoder {
      */
     @Volatile
     private var netPause = false
+        set(value) {
+            field = value
+            signalState()
+        }
 
     /**
      * 解码线程是否完成
@@ -202,25 +263,28 @@ abstract class BaseDecoder {
      */
     protected var startTime = 0L
 
+    /**
+     * 解码进度
+     */
+    private var decoderProgress = 0f
+
     /**
      * 解码线程,执行解码操作
      */
     private val decoderTask = Runnable {
         try {
             dos = false
-            //解码进度
-            var decoderProgress = 0f
+            decoderProgress = 0f
             while (true) {
-                while (playStatus == State.PAUSE) {
-                    //暂停中,进行休眠
-                    sleep(16)
-                }
+                //暂停中,阻塞等待状态变化
+                awaitWhile { playStatus == State.PAUSE }
 
                 while (playStatus == State.DATA_WAIT) {
-                    //暂停中,进行休眠
-                    sleep(16)
+                    //等待数据处理,状态变化时立即唤醒,否则定时询问是否结束等待
+                    awaitTimed(16) { playStatus == State.DATA_WAIT }
                     onDataWait()
                 }
+                recordCommandLatency()
 
                 if (playStatus == State.SEEK_START) {
                     log("deal seek")
@@ -231,9 +295,9 @@ abstract class BaseDecoder {
                 if (interceptor != null) {
                     netPause = interceptor!!.progressComparison(decoderProgress)
                 }
-                while (netPause) {
-                    //网络视频加载中,进行休眠
-                    sleep(100)
+                while (netPause && playStatus != State.STOP) {
+                    //网络视频加载中,等待notifyNetReady唤醒或超时后再次比对
+                    awaitTimed(100) { playStatus != State.STOP }
                     //判断是否可以继续
                     netPause = interceptor!!.progressComparison(decoderProgress)
                 }
@@ -250,56 +314,9 @@ abstract class BaseDecoder {
                 if (index < 0) {
                     continue
                 }
-                val inputBuffer = codec!!.getInputBuffer(index) ?: continue
-                //读取数据
-                var sampleSize = extractor!!.readSampleData(inputBuffer, 0)
-                if (sampleSize < 0) {
-                    //数据读取结束
-                    if (!loop) {
-                        //压入结束标志
-                        codec!!.queueInputBuffer(
-                            index,
-                            0,
-                            0,
-                            0,
-                            MediaCodec.BUFFER_FLAG_END_OF_STREAM
-                        )
-                        //停止解码
-                        break
-                    } else {
-                        //跳转至开头
-                        extractor!!.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
-                        sampleSize = extractor!!.readSampleData(inputBuffer, 0)
-                        val sampleTime = extractor!!.sampleTime
-                        codec!!.queueInputBuffer(
-                            index,
-                            0,
-                            sampleSize,
-                            sampleTime,
-                            0
-                        )
-                        //获取下一帧数据
-                        extractor!!.advance()
-                    }
-                } else {
-                    //压入数据
-                    val sampleTime = extractor!!.sampleTime
-                    queuePts[inCount] = sampleTime / 1000
-                    inCount++
-                    if (inCount == queueSize) {
-                        inCount = 0
-                    }
-                    decoderProgress =
-                        (sampleTime * 0.1f / duration * 100).toInt() / 100f //保留2位小数
-                    codec!!.queueInputBuffer(
-                        index,
-                        0,
-                        sampleSize,
-                        sampleTime,
-                        0
-                    )
-                    //获取下一帧数据
-                    extractor!!.advance()
+                if (!queueSample(index)) {
+                    //停止解码
+                    break
                 }
             }
             dos = true
@@ -310,6 +327,65 @@ abstract class BaseDecoder {
         }
     }
 
+    /**
+     * 读取一帧数据压入解码器
+     *
+     * @return false 已压入结束标志
+     */
+    private fun queueSample(index: Int): Boolean {
+        val inputBuffer = codec!!.getInputBuffer(index) ?: return true
+        //读取数据
+        var sampleSize = extractor!!.readSampleData(inputBuffer, 0)
+        if (sampleSize < 0) {
+            //数据读取结束
+            if (!loop) {
+                //压入结束标志
+                codec!!.queueInputBuffer(
+                    index,
+                    0,
+                    0,
+                    0,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM
+                )
+                return false
+            } else {
+                //跳转至开头
+                extractor!!.seekTo(0, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+                sampleSize = extractor!!.readSampleData(inputBuffer, 0)
+                val sampleTime = extractor!!.sampleTime
+                codec!!.queueInputBuffer(
+                    index,
+                    0,
+                    sampleSize,
+                    sampleTime,
+                    0
+                )
+                //获取下一帧数据
+                extractor!!.advance()
+            }
+        } else {
+            //压入数据
+            val sampleTime = extractor!!.sampleTime
+            queuePts[inCount] = sampleTime / 1000
+            inCount++
+            if (inCount == queueSize) {
+                inCount = 0
+            }
+            decoderProgress =
+                (sampleTime * 0.1f / duration * 100).toInt() / 100f //保留2位小数
+            codec!!.queueInputBuffer(
+                index,
+                0,
+                sampleSize,
+                sampleTime,
+                0
+            )
+            //获取下一帧数据
+            extractor!!.advance()
+        }
+        return true
+    }
+
     private fun dealSeek() {
         playStatus = State.SEEK
         val current = extractor!!.sampleTime
@@ -333,20 +409,11 @@ abstract class BaseDecoder {
         try {
             ros = false
             while (true) {
-                while (playStatus == State.PAUSE) {
-                    //暂停中,进行休眠
-                    sleep(16)
-                }
+                //暂停中,阻塞等待状态变化
+                awaitWhile { playStatus == State.PAUSE || playStatus == State.DATA_WAIT }
 
-                while (playStatus == State.DATA_WAIT) {
-                    //暂停中,进行休眠
-                    sleep(16)
-                }
-
-                while (netPause) {
-                    //网络加载暂停中,进行休眠
-                    sleep(90)
-                }
+                //网络加载暂停中,阻塞等待解码线程恢复
+                awaitWhile { netPause && playStatus != State.STOP }
 
                 //停止指令
                 if (playStatus == State.STOP) {
@@ -357,11 +424,7 @@ abstract class BaseDecoder {
                 //获取索引
                 val index = codec!!.dequeueOutputBuffer(bufferInfo!!, (1000 * 16).toLong())
                 if (index >= 0) {
-                    render(index, queuePts[outCount])
-                    outCount++
-                    if (outCount == queueSize) {
-                        outCount = 0
-                    }
+                    renderNext(index)
                 } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                     //参数发生了变化
                     format = codec!!.outputFormat
@@ -380,6 +443,17 @@ abstract class BaseDecoder {
         }
     }
 
+    /**
+     * 按压入顺序取出该帧的pts进行渲染
+     */
+    private fun renderNext(index: Int) {
+        render(index, queuePts[outCount])
+        outCount++
+        if (outCount == queueSize) {
+            outCount = 0
+        }
+    }
+
     private fun render(index: Int, pts: Long) {
         when (seekStatus) {
             SeekState.SEEK_BEFORE -> {
@@ -416,6 +490,206 @@ abstract class BaseDecoder {
         Thread.sleep(millis)
     }
 
+    /**
+     * 配置解码器,异步模式下在配置前设置回调
+     */
+    protected fun configureCodec(format: MediaFormat, surface: Surface?) {
+        if (asyncMode && CodecLooper.isSupported()) {
+            codec!!.setCallback(asyncCallback, CodecLooper.handler)
+        } else {
+            asyncMode = false
+        }
+        codec!!.configure(format, surface, null, 0)
+    }
+
+    /**
+     * 距离该帧的渲染时间还有多久,单位为微秒
+     * 异步模式下大于0时延后再渲染,避免在共用线程上阻塞等待
+     */
+    protected open fun renderDelayUs(pts: Long): Long {
+        return 0
+    }
+
+    /**
+     * 异步回调,只记录可用的缓冲区,统一由pump处理,回调内不直接操作解码器的启停
+     * 已释放的解码器延迟到达的回调直接丢弃,避免旧的缓冲区索引进入队列
+     */
+    private val asyncCallback = object : MediaCodec.Callback() {
+        override fun onInputBufferAvailable(mc: MediaCodec, index: Int) {
+            if (mc !== codec) {
+                return
+            }
+            pendingInput.add(index)
+            postPump()
+        }
+
+        override fun onOutputBufferAvailable(mc: MediaCodec, index: Int, info: MediaCodec.BufferInfo) {
+            if (mc !== codec) {
+                return
+            }
+            if (index >= pendingInfo.size) {
+                pendingInfo = pendingInfo.copyOf(index + 16)
+            }
+            val cache = pendingInfo[index] ?: MediaCodec.BufferInfo().also { pendingInfo[index] = it }
+            cache.set(info.offset, info.size, info.presentationTimeUs, info.flags)
+            pendingOutput.add(index)
+            postPump()
+        }
+
+        override fun onOutputFormatChanged(mc: MediaCodec, format: MediaFormat) {
+            if (mc !== codec) {
+                return
+            }
+            this@BaseDecoder.format = format
+            configCodec(true)
+        }
+
+        override fun onError(mc: MediaCodec, e: MediaCodec.CodecException) {
+            if (mc !== codec) {
+                return
+            }
+            onError("codec err:$e")
+        }
+    }
+
+    private fun postPump() {
+        if (asyncMode) {
+            CodecLooper.handler.post(pumpTask)
+        }
+    }
+
+    /**
+     * 异步模式下处理播放状态并流转数据,只在CodecLooper线程执行,不可阻塞
+     */
+    private fun pump() {
+        if (codec == null || dos && ros) {
+            return
+        }
+        try {
+            CodecLooper.handler.removeCallbacks(pumpTask)
+            recordCommandLatency()
+            when (playStatus) {
+                State.STOP -> {
+                    log("解码停止")
+                    dos = true
+                    ros = true
+                    goEnd()
+                    return
+                }
+                State.PAUSE, State.NO_PLAY -> return
+                State.DATA_WAIT -> {
+                    //定时询问是否结束等待
+                    onDataWait()
+                    if (playStatus == State.DATA_WAIT) {
+                        CodecLooper.handler.postDelayed(pumpTask, 16)
+                    }
+                    return
+                }
+                State.SEEK_START -> {
+                    log("deal seek")
+                    dealSeek()
+                }
+                else -> {
+                }
+            }
+
+            //有网络加载的情况下,判断是否需要进入暂停
+            if (interceptor != null) {
+                netPause = interceptor!!.progressComparison(decoderProgress)
+                if (netPause) {
+                    CodecLooper.handler.postDelayed(pumpTask, 100)
+                    return
+                }
+            }
+
+            while (!dos && pendingInput.isNotEmpty()) {
+                if (!queueSample(pendingInput.poll()!!)) {
+                    dos = true
+                }
+            }
+
+            while (pendingOutput.isNotEmpty() && playStatus != State.PAUSE && playStatus != State.DATA_WAIT) {
+                val index = pendingOutput.peek()!!
+                val info = pendingInfo[index]!!
+                if (seekStatus == SeekState.SEEK_NONE) {
+                    val delay = renderDelayUs(queuePts[outCount])
+                    if (delay > 0) {
+                        //未到渲染时间,延后处理
+                        CodecLooper.handler.postDelayed(pumpTask, (delay / 1000).coerceAtLeast(1))
+                        break
+                    }
+                }
+                pendingOutput.poll()
+                bufferInfo?.set(info.offset, info.size, info.presentationTimeUs, info.flags)
+                renderNext(index)
+                if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0 && !loop) {
+                    ros = true
+                }
+            }
+            if (dos && ros) {
+                goEnd()
+            }
+        } catch (e: Exception) {
+            e.printStackTrace()
+            onError("async err:$e")
+        }
+    }
+
+    /**
+     * 唤醒所有等待状态变化的线程
+     */
+    private fun signalState() {
+        stateLock.lock()
+        try {
+            stateCondition.signalAll()
+        } finally {
+            stateLock.unlock()
+        }
+    }
+
+    /**
+     * 条件成立时阻塞等待,直到状态变化使条件不成立
+     * 条件在锁内判断,状态变化的通知不会丢失
+     */
+    @Throws(InterruptedException::class)
+    private inline fun awaitWhile(condition: () -> Boolean) {
+        stateLock.lock()
+        try {
+            while (condition()) {
+                stateCondition.await()
+            }
+        } finally {
+            stateLock.unlock()
+        }
+    }
+
+    /**
+     * 条件成立时等待一次,状态变化或超时后返回,用于需要定时询问外部的场景
+     */
+    @Throws(InterruptedException::class)
+    private inline fun awaitTimed(millis: Long, condition: () -> Boolean) {
+        stateLock.lock()
+        try {
+            if (condition()) {
+                stateCondition.await(millis, TimeUnit.MILLISECONDS)
+            }
+        } finally {
+            stateLock.unlock()
+        }
+    }
+
+    /**
+     * 解码线程响应指令后,记录从指令发出到响应的耗时
+     */
+    private fun recordCommandLatency() {
+        val time = commandTime
+        if (time != 0L) {
+            commandTime = 0L
+            lastCommandLatency = (System.nanoTime() - time) / 1000
+            log("指令响应耗时:${lastCommandLatency}us")
+        }
+    }
+
     private fun goEnd() {
         if (dos && ros) {
             log("播放停止")
@@ -469,12 +743,24 @@ abstract class BaseDecoder {
         log("启动播放:${playStatus.name}")
         if (playStatus == State.NO_PLAY) {
             if (codec != null) {
+                dos = false
+                ros = false
+                if (asyncMode) {
+                    //缓冲区队列只在CodecLooper线程访问,在解码器启动前排入清空操作,
+                    //之前排队的旧回调先于清空执行,启动后的回调都在清空之后
+                    CodecLooper.handler.post {
+                        pendingInput.clear()
+                        pendingOutput.clear()
+                    }
+                }
                 //启动解码器
                 codec!!.start()
                 //进入播放状态
                 playStatus = State.PLAY
-                pool.execute(decoderTask)
-                pool.execute(renderTask)
+                if (!asyncMode) {
+                    pool.execute(decoderTask)
+                    pool.execute(renderTask)
+                }
             }
         }
     }
@@ -542,6 +828,14 @@ abstract class BaseDecoder {
         }
     }
 
+    /**
+     * 网络资源下载进度更新后调用,立即唤醒因网络暂停的解码线程重新比对进度,不必等待定时比对
+     */
+    fun notifyNetReady() {
+        signalState()
+        postPump()
+    }
+
     fun getCurrentPlayStatus(): State {
         return playStatus
     }
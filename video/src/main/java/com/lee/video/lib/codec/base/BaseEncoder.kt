@@ -6,8 +6,11 @@ import android.media.MediaFormat
 import android.os.Build
 import android.util.Log
 import com.lee.video.lib.repack.FrameObject
+import com.lee.video.lib.repack.FrameQueue
 import com.lee.video.lib.repack.Mp4Mixer
+import android.view.Surface
 import java.nio.ByteBuffer
+import java.util.ArrayDeque
 import java.util.concurrent.Executors
 
 
@@ -89,32 +92,63 @@ abstract class BaseEncoder {
     private val waitTime: Long = 1000 * 16
 
     /**
-     * 编解码数据队列-缓存当前待编解码的数据
+     * 编解码数据队列-缓存当前待编解码的数据,队列满时压入方阻塞等待
+     * 可读取队列深度与阻塞统计
      */
-    private val frameQueue = arrayListOf<FrameObject>()
+    val frameQueue = FrameQueue()
 
     /**
      * 线程池-执行编解码任务
      */
     private val pool = Executors.newScheduledThreadPool(2)
 
+    /**
+     * 是否使用异步回调模式
+     * true 使用MediaCodec.setCallback在CodecLooper共用线程上编码,不再占用压入与取出线程,需要android 6.0,低版本自动使用同步模式
+     */
+    protected var asyncMode = false
+
+    /**
+     * 异步模式下可用的输入缓冲区索引
+     */
+    private val pendingInput = ArrayDeque<Int>()
+
+    /**
+     * 异步模式下压入数据
+     */
+    private val feedTask = Runnable { feed() }
+
 
     open fun isVideo(): Boolean {
         return false
     }
 
     /**
-     * 压入编码数据
+     * 压入编码数据,队列满时阻塞,限制压入方领先编码的程度
+     * 异步模式下在CodecLooper线程(例如异步解码器的回调中)调用时不阻塞,队列满时返回false,需稍后重新压入
+     *
+     * @return false 数据未压入
      */
-    fun encoder(frameObject: FrameObject) {
-        synchronized(frameQueue) {
-            frameQueue.add(frameObject)
+    fun encoder(frameObject: FrameObject): Boolean {
+        if (asyncMode) {
+            //数据由CodecLooper线程消费,在该线程阻塞等待会卡死自身
+            val accepted = if (CodecLooper.isCurrentThread()) {
+                frameQueue.offer(frameObject.buffer, frameObject.bufferInfo)
+            } else {
+                frameQueue.put(frameObject.buffer, frameObject.bufferInfo)
+            }
+            CodecLooper.handler.post(feedTask)
+            return accepted
+        }
+        if (!frameQueue.put(frameObject.buffer, frameObject.bufferInfo)) {
+            return false
         }
         if (!isRun) {
             isRun = true
             pool.execute(coderTask)
             pool.execute(encoderTask)
         }
+        return true
     }
 
 
@@ -132,50 +166,52 @@ abstract class BaseEncoder {
     private val coderTask = Runnable {
         dos = false
         while (true) {
-
-            val empty = synchronized(frameQueue) {
-                frameQueue.isEmpty()
-            }
-            if (empty)
-                continue
-
-            if (frameQueue.isNotEmpty()) {
-                val frame = synchronized(frameQueue) {
-                    frameQueue.removeAt(0)
+            //队列为空时阻塞等待,不再空转
+            val frame = frameQueue.take(waitTime)
+            if (frame == null) {
+                if (frameQueue.closed) {
+                    break
                 }
-                if (isVideo()) {
-                    if (frame.buffer == null) {
-//                        Log.e("lee", "视频结束标志")
-                        codec?.signalEndOfInputStream()
-                        break
-                    }
-                } else {
-                    val index = codec!!.dequeueInputBuffer(waitTime)
-                    if (index < 0) {
-                        continue
-                    }
-                    val inputBuffer = codec?.getInputBuffer(index) ?: continue
-                    if (frame.buffer == null) {
-//                        Log.e("lee", "音频结束标志")
-                        codec?.queueInputBuffer(
-                            index,
-                            0,
-                            0,
-                            0,
-                            MediaCodec.BUFFER_FLAG_END_OF_STREAM
-                        )
-                        break
-                    } else {
-                        inputBuffer.put(frame.buffer!!)
-                        codec?.queueInputBuffer(
-                            index,
-                            0,
-                            frame.bufferInfo.size,
-                            frame.bufferInfo.presentationTimeUs,
-                            0
-                        )
-                    }
+                continue
+            }
+            if (isVideo()) {
+                //视频数据来自输入表面,只需处理结束标志
+                val end = frame.buffer == null
+                frameQueue.release()
+                if (end) {
+//                    Log.e("lee", "视频结束标志")
+                    codec?.signalEndOfInputStream()
+                    break
                 }
+                continue
+            }
+            val index = codec!!.dequeueInputBuffer(waitTime)
+            if (index < 0) {
+                //没有可用的输入缓冲区,数据保留在队列中下次再压入
+                continue
+            }
+            val inputBuffer = codec?.getInputBuffer(index) ?: continue
+            if (frame.buffer == null) {
+//                Log.e("lee", "编码结束标志")
+                codec?.queueInputBuffer(
+                    index,
+                    0,
+                    0,
+                    0,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM
+                )
+                frameQueue.release()
+                break
+            } else {
+                inputBuffer.put(frame.buffer!!)
+                codec?.queueInputBuffer(
+                    index,
+                    0,
+                    frame.bufferInfo.size,
+                    frame.bufferInfo.presentationTimeUs,
+                    0
+                )
+                frameQueue.release()
             }
         }
         dos = true
@@ -212,6 +248,91 @@ abstract class BaseEncoder {
         goEnd()
     }
 
+    /**
+     * 配置编码器,异步模式下在配置前设置回调
+     */
+    protected fun configureCodec(format: MediaFormat, surface: Surface? = null) {
+        if (asyncMode && CodecLooper.isSupported()) {
+            codec!!.setCallback(asyncCallback, CodecLooper.handler)
+        } else {
+            asyncMode = false
+        }
+        codec!!.configure(format, surface, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+    }
+
+    /**
+     * 异步回调,在CodecLooper共用线程执行
+     */
+    private val asyncCallback = object : MediaCodec.Callback() {
+        override fun onInputBufferAvailable(mc: MediaCodec, index: Int) {
+            pendingInput.add(index)
+            feed()
+        }
+
+        override fun onOutputBufferAvailable(mc: MediaCodec, index: Int, info: MediaCodec.BufferInfo) {
+            //结束标志
+            if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+                mc.releaseOutputBuffer(index, false)
+                ros = true
+                //不在回调内释放编码器
+                CodecLooper.handler.post { goEnd() }
+                return
+            }
+            writeData(mc.getOutputBuffer(index)!!, info)
+            mc.releaseOutputBuffer(index, false)
+        }
+
+        override fun onOutputFormatChanged(mc: MediaCodec, format: MediaFormat) {
+            addTrack(format)
+        }
+
+        override fun onError(mc: MediaCodec, e: MediaCodec.CodecException) {
+            Log.e("lee", "encoder err:$e")
+        }
+    }
+
+    /**
+     * 异步模式下将队列中的数据压入可用的输入缓冲区,只在CodecLooper线程执行
+     */
+    private fun feed() {
+        while (!dos) {
+            val frame = frameQueue.peek() ?: return
+            if (isVideo()) {
+                //视频数据来自输入表面,只需处理结束标志
+                val end = frame.buffer == null
+                frameQueue.release()
+                if (end) {
+                    codec?.signalEndOfInputStream()
+                    dos = true
+                    return
+                }
+                continue
+            }
+            val index = pendingInput.poll() ?: return
+            val inputBuffer = codec?.getInputBuffer(index) ?: return
+            if (frame.buffer == null) {
+                codec?.queueInputBuffer(
+                    index,
+                    0,
+                    0,
+                    0,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM
+                )
+                dos = true
+            } else {
+                inputBuffer.put(frame.buffer!!)
+                codec?.queueInputBuffer(
+                    index,
+                    0,
+                    frame.bufferInfo.size,
+                    frame.bufferInfo.presentationTimeUs,
+                    0
+                )
+            }
+            frameQueue.release()
+        }
+    }
+
     /**
      * 加载资源,就绪后会启动编码(配置了自动编码)或触发onReady回调(没有设定自动编码)
      */
@@ -241,6 +362,7 @@ abstract class BaseEncoder {
             codec?.stop()
             codec?.release()
             codec = null
+            frameQueue.close()
 
             listener?.onEnd()
         }
@@ -0,0 +1,35 @@
+package com.lee.video.lib.codec.base
+
+import android.os.Build
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+
+/**
+ * 编解码异步回调共用的线程
+ * 异步模式下所有编解码器的MediaCodec.Callback都在该线程执行,回调中不可进行阻塞操作
+ */
+object CodecLooper {
+    /**
+     * 回调所在线程
+     */
+    val handler: Handler by lazy {
+        val thread = HandlerThread("CodecLooper")
+        thread.start()
+        Handler(thread.looper)
+    }
+
+    /**
+     * 调用线程是否为回调所在线程,该线程上不能阻塞等待编解码器消费数据
+     */
+    fun isCurrentThread(): Boolean {
+        return Looper.myLooper() == handler.looper
+    }
+
+    /**
+     * 当前系统是否支持异步模式,MediaCodec.setCallback(callback, handler)需要android 6.0
+     */
+    fun isSupported(): Boolean {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+    }
+}
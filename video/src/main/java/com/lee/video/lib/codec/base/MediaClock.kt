@@ -0,0 +1,150 @@
+package com.lee.video.lib.codec.base
+
+import kotlin.math.abs
+
+/**
+ * 音视频同步时钟,时间单位为微秒
+ * 绑定音频后以音频播放头位置为准,视频帧按该时钟送显;未绑定音频时退化为系统时钟
+ */
+class MediaClock {
+    /**
+     * 音频采样率
+     */
+    private var sampleRate = 0
+
+    /**
+     * 获取音频播放头位置(已播放的帧数)
+     */
+    private var audioHead: (() -> Long)? = null
+
+    /**
+     * 音频锚点,写入位置(帧数)与该位置对应的pts
+     */
+    private var anchorFrames = -1L
+    private var anchorPts = 0L
+
+    /**
+     * 系统时钟锚点,nanoTime与其对应的pts
+     */
+    private var wallNs = 0L
+    private var wallPts = -1L
+
+    /**
+     * 最近一帧视频与时钟的偏差,正值表示视频落后于时钟
+     */
+    @Volatile
+    var drift = 0L
+        private set
+
+    /**
+     * 视频与时钟的最大偏差绝对值
+     */
+    @Volatile
+    var maxDrift = 0L
+        private set
+
+    /**
+     * 已送显的视频帧数
+     */
+    @Volatile
+    var renderFrames = 0L
+        private set
+
+    /**
+     * 因落后于时钟而丢弃的视频帧数
+     */
+    @Volatile
+    var lateFrames = 0L
+        private set
+
+    /**
+     * 绑定音频,此后时钟由音频播放头驱动
+     *
+     * @param sampleRate 采样率
+     * @param head 获取音频播放头位置
+     */
+    @Synchronized
+    fun bindAudio(sampleRate: Int, head: () -> Long) {
+        this.sampleRate = sampleRate
+        this.audioHead = head
+        anchorFrames = -1L
+    }
+
+    /**
+     * 解除音频绑定,例如音频已播放结束,时钟从当前时间开始以系统时钟继续走
+     */
+    @Synchronized
+    fun unbindAudio() {
+        val now = getTimeUs()
+        audioHead = null
+        anchorFrames = -1L
+        if (now >= 0) {
+            startWall(now)
+        }
+    }
+
+    /**
+     * 音频数据写入后更新锚点
+     *
+     * @param ptsUs 该段音频的pts
+     * @param startFrame 该段音频在音轨中的起始写入位置
+     */
+    @Synchronized
+    fun onAudioWritten(ptsUs: Long, startFrame: Long) {
+        anchorPts = ptsUs
+        anchorFrames = startFrame
+    }
+
+    /**
+     * 以系统时钟从指定pts开始计时
+     */
+    @Synchronized
+    fun startWall(ptsUs: Long) {
+        wallPts = ptsUs
+        wallNs = System.nanoTime()
+    }
+
+    /**
+     * 时钟是否由音频驱动
+     */
+    @Synchronized
+    fun isAudioMaster(): Boolean {
+        return audioHead != null
+    }
+
+    /**
+     * 当前时钟时间,尚未开始时返回-1
+     */
+    @Synchronized
+    fun getTimeUs(): Long {
+        val head = audioHead
+        if (head != null) {
+            if (anchorFrames < 0) {
+                return -1
+            }
+            return anchorPts + (head() - anchorFrames) * 1000_000 / sampleRate
+        }
+        if (wallPts < 0) {
+            return -1
+        }
+        return wallPts + (System.nanoTime() - wallNs) / 1000
+    }
+
+    /**
+     * 记录视频帧的同步情况
+     *
+     * @param lateUs 视频帧落后于时钟的时间
+     * @param dropped 是否因落后过多被丢弃
+     */
+    fun onVideoFrame(lateUs: Long, dropped: Boolean) {
+        drift = lateUs
+        if (abs(lateUs) > maxDrift) {
+            maxDrift = abs(lateUs)
+        }
+        if (dropped) {
+            lateFrames++
+        } else {
+            renderFrames++
+        }
+    }
+}
@@ -9,8 +9,11 @@ import android.os.Build
 import com.lee.video.lib.audio.AudioTR
 import com.lee.video.lib.audio.AudioUtil
 import com.lee.video.lib.codec.base.BaseDecoder
+import com.lee.video.lib.codec.base.MediaClock
 import java.io.FileDescriptor
 import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 
 /**
  * 音频信息解码-单独使用可作为音频播放器,支持几乎所有音频格式文件,可无缝循环
@@ -48,6 +51,20 @@ class AudioDecoder private constructor() : BaseDecoder() {
          */
         fun onAudioData(audioData: ByteArray, p: Float): Boolean = false
 
+        /**
+         * 解码的音频数据,dealPcm为true时才会回调,默认拷贝为ByteArray后转交onAudioData
+         * 重写该函数可避免每帧的数组分配,audioData为解码器输出缓冲区的只读视图,仅在回调期间有效,需要保留的数据请自行拷贝
+         *
+         * @param audioData 音频数据,position至limit为有效数据,字节序为LITTLE_ENDIAN,与解码输出的16位pcm一致
+         * @param p 该帧音频的进度值 0~100,保留两位小数
+         * @return 是否进入等待状态,false不进入  true 进入
+         */
+        fun onAudioBuffer(audioData: ByteBuffer, p: Float): Boolean {
+            val chunk = ByteArray(audioData.remaining())
+            audioData.get(chunk)
+            return onAudioData(chunk, p)
+        }
+
         /**
          * onAudioData返回true的情况下才会回调该函数
          * @return true结束等待  false 继续等待
@@ -83,6 +100,10 @@ class AudioDecoder private constructor() : BaseDecoder() {
             return super.onAudioData(audioData, p)
         }
 
+        override fun onAudioBuffer(audioData: ByteBuffer, p: Float): Boolean {
+            return super.onAudioBuffer(audioData, p)
+        }
+
         override fun onDataWaitEnd(): Boolean {
             return super.onDataWaitEnd()
         }
@@ -121,6 +142,16 @@ class AudioDecoder private constructor() : BaseDecoder() {
      */
     private var track: AudioTR? = null
 
+    /**
+     * 每帧音频数据的字节数
+     */
+    private var frameBytes = 2
+
+    /**
+     * 已写入track的帧数
+     */
+    private var writtenFrames = 0L
+
     /**
      * 监听器
      */
@@ -169,6 +200,16 @@ class AudioDecoder private constructor() : BaseDecoder() {
          */
         private var interceptor: NetInterceptor? = null
 
+        /**
+         * 音视频同步时钟,内置audioTrack播放时由音频播放头驱动
+         */
+        private var clock: MediaClock? = null
+
+        /**
+         * 是否使用异步回调模式,在共用线程上解码,需要android 6.0,低版本自动使用同步模式
+         */
+        private var asyncMode = false
+
 
         fun setAutoPlay(autoPlay: Boolean): Builder {
             this.autoPlay = autoPlay
@@ -201,6 +242,16 @@ class AudioDecoder private constructor() : BaseDecoder() {
             return this
         }
 
+        fun setClock(clock: MediaClock?): Builder {
+            this.clock = clock
+            return this
+        }
+
+        fun setAsyncMode(asyncMode: Boolean): Builder {
+            this.asyncMode = asyncMode
+            return this
+        }
+
         /**
          * 指定本地播放路径
          */
@@ -213,7 +264,9 @@ class AudioDecoder private constructor() : BaseDecoder() {
                 progressFreq,
                 path,
                 listener,
-                interceptor
+                interceptor,
+                clock,
+                asyncMode
             )
             return player
         }
@@ -235,7 +288,9 @@ class AudioDecoder private constructor() : BaseDecoder() {
                 fd,
                 offset,
                 length,
-                listener
+                listener,
+                clock,
+                asyncMode
             )
             return player
         }
@@ -248,7 +303,9 @@ class AudioDecoder private constructor() : BaseDecoder() {
         progressFreq: Long,
         path: String,
         listener: AudioListener?,
-        interceptor: NetInterceptor?
+        interceptor: NetInterceptor?,
+        clock: MediaClock?,
+        asyncMode: Boolean
     ) {
         this.autoPlay = autoPlay
         this.dealPcm = dealPcm
@@ -256,6 +313,8 @@ class AudioDecoder private constructor() : BaseDecoder() {
         this.progressFreq = progressFreq
         this.listener = listener
         this.interceptor = interceptor
+        this.clock = clock
+        this.asyncMode = asyncMode
         this.path = path
 
         extractor = MediaExtractor()
@@ -275,13 +334,17 @@ class AudioDecoder private constructor() : BaseDecoder() {
         fd: FileDescriptor,
         offset: Long,
         length: Long,
-        listener: AudioListener?
+        listener: AudioListener?,
+        clock: MediaClock?,
+        asyncMode: Boolean
     ) {
         this.autoPlay = autoPlay
         this.dealPcm = dealPcm
         this.loop = loop
         this.progressFreq = progressFreq
         this.listener = listener
+        this.clock = clock
+        this.asyncMode = asyncMode
         extractor = MediaExtractor()
         playStatus = State.NO_PLAY
         try {
@@ -305,7 +368,7 @@ class AudioDecoder private constructor() : BaseDecoder() {
                     extractor?.selectTrack(i)
                     //创建解码器
                     codec = MediaCodec.createDecoderByType(mime)
-                    codec!!.configure(format, null, null, 0)
+                    configureCodec(format, null)
                     //创建缓存区
                     bufferInfo = MediaCodec.BufferInfo()
                     break
@@ -337,9 +400,10 @@ class AudioDecoder private constructor() : BaseDecoder() {
             duration = format!!.getLong(MediaFormat.KEY_DURATION) / 1000
         }
 
+        var channels = AudioUtil.getChannels(channel)
         if (format!!.containsKey(MediaFormat.KEY_CHANNEL_COUNT)) {
             //音轨是多少声道的
-            val channels = format!!.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
+            channels = format!!.getInteger(MediaFormat.KEY_CHANNEL_COUNT)
             //将通道数转换为声道的配置,该值可用于AudioTrack创建
             channel = AudioUtil.getChannelOut(channels)
         }
@@ -363,6 +427,12 @@ class AudioDecoder private constructor() : BaseDecoder() {
             pcmBit = AudioFormat.ENCODING_PCM_16BIT
         }
 
+        frameBytes = channels * when (pcmBit) {
+            AudioFormat.ENCODING_PCM_8BIT -> 1
+            AudioFormat.ENCODING_PCM_FLOAT -> 4
+            else -> 2
+        }
+
         if (flag) {
             log("音频信息:$sample,$pcmBit,$channel,duration:$duration")
             onAudioFormat()
@@ -373,6 +443,10 @@ class AudioDecoder private constructor() : BaseDecoder() {
                     .setPcmEncodeBit(pcmBit)
                     .setChannel(channel)
                     .build()
+                //新的track从头计数,时钟改由新track驱动
+                writtenFrames = 0
+                val t = track!!
+                clock?.bindAudio(sample) { t.playbackHeadPosition }
             }
         }
     }
@@ -388,6 +462,16 @@ class AudioDecoder private constructor() : BaseDecoder() {
     }
 
 
+    override fun renderDelayUs(pts: Long): Long {
+        val t = track ?: return 0
+        if (dealPcm || sample <= 0) {
+            return 0
+        }
+        //track中已缓存超过半个缓冲区时延后写入,避免阻塞写入占用共用线程
+        val queued = writtenFrames - t.playbackHeadPosition - t.bufferSizeInFrames / 2
+        return queued * 1000_000 / sample
+    }
+
     override fun onRender(index: Int, pts: Long) {
         val buffer = codec?.getOutputBuffer(index) ?: return
         //数据帧的时间值
@@ -410,14 +494,16 @@ class AudioDecoder private constructor() : BaseDecoder() {
         //更新上一帧时间
         lastPts = pts
 
-        //获取音频信息
-        val chunk = ByteArray(bufferInfo!!.size)
-        buffer.get(chunk)
-        buffer.clear()
+        //限定有效数据范围,数据直接从解码器缓冲区读取,不再拷贝
+        buffer.position(bufferInfo!!.offset)
+        buffer.limit(bufferInfo!!.offset + bufferInfo!!.size)
 
         if (dealPcm) {
-            //自行处理音频,通过回调给出
-            listener?.onAudioData(chunk, p.coerceAtMost(100f))?.let {
+            //自行处理音频,通过回调给出,回调期间借出只读视图,asReadOnlyBuffer会把字节序重置为BIG_ENDIAN,需重新设置
+            listener?.onAudioBuffer(
+                buffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN),
+                p.coerceAtMost(100f)
+            )?.let {
                 if (inSeek() || inNoPlay())
                     return@let
                 if (it) {
@@ -426,8 +512,11 @@ class AudioDecoder private constructor() : BaseDecoder() {
             }
         } else {
             //播放音频
-            track?.writeData(chunk, chunk.size)
+            clock?.onAudioWritten(pts * 1000, writtenFrames)
+            writtenFrames += bufferInfo!!.size / frameBytes
+            track?.writeData(buffer, bufferInfo!!.size)
         }
+        buffer.clear()
         codec?.releaseOutputBuffer(index, false)
     }
 
@@ -444,6 +533,8 @@ class AudioDecoder private constructor() : BaseDecoder() {
     }
 
     override fun onEnd() {
+        //音频结束后时钟改由系统时钟驱动,避免视频停在最后一个音频位置
+        clock?.unbindAudio()
         listener?.onEnd()
     }
 }
\ No newline at end of file
@@ -8,9 +8,12 @@ import android.media.MediaFormat
 import android.util.Log
 import android.view.Surface
 import com.lee.video.lib.codec.base.BaseDecoder
+import com.lee.video.lib.codec.base.MediaClock
 import java.io.FileDescriptor
 import java.io.IOException
 import java.nio.ByteBuffer
+import java.util.concurrent.locks.LockSupport
+import kotlin.math.abs
 
 /**
  * 视频画面解码-单独使用可编辑视频画面,支持几乎所有视频格式文件,可无缝循环
@@ -18,6 +21,17 @@ import java.nio.ByteBuffer
  *@date 2021/11/25
  */
 class VideoDecoder private constructor() : BaseDecoder() {
+    companion object {
+        /**
+         * 提前多久送显,剩余的等待交给releaseOutputBuffer的时间戳处理
+         */
+        private const val RENDER_LEAD_US = 4000L
+
+        /**
+         * 系统时钟模式下偏差超过该值认为发生了跳转或暂停,重新对齐时钟
+         */
+        private const val RESYNC_US = 1000_000L
+    }
 
     interface VideoListener {
         /**
@@ -129,6 +143,17 @@ class VideoDecoder private constructor() : BaseDecoder() {
          * 网络音频进度对比拦截器,如果不是网络音频不需要实现该操作
          */
         private var interceptor: NetInterceptor? = null
+
+        /**
+         * 音视频同步时钟,不设置时使用自身的系统时钟
+         */
+        private var clock: MediaClock? = null
+
+        /**
+         * 是否使用异步回调模式,在共用线程上解码,需要android 6.0,低版本自动使用同步模式
+         */
+        private var asyncMode = false
+
         fun setSurface(surface: Surface?): Builder {
             this.surface = surface
             return this
@@ -164,6 +189,16 @@ class VideoDecoder private constructor() : BaseDecoder() {
             return this
         }
 
+        fun setClock(clock: MediaClock?): Builder {
+            this.clock = clock
+            return this
+        }
+
+        fun setAsyncMode(asyncMode: Boolean): Builder {
+            this.asyncMode = asyncMode
+            return this
+        }
+
         /**
          * 指定本地播放路径
          */
@@ -176,7 +211,9 @@ class VideoDecoder private constructor() : BaseDecoder() {
                 progressFreq,
                 path,
                 listener,
-                interceptor
+                interceptor,
+                clock,
+                asyncMode
             )
             return player
         }
@@ -198,7 +235,9 @@ class VideoDecoder private constructor() : BaseDecoder() {
                 fd,
                 offset,
                 length,
-                listener
+                listener,
+                clock,
+                asyncMode
             )
             return player
         }
@@ -212,7 +251,9 @@ class VideoDecoder private constructor() : BaseDecoder() {
         progressFreq: Long,
         path: String,
         listener: VideoListener?,
-        interceptor: NetInterceptor?
+        interceptor: NetInterceptor?,
+        clock: MediaClock?,
+        asyncMode: Boolean
     ) {
         this.surface = surface
         this.autoPlay = autoPlay
@@ -220,6 +261,8 @@ class VideoDecoder private constructor() : BaseDecoder() {
         this.progressFreq = progressFreq
         this.listener = listener
         this.interceptor = interceptor
+        this.clock = clock ?: MediaClock()
+        this.asyncMode = asyncMode
 
         extractor = MediaExtractor()
         playStatus = State.NO_PLAY
@@ -238,13 +281,17 @@ class VideoDecoder private constructor() : BaseDecoder() {
         fd: FileDescriptor,
         offset: Long,
         length: Long,
-        listener: VideoListener?
+        listener: VideoListener?,
+        clock: MediaClock?,
+        asyncMode: Boolean
     ) {
         this.surface = surface
         this.autoPlay = autoPlay
         this.loop = loop
         this.progressFreq = progressFreq
         this.listener = listener
+        this.clock = clock ?: MediaClock()
+        this.asyncMode = asyncMode
         extractor = MediaExtractor()
         playStatus = State.NO_PLAY
         try {
@@ -267,7 +314,7 @@ class VideoDecoder private constructor() : BaseDecoder() {
                 extractor?.selectTrack(i)
                 //创建解码器
                 codec = MediaCodec.createDecoderByType(mime)
-                codec!!.configure(format, surface, null, 0)
+                configureCodec(format, surface)
                 //创建缓存区
                 bufferInfo = MediaCodec.BufferInfo()
                 break
@@ -318,6 +365,28 @@ class VideoDecoder private constructor() : BaseDecoder() {
     override fun onDataWait() {
     }
 
+    /**
+     * 一帧画面的时长,微秒
+     */
+    private fun frameUs(): Long {
+        return if (videoFrame > 0) 1000_000L / videoFrame else 33_333L
+    }
+
+    override fun renderDelayUs(pts: Long): Long {
+        val clock = this.clock!!
+        val now = clock.getTimeUs()
+        if (now < 0) {
+            //音频尚未起播时等待,系统时钟模式由onRender开始计时
+            return if (clock.isAudioMaster()) frameUs() else 0
+        }
+        val early = pts * 1000 - now
+        if (!clock.isAudioMaster() && abs(early) > RESYNC_US) {
+            //由onRender重新对齐时钟
+            return 0
+        }
+        return early - RENDER_LEAD_US
+    }
+
     override fun onRender(index: Int,pts:Long) {
         codec?.getOutputBuffer(index) ?: return
         //数据帧的时间值
@@ -332,33 +401,35 @@ class VideoDecoder private constructor() : BaseDecoder() {
             listener?.onVideoProgress(100f)
         }
 
-        //记录开始节点
-        if (startTime == 0L || lastPts > pts && loop) {
-            startTime = System.currentTimeMillis()
-//            Log.e("lee", "视频开始了")
+        val clock = this.clock!!
+        val ptsUs = pts * 1000
+        //系统时钟模式下记录开始节点,循环回到开头时重新开始
+        if (!clock.isAudioMaster() && (clock.getTimeUs() < 0 || lastPts > pts && loop)) {
+            clock.startWall(ptsUs)
         }
         //更新上一帧时间
         lastPts = pts
-        val s = System.currentTimeMillis() - startTime - pts
-        val fps = (1000 / videoFrame).toLong()
-        var render = true
-        if (s < -fps) {
-            //时间较早,休眠一会再送入渲染
-            val expectedTime = System.currentTimeMillis() - s
-            do {
-                try {
-                    //由于cpu调度，休眠并不保证在指定时间后一定醒来，所以每次休眠几毫秒
-                    sleep(2)
-                } catch (e: InterruptedException) {
-                    //
-                }
-            } while (System.currentTimeMillis() < expectedTime - 2)
-        } else if (s > fps) {
-            //超时,直接丢弃
-            render = false
-//            Log.e("lee","超时,直接丢弃")
-        }
-        codec?.releaseOutputBuffer(index, render)
+        val frameUs = frameUs()
+        var early = ptsUs - clock.getTimeUs()
+        if (!clock.isAudioMaster() && abs(early) > RESYNC_US) {
+            //跳转或暂停后,系统时钟与画面对齐
+            clock.startWall(ptsUs)
+            early = 0
+        }
+        //时间较早,按时钟等待至送显前的一小段时间,时钟尚未开始(音频未起播)时同样等待
+        while ((early > RENDER_LEAD_US || clock.getTimeUs() < 0) && !inSeek() && !inNoPlay()) {
+            LockSupport.parkNanos(early.coerceIn(RENDER_LEAD_US, frameUs) * 1000)
+            early = ptsUs - clock.getTimeUs()
+        }
+        if (-early > frameUs) {
+            //落后超过一帧,直接丢弃
+            clock.onVideoFrame(-early, true)
+            codec?.releaseOutputBuffer(index, false)
+        } else {
+            //按时钟给出的时间点送显
+            clock.onVideoFrame(-early, false)
+            codec?.releaseOutputBuffer(index, System.nanoTime() + early.coerceAtLeast(0) * 1000)
+        }
     }
 
     private fun onVideoFormat() {
@@ -4,6 +4,7 @@ import android.media.MediaCodec
 import android.media.MediaExtractor
 import android.media.MediaFormat
 import com.lee.video.lib.codec.encoder.EncoderSyncListener
+import com.lee.video.lib.repack.FrameQueue
 import java.nio.ByteBuffer
 import kotlin.math.min
 
@@ -13,6 +14,13 @@ import kotlin.math.min
  *@date 2021/12/6
  */
 class AudioExtractor private constructor() {
+    companion object {
+        /**
+         * 轨道未给出最大输入大小时使用的缓冲区大小
+         */
+        private const val DEFAULT_MAX_INPUT_SIZE = 64 * 1024
+    }
+
     var listener: EncoderSyncListener? = null
 
     /**
@@ -21,11 +29,23 @@ class AudioExtractor private constructor() {
     private lateinit var extractor: MediaExtractor
 
     /**
-     * 缓存区
+     * 缓存区,按轨道的最大输入大小创建
      */
-    private var buffer = ByteBuffer.allocate(500 * 1024)
+    private var buffer: ByteBuffer? = null
     private var bufferInfo = MediaCodec.BufferInfo()
 
+    /**
+     * 单个音频帧的最大字节数
+     */
+    var maxInputSize = DEFAULT_MAX_INPUT_SIZE
+        private set
+
+    /**
+     * 是否存在音频轨道
+     */
+    var hasAudio = false
+        private set
+
     /**
      * 音频时长,用于计算提取进度
      */
@@ -36,6 +56,12 @@ class AudioExtractor private constructor() {
      */
     private var dos = false
 
+    /**
+     * 截取范围,单位为微秒,输出的时间从startUs开始计为0
+     */
+    private var startUs = 0L
+    private var endUs = Long.MAX_VALUE
+
     class Builder {
         var listener: EncoderSyncListener? = null
 
@@ -67,19 +93,41 @@ class AudioExtractor private constructor() {
         extractor.setDataSource(path)
     }
 
+    /**
+     * 设置截取范围,需在prepare之前调用
+     */
+    fun setRange(startUs: Long, endUs: Long) {
+        this.startUs = startUs.coerceAtLeast(0)
+        this.endUs = if (endUs <= 0) Long.MAX_VALUE else endUs
+    }
+
     fun prepare() {
         dos = false
+        hasAudio = false
         for (i in 0 until extractor.trackCount) {
             val format = extractor.getTrackFormat(i)
             val mime = format.getString(MediaFormat.KEY_MIME)
             if (mime != null && mime.startsWith("audio/")) {
                 //选择指定轨道
                 extractor.selectTrack(i)
-                duration = format.getLong(MediaFormat.KEY_DURATION)
+                duration = (min(format.getLong(MediaFormat.KEY_DURATION), endUs) - startUs).coerceAtLeast(1)
+                if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+                    maxInputSize = format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                }
+                hasAudio = true
                 listener?.onFormat(format)
                 break
             }
         }
+        //没有音频轨道时直接结束
+        dos = !hasAudio
+        if (hasAudio && startUs > 0) {
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+            //跳过起点之前的数据
+            while (extractor.sampleTime in 0 until startUs) {
+                extractor.advance()
+            }
+        }
     }
 
 
@@ -89,29 +137,74 @@ class AudioExtractor private constructor() {
     fun extract() {
         if (dos)
             return
-        buffer.clear()
+        var buffer = this.buffer
+        if (buffer == null || buffer.capacity() < maxInputSize) {
+            buffer = ByteBuffer.allocateDirect(maxInputSize)
+            this.buffer = buffer
+        }
+        buffer!!.clear()
         val readSampleCount = extractor.readSampleData(buffer, 0)
-        if (readSampleCount < 0) {
+        if (readSampleCount < 0 || extractor.sampleTime > endUs) {
             listener?.onEncoderProgress(100f)
             dos = true
         } else {
-            listener?.onEncoderProgress(
-                min(
-                    ((bufferInfo.presentationTimeUs * 1f / duration) * 10000).toInt() / 100f,
-                    100f
-                )
-            )
             bufferInfo.set(
                 0,
                 readSampleCount,
-                extractor.sampleTime,
+                extractor.sampleTime - startUs,
                 extractor.sampleFlags
             )
+            onProgress()
+            buffer.limit(readSampleCount)
             listener?.onData(buffer, bufferInfo)
             extractor.advance()
         }
     }
 
+    /**
+     * 直通提取,将输出pts不超过untilPtsUs的数据一次性直接读入队列槽位,不经过中间缓冲区与listener.onData
+     *
+     * @return 本次提取的帧数
+     */
+    fun extractTo(queue: FrameQueue, untilPtsUs: Long): Int {
+        var count = 0
+        while (!dos) {
+            val sampleTime = extractor.sampleTime
+            if (sampleTime < 0 || sampleTime > endUs) {
+                listener?.onEncoderProgress(100f)
+                dos = true
+                break
+            }
+            if (sampleTime - startUs > untilPtsUs) {
+                break
+            }
+            val slot = queue.obtain(maxInputSize) ?: break
+            val readSampleCount = extractor.readSampleData(slot, 0)
+            if (readSampleCount < 0) {
+                listener?.onEncoderProgress(100f)
+                dos = true
+                break
+            }
+            bufferInfo.set(0, readSampleCount, sampleTime - startUs, extractor.sampleFlags)
+            queue.commit(bufferInfo)
+            extractor.advance()
+            count++
+        }
+        if (count > 0) {
+            onProgress()
+        }
+        return count
+    }
+
+    private fun onProgress() {
+        listener?.onEncoderProgress(
+            min(
+                ((bufferInfo.presentationTimeUs * 1f / duration) * 10000).toInt() / 100f,
+                100f
+            )
+        )
+    }
+
 
     fun isEnd(): Boolean {
         return dos
@@ -120,4 +213,4 @@ class AudioExtractor private constructor() {
     fun release() {
         extractor.release()
     }
-}
\ No newline at end of file
+}
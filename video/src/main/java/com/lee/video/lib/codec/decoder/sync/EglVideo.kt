@@ -15,9 +15,12 @@ import com.lee.video.lib.gl.render.drawer.IDrawer
 class EglVideo {
     private lateinit var eglSurfaceHolder: EGLSurfaceHolder
     private lateinit var drawer: IDrawer
-    private lateinit var drawer2: IDrawer
+    /**
+     * 叠加绘制器,为空时不叠加
+     */
+    private var drawer2: IDrawer? = null
     private lateinit var inputSurface: Surface
-    fun create(surface: Surface, drawer: IDrawer, drawer2: IDrawer, width: Int, height: Int) {
+    fun create(surface: Surface, drawer: IDrawer, drawer2: IDrawer?, width: Int, height: Int) {
         //初始化egl
         inputSurface = surface
         eglSurfaceHolder = EGLSurfaceHolder()
@@ -33,15 +36,15 @@ class EglVideo {
         this.drawer.onWordSize(width, height)
         this.drawer.onConfig()
         this.drawer2 = drawer2
-        this.drawer2.onWordSize(width, height)
-        this.drawer2.onConfig()
+        drawer2?.onWordSize(width, height)
+        drawer2?.onConfig()
     }
 
     fun swapBuffers(time: Long) {
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT or GLES20.GL_DEPTH_BUFFER_BIT)
         drawer.onDrawFrame()
         if (time in 5000000..10000000)
-            drawer2.onDrawFrame()
+            drawer2?.onDrawFrame()
         eglSurfaceHolder.setTimestamp(time)
         eglSurfaceHolder.swapBuffers()
     }
@@ -52,7 +55,7 @@ class EglVideo {
 
     fun setSize(width: Int, height: Int) {
         drawer.setSize(width, height)
-        drawer2.setSize(width, height)
+        drawer2?.setSize(width, height)
     }
 
     fun release() {
@@ -5,6 +5,7 @@ import android.media.MediaExtractor
 import android.media.MediaFormat
 import android.util.Log
 import android.view.Surface
+import kotlin.math.min
 
 /**
  * 视频画面解码-同步,便于与EGL绑定,用于视频重编码
@@ -78,6 +79,12 @@ class VideoDecoderSync {
 
     private var format: MediaFormat? = null
 
+    /**
+     * 截取范围,单位为微秒,输出的时间从startUs开始计为0
+     */
+    private var startUs = 0L
+    private var endUs = Long.MAX_VALUE
+
 
     fun create(inPath: String) {
         extractor = MediaExtractor()
@@ -105,6 +112,16 @@ class VideoDecoderSync {
         }
     }
 
+    /**
+     * 设置截取范围,需在create之后、prepare之前调用
+     * 从startUs之前的关键帧开始解码,startUs之前的画面只解码不渲染
+     */
+    fun setRange(startUs: Long, endUs: Long) {
+        this.startUs = startUs.coerceAtLeast(0)
+        this.endUs = if (endUs <= 0) Long.MAX_VALUE else endUs
+        duration = (min(duration, this.endUs) - this.startUs).coerceAtLeast(1)
+    }
+
     fun configEgl(egl: EglVideo) {
         this.egl = egl
         egl.setSize(videoWidth, videoHeight)
@@ -114,20 +131,26 @@ class VideoDecoderSync {
     fun prepare() {
         dos = false
         ros = false
+        if (startUs > 0) {
+            extractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+        }
         codec.start()
     }
 
     /**
      * 解码数据
+     *
+     * @param timeoutUs 等待输入缓冲区的时间
+     * @return 是否送入了数据
      */
-    fun decoder() {
+    fun decoder(timeoutUs: Long = waitTime): Boolean {
         if (dos)
-            return
-        val index = codec.dequeueInputBuffer(waitTime)
-        if (index < 0) return
-        val diInputBuffer = codec.getInputBuffer(index) ?: return
+            return false
+        val index = codec.dequeueInputBuffer(timeoutUs)
+        if (index < 0) return false
+        val diInputBuffer = codec.getInputBuffer(index) ?: return false
         val sampleSize = extractor.readSampleData(diInputBuffer, 0)
-        if (sampleSize < 0) {
+        if (sampleSize < 0 || extractor.sampleTime > endUs) {
             //解码完毕
             codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
             dos = true
@@ -136,28 +159,36 @@ class VideoDecoderSync {
             //获取下一帧数据
             extractor.advance()
         }
+        return true
     }
 
-    fun render() {
+    /**
+     * 渲染解码数据
+     *
+     * @param timeoutUs 等待输出缓冲区的时间
+     * @return 是否取到了输出数据
+     */
+    fun render(timeoutUs: Long = waitTime): Boolean {
         if (ros)
-            return
+            return false
         val bufferInfo = MediaCodec.BufferInfo()
-        val index = codec.dequeueOutputBuffer(bufferInfo, waitTime)
+        val index = codec.dequeueOutputBuffer(bufferInfo, timeoutUs)
         if (index >= 0) {
             val buffer = codec.getOutputBuffer(index)
             if (buffer == null) {
                 codec.releaseOutputBuffer(index, false)
             } else {
-                var render = true
+                //截取范围之前的画面不渲染
+                var render = bufferInfo.presentationTimeUs >= startUs
                 //启用FPS减半的情况下,做对应的丢帧处理
-                if (enableAbandon) {
+                if (render && enableAbandon) {
                     render = abandon
                     abandon = !abandon
                 }
 
                 if (render) {
                     //渲染输出
-                    val time = bufferInfo.presentationTimeUs
+                    val time = bufferInfo.presentationTimeUs - startUs
                     egl?.swapBuffers(time)
                 }
 
@@ -169,6 +200,14 @@ class VideoDecoderSync {
         if (flag != 0) {
             ros = true
         }
+        return index >= 0
+    }
+
+    /**
+     * 输入是否结束
+     */
+    fun isInputEnd(): Boolean {
+        return dos
     }
 
     fun isEnd(): Boolean {
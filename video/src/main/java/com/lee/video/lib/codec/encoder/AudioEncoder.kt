@@ -5,13 +5,17 @@ import android.media.MediaCodec
 import android.media.MediaCodecInfo
 import android.media.MediaFormat
 import android.util.Log
+import com.lee.video.lib.codec.base.CodecLooper
 import com.lee.video.lib.repack.FrameObject
+import com.lee.video.lib.repack.FrameQueue
 import com.lee.video.lib.repack.Mp4Mixer
+import java.util.ArrayDeque
 import java.util.concurrent.Executors
 
 /**
  * 音频编码器
  * 音频编码器启用两个线程,一个线程持续压入待编码的数据,另一个线程持续取出编码好的数据
+ * 异步模式下不启用线程,压入与取出都在CodecLooper共用线程上完成
  *@author lee
  *@date 2021/11/25
  */
@@ -57,15 +61,32 @@ class AudioEncoder private constructor() {
     private val waitTime: Long = 1000 * 16
 
     /**
-     * 编解码数据队列-缓存当前待编解码的数据
+     * 编解码数据队列-缓存当前待编解码的数据,队列满时压入方阻塞等待
+     * 可读取队列深度与阻塞统计
      */
-    private val frameQueue = arrayListOf<FrameObject>()
+    val frameQueue = FrameQueue()
 
     /**
      * 线程池-执行编解码任务
      */
     private val pool = Executors.newScheduledThreadPool(2)
 
+    /**
+     * 是否使用异步回调模式
+     * true 使用MediaCodec.setCallback在CodecLooper共用线程上编码,不再占用压入与取出线程,需要android 6.0,低版本自动使用同步模式
+     */
+    private var asyncMode = false
+
+    /**
+     * 异步模式下可用的输入缓冲区索引
+     */
+    private val pendingInput = ArrayDeque<Int>()
+
+    /**
+     * 异步模式下压入数据
+     */
+    private val feedTask = Runnable { feed() }
+
     /**
      * 构建器
      */
@@ -97,6 +118,10 @@ class AudioEncoder private constructor() {
          */
         private var bitRate = 96000
 
+        /**
+         * 是否使用异步回调模式,在共用线程上编码,需要android 6.0,低版本自动使用同步模式
+         */
+        private var asyncMode = false
 
         fun setListener(listener: EncoderAsyncListener): Builder {
             this.listener = listener
@@ -128,10 +153,15 @@ class AudioEncoder private constructor() {
             return this
         }
 
+        fun setAsyncMode(asyncMode: Boolean): Builder {
+            this.asyncMode = asyncMode
+            return this
+        }
+
 
         fun build(): AudioEncoder {
             val encoder = AudioEncoder()
-            encoder.generateEncoder(mixer, sample, channelCount, bitRate, autoEncode, listener)
+            encoder.generateEncoder(mixer, sample, channelCount, bitRate, autoEncode, asyncMode, listener)
             return encoder
         }
     }
@@ -142,11 +172,13 @@ class AudioEncoder private constructor() {
         channelCount: Int,
         bitRate: Int,
         autoEncode: Boolean,
+        asyncMode: Boolean,
         listener: EncoderAsyncListener?
     ) {
         val aacProfile = MediaCodecInfo.CodecProfileLevel.AACObjectLC
         this.mixer = mixer
         this.autoEncode = autoEncode
+        this.asyncMode = asyncMode && CodecLooper.isSupported()
         this.listener = listener
         val format =
             MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sample, channelCount)
@@ -160,6 +192,9 @@ class AudioEncoder private constructor() {
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate)
         format.setInteger(MediaFormat.KEY_CHANNEL_COUNT, channelCount)
         codec = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC)
+        if (this.asyncMode) {
+            codec?.setCallback(asyncCallback, CodecLooper.handler)
+        }
         codec?.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
 
 
@@ -202,11 +237,24 @@ class AudioEncoder private constructor() {
     }
 
     /**
-     * 压入编码数据
+     * 压入编码数据,队列满时阻塞,限制压入方领先编码的程度
+     * 异步模式下在CodecLooper线程(例如异步解码器的回调中)调用时不阻塞,队列满时返回false,需稍后重新压入
+     *
+     * @return false 数据未压入
      */
-    fun encoder(frameObject: FrameObject) {
-        synchronized(frameQueue) {
-            frameQueue.add(frameObject)
+    fun encoder(frameObject: FrameObject): Boolean {
+        if (asyncMode) {
+            //数据由CodecLooper线程消费,在该线程阻塞等待会卡死自身
+            val accepted = if (CodecLooper.isCurrentThread()) {
+                frameQueue.offer(frameObject.buffer, frameObject.bufferInfo)
+            } else {
+                frameQueue.put(frameObject.buffer, frameObject.bufferInfo)
+            }
+            CodecLooper.handler.post(feedTask)
+            return accepted
+        }
+        if (!frameQueue.put(frameObject.buffer, frameObject.bufferInfo)) {
+            return false
         }
         if(!isRun){
             isRun=true
@@ -214,15 +262,17 @@ class AudioEncoder private constructor() {
             pool.execute(coderTask)
             pool.execute(encoderTask)
         }
+        return true
     }
 
     /**
      * 停止编码器
+     * @return false 结束标志未压入,与encoder相同,需稍后重新调用
      */
-    fun stopEncoder() {
+    fun stopEncoder(): Boolean {
         //压入一个空数据
-        encoder(FrameObject())
 //        Log.e("lee", "停止了音频编码器,剩余待处理数据:${frameQueue.size}")
+        return encoder(FrameObject())
     }
 
     /**
@@ -231,41 +281,41 @@ class AudioEncoder private constructor() {
     private val coderTask = Runnable {
         dos = false
         while (true) {
-            val empty = synchronized(frameQueue) {
-                frameQueue.isEmpty()
-            }
-            if (empty)
-                continue
-
-            if (frameQueue.isNotEmpty()) {
-                val frame = synchronized(frameQueue) {
-                    frameQueue.removeAt(0)
-                }
-                val index = codec!!.dequeueInputBuffer(waitTime)
-                if (index < 0) {
-                    continue
-                }
-                val inputBuffer = codec?.getInputBuffer(index) ?: continue
-                if (frame.buffer == null) {
-//                    Log.e("lee", "音频结束标志")
-                    codec?.queueInputBuffer(
-                        index,
-                        0,
-                        0,
-                        0,
-                        MediaCodec.BUFFER_FLAG_END_OF_STREAM
-                    )
+            //队列为空时阻塞等待,不再空转
+            val frame = frameQueue.take(waitTime)
+            if (frame == null) {
+                if (frameQueue.closed) {
                     break
-                } else {
-                    inputBuffer.put(frame.buffer!!)
-                    codec?.queueInputBuffer(
-                        index,
-                        0,
-                        frame.bufferInfo.size,
-                        frame.bufferInfo.presentationTimeUs,
-                        0
-                    )
                 }
+                continue
+            }
+            val index = codec!!.dequeueInputBuffer(waitTime)
+            if (index < 0) {
+                //没有可用的输入缓冲区,数据保留在队列中下次再压入
+                continue
+            }
+            val inputBuffer = codec?.getInputBuffer(index) ?: continue
+            if (frame.buffer == null) {
+//                Log.e("lee", "编码结束标志")
+                codec?.queueInputBuffer(
+                    index,
+                    0,
+                    0,
+                    0,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM
+                )
+                frameQueue.release()
+                break
+            } else {
+                inputBuffer.put(frame.buffer!!)
+                codec?.queueInputBuffer(
+                    index,
+                    0,
+                    frame.bufferInfo.size,
+                    frame.bufferInfo.presentationTimeUs,
+                    0
+                )
+                frameQueue.release()
             }
         }
         dos = true
@@ -300,11 +350,74 @@ class AudioEncoder private constructor() {
         goEnd()
     }
 
+    /**
+     * 异步回调,在CodecLooper共用线程执行
+     */
+    private val asyncCallback = object : MediaCodec.Callback() {
+        override fun onInputBufferAvailable(mc: MediaCodec, index: Int) {
+            pendingInput.add(index)
+            feed()
+        }
+
+        override fun onOutputBufferAvailable(mc: MediaCodec, index: Int, info: MediaCodec.BufferInfo) {
+            //结束标志
+            if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+                mc.releaseOutputBuffer(index, false)
+                ros = true
+                //不在回调内释放编码器
+                CodecLooper.handler.post { goEnd() }
+                return
+            }
+            mixer.writeAudioData(mc.getOutputBuffer(index)!!, info)
+            mc.releaseOutputBuffer(index, false)
+        }
+
+        override fun onOutputFormatChanged(mc: MediaCodec, format: MediaFormat) {
+            mixer.addAudioTrack(format)
+        }
+
+        override fun onError(mc: MediaCodec, e: MediaCodec.CodecException) {
+            Log.e("lee", "encoder err:$e")
+        }
+    }
+
+    /**
+     * 异步模式下将队列中的数据压入可用的输入缓冲区,只在CodecLooper线程执行
+     */
+    private fun feed() {
+        while (!dos) {
+            val frame = frameQueue.peek() ?: return
+            val index = pendingInput.poll() ?: return
+            val inputBuffer = codec?.getInputBuffer(index) ?: return
+            if (frame.buffer == null) {
+                codec?.queueInputBuffer(
+                    index,
+                    0,
+                    0,
+                    0,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM
+                )
+                dos = true
+            } else {
+                inputBuffer.put(frame.buffer!!)
+                codec?.queueInputBuffer(
+                    index,
+                    0,
+                    frame.bufferInfo.size,
+                    frame.bufferInfo.presentationTimeUs,
+                    0
+                )
+            }
+            frameQueue.release()
+        }
+    }
+
     private fun goEnd() {
         if (dos && ros) {
             codec?.stop()
             codec?.release()
             codec = null
+            frameQueue.close()
 //            Log.e("lee", "音频编码任务完成")
             listener?.onEnd()
         }
@@ -176,11 +176,17 @@ class VideoEncoder private constructor() {
         codec.start()
     }
 
-    fun render() {
+    /**
+     * 获取编码数据
+     *
+     * @param timeoutUs 等待输出缓冲区的时间
+     * @return 是否取到了输出数据
+     */
+    fun render(timeoutUs: Long = waitTime): Boolean {
         if (ros)
-            return
+            return false
         val bufferInfo = MediaCodec.BufferInfo()
-        val index = codec.dequeueOutputBuffer(bufferInfo, waitTime)
+        val index = codec.dequeueOutputBuffer(bufferInfo, timeoutUs)
         if (index >= 0) {
             //结束标志
             val flag = bufferInfo.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM
@@ -196,6 +202,7 @@ class VideoEncoder private constructor() {
             //参数发生了变化
             listener?.onFormat(codec.outputFormat)
         }
+        return index >= 0
     }
 
     fun isEnd(): Boolean {
@@ -7,6 +7,7 @@ import android.media.MediaFormat
 import android.opengl.GLSurfaceView
 import android.util.Log
 import com.lee.video.lib.codec.base.BaseDecoder
+import com.lee.video.lib.codec.base.MediaClock
 import com.lee.video.lib.codec.decoder.AudioDecoder
 import com.lee.video.lib.codec.decoder.VideoDecoder
 import com.lee.video.lib.gl.render.BaseSurfaceRender
@@ -44,6 +45,11 @@ class HardPlayer private constructor() {
      */
     private var videoDecoder: VideoDecoder? = null
 
+    /**
+     * 音视频共用的同步时钟,由音频播放头驱动
+     */
+    val clock = MediaClock()
+
     /**
      * 视频配置需要的相关参数
      */
@@ -101,6 +107,11 @@ class HardPlayer private constructor() {
      */
     private var progressFreq: Long = 0
 
+    /**
+     * 是否使用异步回调模式解码
+     */
+    private var asyncMode = false
+
 
     /**
      * 进度以谁为准,该值通过比较音频与视频的长度决定
@@ -185,6 +196,11 @@ class HardPlayer private constructor() {
         private var dealPcm = false
         //音频相关参数配置
 
+        /**
+         * 是否使用异步回调模式,音视频解码共用CodecLooper线程,需要android 6.0,低版本自动使用同步模式
+         */
+        private var asyncMode = false
+
         //视频相关参数配置
         private var context: Context? = null
 
@@ -227,6 +243,11 @@ class HardPlayer private constructor() {
             return this
         }
 
+        fun setAsyncMode(asyncMode: Boolean): Builder {
+            this.asyncMode = asyncMode
+            return this
+        }
+
 
         fun setContext(context: Context?): Builder {
             this.context = context
@@ -258,7 +279,7 @@ class HardPlayer private constructor() {
             val player = HardPlayer()
             player.generate(
                 autoPlay, loop, decoderAudio, decoderVideo, progressFreq,
-                dealPcm,
+                dealPcm, asyncMode,
                 context, surfaceView,
                 interceptor, listener,
                 path = path
@@ -274,7 +295,7 @@ class HardPlayer private constructor() {
             val player = HardPlayer()
             player.generate(
                 autoPlay, loop, decoderAudio, decoderVideo, progressFreq,
-                dealPcm,
+                dealPcm, asyncMode,
                 context, surfaceView,
                 interceptor, listener,
                 fd = fd, offset = offset, length = length
@@ -291,6 +312,7 @@ class HardPlayer private constructor() {
         decoderVideo: Boolean,
         progressFreq: Long,
         dealPcm: Boolean,
+        asyncMode: Boolean,
         context: Context?,
         surfaceView: GLSurfaceView?,
         interceptor: BaseDecoder.NetInterceptor?,
@@ -321,6 +343,7 @@ class HardPlayer private constructor() {
         this.autoPlay = autoPlay
         this.loop = loop
         this.progressFreq = progressFreq
+        this.asyncMode = asyncMode
         this.context = context
         this.surfaceView = surfaceView
         this.interceptor = interceptor
@@ -416,6 +439,8 @@ class HardPlayer private constructor() {
             .setLoop(loop)
             .setDealPcm(dealPcm)
             .setProgressFreq(progressFreq)
+            .setClock(clock)
+            .setAsyncMode(asyncMode)
             .setInterceptor(object : BaseDecoder.NetInterceptor {
                 override fun progressComparison(decoderProgress: Float): Boolean {
                     return false
@@ -479,6 +504,8 @@ class HardPlayer private constructor() {
                 .setLoop(loop)
                 .setProgressFreq(progressFreq)
                 .setSurface(it)
+                .setClock(clock)
+                .setAsyncMode(asyncMode)
                 .setInterceptor(object : BaseDecoder.NetInterceptor {
                     override fun progressComparison(decoderProgress: Float): Boolean {
                         return false
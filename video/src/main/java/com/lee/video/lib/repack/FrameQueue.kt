@@ -0,0 +1,272 @@
+package com.lee.video.lib.repack
+
+import android.media.MediaCodec
+import java.nio.ByteBuffer
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * 有界的单生产者单消费者帧队列
+ * 每个槽位持有可复用的缓冲区,压入时拷贝数据,稳定运行后不再分配内存
+ * 队列满时生产者阻塞等待(背压),队列空时消费者阻塞等待,均通过LockSupport挂起,不会空转
+ * 生产者不能阻塞时(例如与消费者在同一线程)使用offer,队列满时直接返回false
+ * 只允许一个线程压入、一个线程取出
+ */
+class FrameQueue(capacity: Int = 32, private val bufferSize: Int = 4 * 1024) {
+    private val capacity = capacity.coerceAtLeast(2)
+
+    /**
+     * 槽位,buffer为空表示结束标志
+     */
+    private val slots = Array(this.capacity) { FrameObject() }
+
+    /**
+     * 槽位自身的缓冲区
+     */
+    private val slotBuffers = arrayOfNulls<ByteBuffer>(this.capacity)
+
+    /**
+     * 消费者位置,只由消费者修改
+     */
+    @Volatile
+    private var head = 0L
+
+    /**
+     * 生产者位置,只由生产者修改
+     */
+    @Volatile
+    private var tail = 0L
+
+    /**
+     * 挂起等待中的线程
+     */
+    @Volatile
+    private var producerWaiter: Thread? = null
+
+    @Volatile
+    private var consumerWaiter: Thread? = null
+
+    /**
+     * 队列已关闭,不再接收数据,阻塞中的线程将被唤醒
+     */
+    @Volatile
+    var closed = false
+        private set
+
+    /**
+     * 出现过的最大队列深度
+     */
+    @Volatile
+    var maxDepth = 0
+        private set
+
+    /**
+     * 生产者因队列满而阻塞的次数及总时长(纳秒)
+     */
+    @Volatile
+    var producerStalls = 0L
+        private set
+
+    @Volatile
+    var producerStallNs = 0L
+        private set
+
+    /**
+     * 消费者因队列空而阻塞的次数
+     */
+    @Volatile
+    var consumerStalls = 0L
+        private set
+
+    /**
+     * 当前队列深度
+     */
+    fun size(): Int {
+        return (tail - head).toInt()
+    }
+
+    /**
+     * 压入数据,拷贝data中position至limit的内容,队列满时阻塞
+     *
+     * @param data 为空时压入结束标志
+     * @return false 队列已关闭
+     */
+    fun put(data: ByteBuffer?, info: MediaCodec.BufferInfo): Boolean {
+        val slot = awaitSlot() ?: return false
+        write(slot, data, info)
+        return true
+    }
+
+    /**
+     * 压入数据,与put相同,但队列满时不阻塞
+     *
+     * @param data 为空时压入结束标志
+     * @return false 队列已满或已关闭,数据未压入
+     */
+    fun offer(data: ByteBuffer?, info: MediaCodec.BufferInfo): Boolean {
+        if (closed || tail - head >= capacity) {
+            return false
+        }
+        write(slots[(tail % capacity).toInt()], data, info)
+        return true
+    }
+
+    private fun write(slot: FrameObject, data: ByteBuffer?, info: MediaCodec.BufferInfo) {
+        if (data == null) {
+            slot.buffer = null
+        } else {
+            val buffer = slotBuffer(data.remaining())
+            buffer.put(data)
+            buffer.flip()
+            slot.buffer = buffer
+        }
+        slot.setBufferInfo(info)
+        publish()
+    }
+
+    /**
+     * 压入数据,拷贝data中offset开始的size字节,队列满时阻塞
+     *
+     * @return false 队列已关闭
+     */
+    fun put(data: ByteArray, offset: Int, size: Int, pts: Long): Boolean {
+        val slot = awaitSlot() ?: return false
+        val buffer = slotBuffer(size)
+        buffer.put(data, offset, size)
+        buffer.flip()
+        slot.buffer = buffer
+        slot.bufferInfo.set(0, size, pts, 0)
+        publish()
+        return true
+    }
+
+    /**
+     * 借出当前槽位的缓冲区,生产者直接向其中写入数据,避免额外拷贝,写入后需调用commit发布,队列满时阻塞
+     *
+     * @param size 需要的最小容量
+     * @return null 队列已关闭
+     */
+    fun obtain(size: Int): ByteBuffer? {
+        awaitSlot() ?: return null
+        return slotBuffer(size)
+    }
+
+    /**
+     * 发布obtain借出的缓冲区,数据范围以info为准
+     */
+    fun commit(info: MediaCodec.BufferInfo) {
+        val slot = slots[(tail % capacity).toInt()]
+        val buffer = slotBuffers[(tail % capacity).toInt()]!!
+        buffer.limit(info.offset + info.size)
+        buffer.position(info.offset)
+        slot.buffer = buffer
+        slot.setBufferInfo(info)
+        publish()
+    }
+
+    /**
+     * 取出队首数据但不移除,队列为空时返回null,使用完毕后需调用release
+     */
+    fun peek(): FrameObject? {
+        if (head == tail) {
+            return null
+        }
+        return slots[(head % capacity).toInt()]
+    }
+
+    /**
+     * 取出队首数据但不移除,队列为空时最多阻塞timeoutUs微秒,使用完毕后需调用release
+     */
+    fun take(timeoutUs: Long): FrameObject? {
+        var frame = peek()
+        if (frame != null || closed) {
+            return frame
+        }
+        consumerStalls++
+        val deadline = System.nanoTime() + timeoutUs * 1000
+        consumerWaiter = Thread.currentThread()
+        try {
+            while (true) {
+                frame = peek()
+                if (frame != null || closed) {
+                    return frame
+                }
+                val left = deadline - System.nanoTime()
+                if (left <= 0) {
+                    return null
+                }
+                LockSupport.parkNanos(this, left)
+            }
+        } finally {
+            consumerWaiter = null
+        }
+    }
+
+    /**
+     * 移除队首数据,槽位交还给生产者
+     */
+    fun release() {
+        if (head == tail) {
+            return
+        }
+        head++
+        producerWaiter?.let { LockSupport.unpark(it) }
+    }
+
+    /**
+     * 关闭队列,唤醒阻塞中的线程
+     */
+    fun close() {
+        closed = true
+        producerWaiter?.let { LockSupport.unpark(it) }
+        consumerWaiter?.let { LockSupport.unpark(it) }
+    }
+
+    /**
+     * 等待可写入的槽位
+     */
+    private fun awaitSlot(): FrameObject? {
+        if (tail - head >= capacity) {
+            producerStalls++
+            val start = System.nanoTime()
+            producerWaiter = Thread.currentThread()
+            try {
+                while (tail - head >= capacity && !closed) {
+                    LockSupport.parkNanos(this, 1000_000L * 16)
+                }
+            } finally {
+                producerWaiter = null
+                producerStallNs += System.nanoTime() - start
+            }
+        }
+        if (closed) {
+            return null
+        }
+        return slots[(tail % capacity).toInt()]
+    }
+
+    /**
+     * 获取当前槽位的缓冲区,容量不足时扩容
+     */
+    private fun slotBuffer(size: Int): ByteBuffer {
+        val index = (tail % capacity).toInt()
+        var buffer = slotBuffers[index]
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size.coerceAtLeast(bufferSize))
+            slotBuffers[index] = buffer
+        }
+        buffer!!.clear()
+        return buffer
+    }
+
+    /**
+     * 发布槽位,唤醒消费者
+     */
+    private fun publish() {
+        tail++
+        val depth = size()
+        if (depth > maxDepth) {
+            maxDepth = depth
+        }
+        consumerWaiter?.let { LockSupport.unpark(it) }
+    }
+}
@@ -15,15 +15,66 @@ import com.lee.video.lib.gl.render.drawer.IDrawer
 import com.lee.video.lib.gl.render.drawer.VideoClipDrawer
 import java.lang.Exception
 import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.locks.LockSupport
 import kotlin.math.min
 
 /**
+ * 视频裁剪重编码
+ * 解码、渲染、编码、音频提取、混合分为5个阶段,各自占用一个线程,阶段之间通过有界队列或编解码器本身交接数据,
+ * 某一阶段处理过慢时上游自然阻塞等待,不会空转
  *@author lee
  *@date 2021/12/2
  */
 class Mp4Clip private constructor() {
 
+    companion object {
+        /**
+         * 解码阶段,读取视频数据送入解码器
+         */
+        const val STAGE_DECODE = 0
+
+        /**
+         * 渲染阶段,取出解码后的画面经EGL绘制到编码器输入表面
+         */
+        const val STAGE_RENDER = 1
+
+        /**
+         * 编码阶段,取出编码数据压入视频队列
+         */
+        const val STAGE_ENCODE = 2
+
+        /**
+         * 音频阶段,提取音频数据压入音频队列
+         */
+        const val STAGE_AUDIO = 3
+
+        /**
+         * 混合阶段,按时间顺序将音视频数据写入文件
+         */
+        const val STAGE_MUX = 4
+
+        /**
+         * 阶段数量,即一个任务占用的线程数
+         */
+        const val STAGE_COUNT = 5
+
+        /**
+         * 各阶段等待数据的超时时间-单位为微秒
+         */
+        private const val STAGE_WAIT_US = 10_000L
+
+        /**
+         * 音频提取领先于视频编码进度的时长-单位为微秒
+         * 保证混合阶段总有可与视频交错的音频数据,又不会让音频一次性占满队列
+         */
+        private const val AUDIO_LEAD_US = 1000_000L
+    }
+
     class Builder {
         private var context: Context? = null
 
@@ -73,6 +124,22 @@ class Mp4Clip private constructor() {
          */
         private var clarity = 0.3f
 
+        /**
+         * 截取范围,单位为微秒,endUs小于等于0表示截取到结尾
+         */
+        private var startUs = 0L
+        private var endUs = 0L
+
+        /**
+         * 截取起点不是关键帧时是否精确截取,否则起点对齐到之前的关键帧,仅在流拷贝时有效
+         */
+        private var accurateCut = false
+
+        /**
+         * 是否叠加图片
+         */
+        private var overlay = true
+
         fun setContext(context: Context): Builder {
             this.context = context
             return this
@@ -125,6 +192,22 @@ class Mp4Clip private constructor() {
         }
 
 
+        fun setRange(startUs: Long, endUs: Long): Builder {
+            this.startUs = startUs
+            this.endUs = endUs
+            return this
+        }
+
+        fun setAccurateCut(accurateCut: Boolean): Builder {
+            this.accurateCut = accurateCut
+            return this
+        }
+
+        fun setOverlay(overlay: Boolean): Builder {
+            this.overlay = overlay
+            return this
+        }
+
         fun build(): Mp4Clip {
             val repack = Mp4Clip()
             repack.generate(
@@ -137,6 +220,10 @@ class Mp4Clip private constructor() {
                 marginTop,
                 iInterval,
                 clarity,
+                startUs,
+                endUs,
+                accurateCut,
+                overlay,
                 listener
             )
             return repack
@@ -154,6 +241,13 @@ class Mp4Clip private constructor() {
          */
         fun onProgress(p: Float)
 
+        /**
+         * 各阶段占用率 0~1,与进度同时回调,下标为STAGE_XXX
+         * 占用率接近1的阶段即为整个任务的瓶颈
+         */
+        fun onStageUsage(usage: FloatArray) {
+        }
+
         /**
          * 编码结束
          */
@@ -165,8 +259,6 @@ class Mp4Clip private constructor() {
         fun onError(msg: String)
     }
 
-    private val pool = Executors.newScheduledThreadPool(1)
-
     private var listener: ClipListener? = null
 
     /**
@@ -190,7 +282,12 @@ class Mp4Clip private constructor() {
     private lateinit var egl: EglVideo
 
     private lateinit var drawer: IDrawer
-    private lateinit var drawer2: IDrawer
+    private var drawer2: IDrawer? = null
+
+    /**
+     * 画面不需要变换时使用的流拷贝任务,不为空时不再创建编解码器
+     */
+    private var remux: Mp4Remux? = null
 
     /**
      * 音频数据提取器
@@ -215,7 +312,68 @@ class Mp4Clip private constructor() {
     private var audioP = 0f
     private var videoP = 0f
 
+    /**
+     * 编码阶段到混合阶段的视频队列
+     */
+    private val videoQueue = FrameQueue(8, 64 * 1024)
+
+    /**
+     * 音频阶段到混合阶段的音频队列
+     */
+    private val audioQueue = FrameQueue(64, 8 * 1024)
+
+    /**
+     * 压入队列时使用的数据信息,分属编码阶段与音频阶段
+     */
+    private val videoInfo = MediaCodec.BufferInfo()
+    private val audioInfo = MediaCodec.BufferInfo()
+
+    /**
+     * 已编码的最大视频pts,音频阶段据此决定提取到何处
+     */
+    @Volatile
+    private var videoPts = 0L
+
+    /**
+     * 渲染阶段完成初始化后,其余阶段才开始工作
+     */
+    private var ready = CountDownLatch(1)
+
+    /**
+     * 编码阶段结束后,渲染阶段才可释放EGL及编码器输入表面
+     */
+    private var encodeDone = CountDownLatch(1)
+
+    /**
+     * 仍在运行的阶段数量,最后结束的阶段负责释放资源
+     */
+    private val runningStages = AtomicInteger(0)
+
+    /**
+     * 各阶段处理数据的累计时长,单位为纳秒
+     */
+    private val stageBusyNs = AtomicLongArray(STAGE_COUNT)
+
+    /**
+     * 任务开始时间
+     */
+    @Volatile
+    private var startNs = 0L
+
+    /**
+     * 任务结束回调,用于批量任务调度
+     */
+    private var onFinish: ((Boolean) -> Unit)? = null
+
+    /**
+     * 是否创建成功
+     */
+    private var generated = false
+
+    @Volatile
+    private var failed = false
 
+    @Volatile
     private var isRun = false
 
     private fun generate(
@@ -228,16 +386,37 @@ class Mp4Clip private constructor() {
         marginTop: Int,
         iInterval: Float,
         clarity: Float,
+        startUs: Long,
+        endUs: Long,
+        accurateCut: Boolean,
+        overlay: Boolean,
         listener: ClipListener?
     ) {
         this.listener = listener
         this.resultWidth = resultWidth
         this.resultHeight = resultHeight
         try {
+            //尺寸不变且无需裁剪、叠加时,直接流拷贝
+            if (!overlay && marginLeft == 0 && marginTop == 0) {
+                val size = Mp4Remux.probeVideoSize(inPath)
+                if (size != null && size[0] == resultWidth && size[1] == resultHeight) {
+                    remux = Mp4Remux.Builder()
+                        .setInPath(inPath)
+                        .setOutPath(outPath)
+                        .setRange(startUs, endUs)
+                        .setAccurateCut(accurateCut)
+                        .setListener(listener)
+                        .build()
+                    generated = true
+                    return
+                }
+            }
+
             mixer = Mp4Mixer(outPath)
             //创建解码器
             videoDecoder = VideoDecoderSync()
             videoDecoder.create(inPath)
+            videoDecoder.setRange(startUs, endUs)
 
             //创建编码器
             videoEncoder = VideoEncoder.Builder()
@@ -256,7 +435,10 @@ class Mp4Clip private constructor() {
                     }
 
                     override fun onData(buffer: ByteBuffer, bufferInfo: MediaCodec.BufferInfo) {
-                        mixer.writeVideoData(buffer, bufferInfo)
+                        putSample(videoQueue, buffer, bufferInfo, videoInfo)
+                        if (bufferInfo.presentationTimeUs > videoPts) {
+                            videoPts = bufferInfo.presentationTimeUs
+                        }
                     }
 
                 })
@@ -275,11 +457,12 @@ class Mp4Clip private constructor() {
                     }
 
                     override fun onData(buffer: ByteBuffer, bufferInfo: MediaCodec.BufferInfo) {
-                        mixer.writeAudioData(buffer, bufferInfo)
+                        putSample(audioQueue, buffer, bufferInfo, audioInfo)
                     }
 
                 })
                 .build()
+            audioExtractor.setRange(startUs, endUs)
 
             /**
              * 创建绘制器
@@ -293,10 +476,13 @@ class Mp4Clip private constructor() {
                 marginLeft,
                 marginTop
             )
-            drawer2 = BitmapDrawer(
-                context,
-                BitmapFactory.decodeResource(context.resources, R.drawable.blur_1)
-            )
+            if (overlay) {
+                drawer2 = BitmapDrawer(
+                    context,
+                    BitmapFactory.decodeResource(context.resources, R.drawable.blur_1)
+                )
+            }
+            generated = true
         } catch (e: Exception) {
             e.printStackTrace()
             this.listener?.onError(e.toString())
@@ -309,65 +495,300 @@ class Mp4Clip private constructor() {
      * 启动重编码任务
      */
     fun startTask() {
-        if (!isRun) {
-            pool.execute(task)
-            isRun = true
+        if (isRun) {
+            return
+        }
+        //独立运行时单独创建阶段线程池,批量任务时使用共享线程池
+        val pool = Executors.newFixedThreadPool(STAGE_COUNT)
+        startTask(pool) {
+            pool.shutdown()
+        }
+    }
+
+    /**
+     * 在指定线程池中启动重编码任务,线程池至少需要STAGE_COUNT个空闲线程
+     *
+     * @param onFinish 任务结束回调,参数为是否成功
+     */
+    internal fun startTask(pool: ExecutorService, onFinish: ((Boolean) -> Unit)?) {
+        if (isRun) {
+            return
+        }
+        if (!generated) {
+            onFinish?.invoke(false)
+            return
+        }
+        isRun = true
+        val remux = this.remux
+        if (remux != null) {
+            pool.execute {
+                val success = remux.start()
+                isRun = false
+                onFinish?.invoke(success)
+            }
+            return
+        }
+        failed = false
+        this.onFinish = onFinish
+        ready = CountDownLatch(1)
+        encodeDone = CountDownLatch(1)
+        for (i in 0 until STAGE_COUNT) {
+            stageBusyNs.set(i, 0)
         }
+        videoPts = 0L
+        runningStages.set(STAGE_COUNT)
+        pool.execute(renderStage)
+        pool.execute(decodeStage)
+        pool.execute(encodeStage)
+        pool.execute(audioStage)
+        pool.execute(muxStage)
     }
 
-    private var task = Runnable {
+    /**
+     * 各阶段占用率 0~1,下标为STAGE_XXX
+     * 占用率为阶段实际处理数据的时长与任务运行时长之比
+     */
+    fun getStageUsage(): FloatArray {
+        val usage = FloatArray(STAGE_COUNT)
+        val elapsed = System.nanoTime() - startNs
+        if (startNs == 0L || elapsed <= 0) {
+            return usage
+        }
+        for (i in 0 until STAGE_COUNT) {
+            usage[i] = min(stageBusyNs.get(i) * 1f / elapsed, 1f)
+        }
+        return usage
+    }
+
+    /**
+     * 渲染阶段,负责初始化EGL与编解码器,EGL上下文与该线程绑定
+     */
+    private val renderStage = Runnable {
+        var eglCreated = false
         try {
             //创建EGL相关数据
             egl = EglVideo()
-            egl.create(videoEncoder.inputSurface, drawer,drawer2, resultWidth, resultHeight)
+            egl.create(videoEncoder.inputSurface, drawer, drawer2, resultWidth, resultHeight)
+            eglCreated = true
             videoDecoder.configEgl(egl)
 
             //启动解码
             videoDecoder.prepare()
             //启动编码
             audioExtractor.prepare()
+            if (!audioExtractor.hasAudio) {
+                mixer.setNoAudio()
+            }
             videoEncoder.prepare()
+            startNs = System.nanoTime()
+            ready.countDown()
             listener?.onStart()
-            while (true) {
-                //1 解码视频数据
-                videoDecoder.decoder()
-                //2 获取解码数据
-                videoDecoder.render()
-                if (videoDecoder.isEnd()) {
-                    videoEncoder.stopEncoder()
+            while (!failed && !videoDecoder.isEnd()) {
+                val start = System.nanoTime()
+                if (videoDecoder.render(STAGE_WAIT_US)) {
+                    addBusy(STAGE_RENDER, start)
+                }
+            }
+            videoEncoder.stopEncoder()
+        } catch (e: Exception) {
+            onStageError(e)
+        } finally {
+            ready.countDown()
+            if (eglCreated) {
+                try {
+                    encodeDone.await()
+                    egl.release()
+                } catch (e: Exception) {
+                    e.printStackTrace()
                 }
-                //3 获取编码数据
-                videoEncoder.render()
+            }
+            finishStage()
+        }
+    }
 
-                //4提取音频数据
-                if (mixer.start)
-                    audioExtractor.extract()
+    /**
+     * 解码阶段
+     */
+    private val decodeStage = Runnable {
+        runStage {
+            while (!failed && !videoDecoder.isInputEnd()) {
+                val start = System.nanoTime()
+                if (videoDecoder.decoder(STAGE_WAIT_US)) {
+                    addBusy(STAGE_DECODE, start)
+                }
+            }
+        }
+    }
 
-                //判断是否完成
-                if (videoDecoder.isEnd() && videoEncoder.isEnd() && audioExtractor.isEnd()) {
-                    break
+    /**
+     * 编码阶段
+     */
+    private val encodeStage = Runnable {
+        try {
+            runStage {
+                while (!failed && !videoEncoder.isEnd()) {
+                    val start = System.nanoTime()
+                    if (videoEncoder.render(STAGE_WAIT_US)) {
+                        addBusy(STAGE_ENCODE, start)
+                    }
                 }
+                videoPts = Long.MAX_VALUE - AUDIO_LEAD_US
+                videoInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+                videoQueue.put(null, videoInfo)
             }
+        } finally {
+            encodeDone.countDown()
+        }
+    }
 
-            //释放资源
-            videoDecoder.release()
-            audioExtractor.release()
-            videoEncoder.release()
+    /**
+     * 音频阶段,音频数据无需重编码,直接读入音频队列的槽位,每次批量提取到视频进度之后AUDIO_LEAD_US
+     */
+    private val audioStage = Runnable {
+        runStage {
+            while (!failed && !audioExtractor.isEnd()) {
+                val start = System.nanoTime()
+                if (audioExtractor.extractTo(audioQueue, videoPts + AUDIO_LEAD_US) > 0) {
+                    addBusy(STAGE_AUDIO, start)
+                } else {
+                    //已领先视频足够多,等待视频编码推进
+                    LockSupport.parkNanos(STAGE_WAIT_US * 1000)
+                }
+            }
+            audioInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+            audioQueue.put(null, audioInfo)
+        }
+    }
+
+    /**
+     * 混合阶段,MediaMuxer只在该线程写入,两个队列中时间较早的数据优先写入,保证音视频交错
+     */
+    private val muxStage = Runnable {
+        runStage {
+            var videoEnd = false
+            var audioEnd = false
+            while (!failed && !(videoEnd && audioEnd)) {
+                //两个轨道都添加后混合器才会启动,视频格式先于视频数据到达
+                if (!mixer.start) {
+                    videoQueue.take(STAGE_WAIT_US)
+                    continue
+                }
+                val video = if (videoEnd) null else videoQueue.peek()
+                if (!videoEnd && video == null) {
+                    videoQueue.take(STAGE_WAIT_US)
+                    continue
+                }
+                val audio = if (audioEnd) null else audioQueue.peek()
+                if (!audioEnd && audio == null) {
+                    audioQueue.take(STAGE_WAIT_US)
+                    continue
+                }
+                val start = System.nanoTime()
+                if (audio == null || (video != null && video.bufferInfo.presentationTimeUs <= audio.bufferInfo.presentationTimeUs)) {
+                    val buffer = video!!.buffer
+                    if (buffer == null) {
+                        videoEnd = true
+                    } else {
+                        mixer.writeVideoData(buffer, video.bufferInfo)
+                    }
+                    videoQueue.release()
+                } else {
+                    val buffer = audio.buffer
+                    if (buffer == null) {
+                        audioEnd = true
+                    } else {
+                        mixer.writeAudioData(buffer, audio.bufferInfo)
+                    }
+                    audioQueue.release()
+                }
+                addBusy(STAGE_MUX, start)
+            }
+            if (!failed) {
+                mixer.releaseAudio()
+                mixer.releaseVideo()
+            }
+        }
+    }
+
+    /**
+     * 等待初始化完成后执行阶段任务
+     */
+    private inline fun runStage(body: () -> Unit) {
+        try {
+            ready.await()
+            if (!failed) {
+                body()
+            }
+        } catch (e: Exception) {
+            onStageError(e)
+        } finally {
+            finishStage()
+        }
+    }
 
-            mixer.releaseAudio()
-            mixer.releaseVideo()
+    /**
+     * 将数据压入队列,数据统一从偏移0开始存放
+     */
+    private fun putSample(
+        queue: FrameQueue,
+        buffer: ByteBuffer,
+        bufferInfo: MediaCodec.BufferInfo,
+        info: MediaCodec.BufferInfo
+    ) {
+        buffer.limit(bufferInfo.offset + bufferInfo.size)
+        buffer.position(bufferInfo.offset)
+        info.set(0, bufferInfo.size, bufferInfo.presentationTimeUs, bufferInfo.flags)
+        queue.put(buffer, info)
+    }
 
-            egl.release()
+    private fun addBusy(stage: Int, start: Long) {
+        stageBusyNs.addAndGet(stage, System.nanoTime() - start)
+    }
 
-            isRun = false
+    /**
+     * 任一阶段出错,其余阶段随之退出
+     */
+    private fun onStageError(e: Exception) {
+        e.printStackTrace()
+        synchronized(this) {
+            if (failed) {
+                return
+            }
+            failed = true
+        }
+        videoQueue.close()
+        audioQueue.close()
+        listener?.onError(e.toString())
+    }
 
-            listener?.onEnd()
+    /**
+     * 阶段结束,最后结束的阶段释放编解码器
+     */
+    private fun finishStage() {
+        if (runningStages.decrementAndGet() != 0) {
+            return
+        }
+        val success = !failed
+        try {
+            videoDecoder.release()
+            audioExtractor.release()
+            videoEncoder.release()
+            if (!success) {
+                mixer.releaseAudio()
+                mixer.releaseVideo()
+            }
         } catch (e: Exception) {
             e.printStackTrace()
-            listener?.onError(e.toString())
         }
+        isRun = false
+        if (success) {
+            listener?.onStageUsage(getStageUsage())
+            listener?.onEnd()
+        }
+        onFinish?.invoke(success)
     }
 
+    @Synchronized
     private fun onExtractProgress(progress: Float, isAudio: Boolean = true) {
         if (isAudio) {
             audioP = progress
@@ -379,7 +800,8 @@ class Mp4Clip private constructor() {
         if (p - lastP >= 1f || p >= 100f) {
             lastP = p
             listener?.onProgress(p)
+            listener?.onStageUsage(getStageUsage())
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,156 @@
+package com.lee.video.lib.repack
+
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * 批量视频裁剪重编码
+ * 同时运行maxParallel个任务,所有任务共用一个阶段线程池,一个任务结束后再创建下一个任务的编解码器,
+ * 避免同时占用过多的硬件编解码器实例
+ * 单个任务的进度等回调仍由各自Builder中设置的ClipListener给出
+ */
+class Mp4ClipBatch private constructor() {
+
+    class Builder {
+        /**
+         * 同时运行的任务数量
+         */
+        private var maxParallel = 2
+
+        private var listener: BatchListener? = null
+
+        private val clips = ArrayList<Mp4Clip.Builder>()
+
+        fun setMaxParallel(maxParallel: Int): Builder {
+            this.maxParallel = maxParallel
+            return this
+        }
+
+        fun setListener(listener: BatchListener): Builder {
+            this.listener = listener
+            return this
+        }
+
+        /**
+         * 添加任务,任务轮到执行时才会调用build创建
+         */
+        fun addClip(clip: Mp4Clip.Builder): Builder {
+            clips.add(clip)
+            return this
+        }
+
+        fun build(): Mp4ClipBatch {
+            val batch = Mp4ClipBatch()
+            batch.generate(maxParallel.coerceAtLeast(1), clips, listener)
+            return batch
+        }
+    }
+
+    interface BatchListener {
+        /**
+         * 单个任务结束
+         *
+         * @param index 任务添加的顺序
+         * @param success 是否成功
+         */
+        fun onClipEnd(index: Int, success: Boolean)
+
+        /**
+         * 全部任务结束
+         */
+        fun onBatchEnd()
+    }
+
+    /**
+     * 共享的阶段线程池
+     */
+    private lateinit var pool: ExecutorService
+
+    private var listener: BatchListener? = null
+
+    private var clips: List<Mp4Clip.Builder> = emptyList()
+
+    /**
+     * 同时运行的任务数量
+     */
+    private var maxParallel = 1
+
+    /**
+     * 下一个待启动的任务
+     */
+    private var next = 0
+
+    /**
+     * 已结束的任务数量
+     */
+    private var finished = 0
+
+    private var isRun = false
+
+    private fun generate(
+        maxParallel: Int,
+        clips: List<Mp4Clip.Builder>,
+        listener: BatchListener?
+    ) {
+        this.clips = ArrayList(clips)
+        this.listener = listener
+        pool = Executors.newFixedThreadPool(maxParallel * Mp4Clip.STAGE_COUNT)
+        this.maxParallel = maxParallel
+    }
+
+    /**
+     * 启动批量任务
+     */
+    @Synchronized
+    fun startTask() {
+        if (isRun) {
+            return
+        }
+        isRun = true
+        if (clips.isEmpty()) {
+            finish()
+            return
+        }
+        for (i in 0 until maxParallel) {
+            startNext()
+        }
+    }
+
+    /**
+     * 停止启动新的任务,已在运行的任务继续执行到结束
+     */
+    fun release() {
+        pool.shutdown()
+    }
+
+    /**
+     * 启动下一个任务,需在同步块中调用
+     */
+    private fun startNext() {
+        if (next >= clips.size || pool.isShutdown) {
+            return
+        }
+        val index = next++
+        val clip = clips[index].build()
+        clip.startTask(pool) { success ->
+            onClipEnd(index, success)
+        }
+    }
+
+    @Synchronized
+    private fun onClipEnd(index: Int, success: Boolean) {
+        finished++
+        listener?.onClipEnd(index, success)
+        if (finished >= clips.size || (pool.isShutdown && finished >= next)) {
+            finish()
+        } else {
+            startNext()
+        }
+    }
+
+    private fun finish() {
+        isRun = false
+        pool.shutdown()
+        listener?.onBatchEnd()
+    }
+}
@@ -47,8 +47,13 @@ class Mp4Mixer(outPath: String) {
     /**
      * 开始标志
      */
+    @Volatile
     var start = false
 
+    /**
+     * 添加轨道可能来自不同的线程,需要同步
+     */
+    @Synchronized
     fun addVideoTrack(format: MediaFormat) {
         if (videoAdd) return
         videoTrackIndex = try {
@@ -60,6 +65,7 @@ class Mp4Mixer(outPath: String) {
         startMixer()
     }
 
+    @Synchronized
     fun addAudioTrack(format: MediaFormat) {
         if (audioAdd) return
         audioTrackIndex = try {
@@ -75,6 +81,7 @@ class Mp4Mixer(outPath: String) {
     /**
      * 设定不需要音频
      */
+    @Synchronized
     fun setNoAudio() {
         audioAdd = true
         audioEnd = true
@@ -83,6 +90,7 @@ class Mp4Mixer(outPath: String) {
     /**
      * 设定不需要视频
      */
+    @Synchronized
     fun setNoVideo() {
         videoAdd = true
         videoEnd = true
@@ -93,8 +101,9 @@ class Mp4Mixer(outPath: String) {
      */
     private fun startMixer() {
         if (audioAdd && videoAdd) {
-            start = true
             mixer.start()
+            //start之后才能写入数据
+            start = true
         }
     }
 
@@ -126,6 +135,7 @@ class Mp4Mixer(outPath: String) {
     /**
      * 结束视频写入
      */
+    @Synchronized
     fun releaseVideo() {
         videoEnd = true
         release()
@@ -134,12 +144,31 @@ class Mp4Mixer(outPath: String) {
     /**
      * 结束音频写入
      */
+    @Synchronized
     fun releaseAudio() {
         audioEnd = true
         release()
     }
 
 
+    /**
+     * 中止混合,不论是否已启动都释放MediaMuxer,输出文件不完整,由调用方删除
+     */
+    @Synchronized
+    fun abort() {
+        try {
+            //已启动时release内部会先stop,没有写入数据时stop会抛出异常
+            mixer.release()
+        } catch (e: Exception) {
+            e.printStackTrace()
+        }
+        videoEnd = true
+        audioEnd = true
+        start = false
+        videoAdd = false
+        audioAdd = false
+    }
+
     /**
      * 释放资源
      */
@@ -0,0 +1,503 @@
+package com.lee.video.lib.repack
+
+import android.media.MediaCodec
+import android.media.MediaCodecInfo
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.os.Build
+import android.view.Surface
+import java.io.File
+import java.nio.ByteBuffer
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * mp4截取与流拷贝
+ * 画面不需要变换时直接复制压缩数据,不经过解码与编码
+ * 截取起点不是关键帧时有两种处理方式:
+ * 1 对齐关键帧(默认),起点提前到之前最近的关键帧,全程流拷贝
+ * 2 精确截取,只重编码起点到下一个关键帧之间的画面,其余部分仍为流拷贝
+ * 精确截取要求视频为闭合GOP,即关键帧之后的帧不会参考之前GOP的画面
+ */
+class Mp4Remux private constructor() {
+
+    companion object {
+        /**
+         * 轨道未给出最大输入大小时使用的缓冲区大小
+         */
+        private const val DEFAULT_MAX_INPUT_SIZE = 1024 * 1024
+
+        /**
+         * 编解码等待时间-单位为微秒
+         */
+        private const val WAIT_US = 10_000L
+
+        /**
+         * 获取视频宽高,没有视频轨道或读取失败时返回null
+         */
+        fun probeVideoSize(path: String): IntArray? {
+            val extractor = MediaExtractor()
+            try {
+                extractor.setDataSource(path)
+                for (i in 0 until extractor.trackCount) {
+                    val format = extractor.getTrackFormat(i)
+                    val mime = format.getString(MediaFormat.KEY_MIME)
+                    if (mime != null && mime.startsWith("video/")) {
+                        return intArrayOf(
+                            format.getInteger(MediaFormat.KEY_WIDTH),
+                            format.getInteger(MediaFormat.KEY_HEIGHT)
+                        )
+                    }
+                }
+            } catch (e: Exception) {
+                e.printStackTrace()
+            } finally {
+                extractor.release()
+            }
+            return null
+        }
+    }
+
+    class Builder {
+        /**
+         * 进度回调
+         */
+        private var listener: Mp4Clip.ClipListener? = null
+
+        private var inPath: String? = null
+
+        private var outPath: String? = null
+
+        /**
+         * 截取范围,单位为微秒,endUs小于等于0表示截取到结尾
+         */
+        private var startUs = 0L
+        private var endUs = 0L
+
+        /**
+         * 是否精确截取
+         */
+        private var accurateCut = false
+
+        fun setInPath(inPath: String): Builder {
+            this.inPath = inPath
+            return this
+        }
+
+        fun setOutPath(outPath: String): Builder {
+            this.outPath = outPath
+            return this
+        }
+
+        fun setRange(startUs: Long, endUs: Long): Builder {
+            this.startUs = startUs
+            this.endUs = endUs
+            return this
+        }
+
+        fun setAccurateCut(accurateCut: Boolean): Builder {
+            this.accurateCut = accurateCut
+            return this
+        }
+
+        fun setListener(listener: Mp4Clip.ClipListener?): Builder {
+            this.listener = listener
+            return this
+        }
+
+        fun build(): Mp4Remux {
+            val remux = Mp4Remux()
+            remux.generate(inPath!!, outPath!!, startUs, endUs, accurateCut, listener)
+            return remux
+        }
+    }
+
+    private var listener: Mp4Clip.ClipListener? = null
+
+    private lateinit var inPath: String
+
+    private lateinit var outPath: String
+
+    private var startUs = 0L
+
+    private var endUs = Long.MAX_VALUE
+
+    private var accurateCut = false
+
+    /**
+     * 输出时间的起点,源文件中该时间对应输出的0
+     */
+    private var baseUs = 0L
+
+    private lateinit var mixer: Mp4Mixer
+
+    private val writeInfo = MediaCodec.BufferInfo()
+
+    /**
+     * 关键帧前插入参数集时使用的缓冲区,容量不足时扩大
+     */
+    private var keyFrameBuffer: ByteBuffer? = null
+
+    /**
+     * 处理进度
+     */
+    private var lastP = 0f
+
+    private fun generate(
+        inPath: String,
+        outPath: String,
+        startUs: Long,
+        endUs: Long,
+        accurateCut: Boolean,
+        listener: Mp4Clip.ClipListener?
+    ) {
+        this.inPath = inPath
+        this.outPath = outPath
+        this.startUs = startUs.coerceAtLeast(0)
+        this.endUs = if (endUs <= 0) Long.MAX_VALUE else endUs
+        this.accurateCut = accurateCut
+        this.listener = listener
+    }
+
+    /**
+     * 执行截取,阻塞至完成,失败时删除不完整的输出文件
+     *
+     * @return 是否成功
+     */
+    fun start(): Boolean {
+        val videoExtractor = MediaExtractor()
+        val audioExtractor = MediaExtractor()
+        var success = false
+        try {
+            videoExtractor.setDataSource(inPath)
+            audioExtractor.setDataSource(inPath)
+            val videoFormat = selectTrack(videoExtractor, "video/")
+                ?: throw IllegalStateException("没有视频轨道")
+            val audioFormat = selectTrack(audioExtractor, "audio/")
+            if (videoFormat.containsKey(MediaFormat.KEY_DURATION)) {
+                endUs = min(endUs, videoFormat.getLong(MediaFormat.KEY_DURATION))
+            }
+
+            mixer = Mp4Mixer(outPath)
+            if (audioFormat == null) {
+                mixer.setNoAudio()
+            } else {
+                mixer.addAudioTrack(audioFormat)
+            }
+            mixer.addVideoTrack(videoFormat)
+            listener?.onStart()
+
+            //起点之前最近的关键帧
+            videoExtractor.seekTo(startUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+            val keyUs = videoExtractor.sampleTime
+            if (keyUs < 0) {
+                throw IllegalStateException("截取起点超出视频范围")
+            }
+            baseUs = keyUs
+            var videoEnd = false
+            //流拷贝的第一个关键帧前需要补上原视频的参数集
+            var prependCsd = false
+            if (accurateCut && keyUs < startUs) {
+                baseUs = startUs
+                videoExtractor.seekTo(startUs, MediaExtractor.SEEK_TO_NEXT_SYNC)
+                val nextKeyUs = videoExtractor.sampleTime
+                val headEndUs = if (nextKeyUs < 0) endUs else min(nextKeyUs, endUs)
+                encodeHead(videoFormat, keyUs, headEndUs)
+                videoEnd = nextKeyUs < 0 || nextKeyUs > endUs
+                prependCsd = true
+            }
+
+            if (audioFormat != null) {
+                audioExtractor.seekTo(baseUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+                //跳过起点之前的数据
+                while (audioExtractor.sampleTime in 0 until baseUs) {
+                    audioExtractor.advance()
+                }
+            }
+            copy(
+                videoExtractor,
+                if (audioFormat == null) null else audioExtractor,
+                videoFormat,
+                audioFormat,
+                videoEnd,
+                prependCsd
+            )
+
+            mixer.releaseAudio()
+            mixer.releaseVideo()
+            success = true
+            listener?.onProgress(100f)
+            listener?.onEnd()
+            return true
+        } catch (e: Exception) {
+            e.printStackTrace()
+            listener?.onError(e.toString())
+            return false
+        } finally {
+            videoExtractor.release()
+            audioExtractor.release()
+            if (!success && this::mixer.isInitialized) {
+                //MediaMuxer创建时已生成输出文件
+                mixer.abort()
+                File(outPath).delete()
+            }
+        }
+    }
+
+    /**
+     * 按时间顺序交错复制音视频数据
+     */
+    private fun copy(
+        videoExtractor: MediaExtractor,
+        audioExtractor: MediaExtractor?,
+        videoFormat: MediaFormat,
+        audioFormat: MediaFormat?,
+        videoEnd: Boolean,
+        prependCsd: Boolean
+    ) {
+        val csd = if (prependCsd) readCsd(videoFormat) else null
+        val buffer = ByteBuffer.allocateDirect(
+            max(maxInputSize(videoFormat), maxInputSize(audioFormat)) + (csd?.size ?: 0)
+        )
+        var videoDone = videoEnd
+        var audioDone = audioExtractor == null
+        var needCsd = csd != null
+        while (!videoDone || !audioDone) {
+            val videoTime = if (videoDone) -1 else videoExtractor.sampleTime
+            if (!videoDone && (videoTime < 0 || videoTime > endUs)) {
+                videoDone = true
+                continue
+            }
+            val audioTime = if (audioDone) -1 else audioExtractor!!.sampleTime
+            if (!audioDone && (audioTime < 0 || audioTime > endUs)) {
+                audioDone = true
+                continue
+            }
+            val isVideo = !videoDone && (audioDone || videoTime <= audioTime)
+            val extractor = if (isVideo) videoExtractor else audioExtractor!!
+            val time = if (isVideo) videoTime else audioTime
+            val flags = if (extractor.sampleFlags and MediaExtractor.SAMPLE_FLAG_SYNC != 0) {
+                MediaCodec.BUFFER_FLAG_KEY_FRAME
+            } else {
+                0
+            }
+            buffer.clear()
+            var offset = 0
+            if (isVideo && needCsd && csd != null) {
+                buffer.put(csd)
+                offset = csd.size
+                needCsd = false
+            }
+            val size = extractor.readSampleData(buffer, offset)
+            if (size < 0) {
+                if (isVideo) videoDone = true else audioDone = true
+                continue
+            }
+            buffer.position(0)
+            buffer.limit(offset + size)
+            writeInfo.set(0, offset + size, time - baseUs, flags)
+            if (isVideo) {
+                mixer.writeVideoData(buffer, writeInfo)
+            } else {
+                mixer.writeAudioData(buffer, writeInfo)
+            }
+            extractor.advance()
+            onProgress(time)
+        }
+    }
+
+    /**
+     * 重编码起点所在GOP中从起点到headEndUs的画面
+     * 解码器直接输出到编码器的输入表面,不经过GL,编码数据的第一个关键帧前补上新的参数集
+     *
+     * @param keyUs 起点之前最近的关键帧
+     * @param headEndUs 重编码的结束时间,不包含
+     */
+    private fun encodeHead(format: MediaFormat, keyUs: Long, headEndUs: Long) {
+        val mime = format.getString(MediaFormat.KEY_MIME)!!
+        val width = format.getInteger(MediaFormat.KEY_WIDTH)
+        val height = format.getInteger(MediaFormat.KEY_HEIGHT)
+        val fps = if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+            format.getInteger(MediaFormat.KEY_FRAME_RATE)
+        } else {
+            30
+        }
+        val bitrate = if (format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            format.getInteger(MediaFormat.KEY_BIT_RATE)
+        } else {
+            (width * height * fps * 0.3f).toInt()
+        }
+        val encodeFormat = MediaFormat.createVideoFormat(mime, width, height)
+        encodeFormat.setInteger(
+            MediaFormat.KEY_COLOR_FORMAT,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface
+        )
+        encodeFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitrate)
+        encodeFormat.setInteger(MediaFormat.KEY_FRAME_RATE, fps)
+        encodeFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1)
+        //码流中新的参数集需与添加轨道时的参数集一致
+        if (format.containsKey(MediaFormat.KEY_PROFILE)) {
+            encodeFormat.setInteger(MediaFormat.KEY_PROFILE, format.getInteger(MediaFormat.KEY_PROFILE))
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && format.containsKey(MediaFormat.KEY_LEVEL)) {
+            encodeFormat.setInteger(MediaFormat.KEY_LEVEL, format.getInteger(MediaFormat.KEY_LEVEL))
+        }
+
+        val encoder = MediaCodec.createEncoderByType(mime)
+        val decoder = MediaCodec.createDecoderByType(mime)
+        val extractor = MediaExtractor()
+        var surface: Surface? = null
+        try {
+            encoder.configure(encodeFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE)
+            surface = encoder.createInputSurface()
+            encoder.start()
+            decoder.configure(format, surface, null, 0)
+            decoder.start()
+            extractor.setDataSource(inPath)
+            selectTrack(extractor, "video/")
+            extractor.seekTo(keyUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC)
+
+            val info = MediaCodec.BufferInfo()
+            var csd: ByteArray? = null
+            var inputDone = false
+            var decodeDone = false
+            var encodeDone = false
+            while (!encodeDone) {
+                //1 送入压缩数据
+                if (!inputDone) {
+                    val index = decoder.dequeueInputBuffer(WAIT_US)
+                    if (index >= 0) {
+                        val size = extractor.readSampleData(decoder.getInputBuffer(index)!!, 0)
+                        if (size < 0 || extractor.sampleTime >= headEndUs) {
+                            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+                            inputDone = true
+                        } else {
+                            decoder.queueInputBuffer(index, 0, size, extractor.sampleTime, 0)
+                            extractor.advance()
+                        }
+                    }
+                }
+                //2 起点之后的画面渲染到编码器,时间戳即为输出时间
+                if (!decodeDone) {
+                    val index = decoder.dequeueOutputBuffer(info, WAIT_US)
+                    if (index >= 0) {
+                        val pts = info.presentationTimeUs
+                        if (info.size > 0 && pts >= startUs && pts < headEndUs) {
+                            decoder.releaseOutputBuffer(index, (pts - baseUs) * 1000)
+                        } else {
+                            decoder.releaseOutputBuffer(index, false)
+                        }
+                        if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+                            encoder.signalEndOfInputStream()
+                            decodeDone = true
+                        }
+                    }
+                }
+                //3 写入编码数据
+                val index = encoder.dequeueOutputBuffer(info, WAIT_US)
+                if (index >= 0) {
+                    val out = encoder.getOutputBuffer(index)!!
+                    out.limit(info.offset + info.size)
+                    out.position(info.offset)
+                    if (info.flags and MediaCodec.BUFFER_FLAG_CODEC_CONFIG != 0) {
+                        //参数集与原视频不同,放入码流中
+                        csd = ByteArray(info.size)
+                        out.get(csd)
+                    } else if (info.size > 0) {
+                        val key = info.flags and MediaCodec.BUFFER_FLAG_KEY_FRAME != 0
+                        val config = csd
+                        if (key && config != null) {
+                            val frame = obtainKeyFrameBuffer(config.size + info.size)
+                            frame.put(config)
+                            frame.put(out)
+                            frame.flip()
+                            writeInfo.set(0, frame.limit(), info.presentationTimeUs, info.flags)
+                            mixer.writeVideoData(frame, writeInfo)
+                        } else {
+                            writeInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags)
+                            mixer.writeVideoData(out, writeInfo)
+                        }
+                        onProgress(info.presentationTimeUs + baseUs)
+                    }
+                    encoder.releaseOutputBuffer(index, false)
+                    if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+                        encodeDone = true
+                    }
+                }
+            }
+        } finally {
+            //release在任意状态下均可调用
+            decoder.release()
+            surface?.release()
+            encoder.release()
+            extractor.release()
+        }
+    }
+
+    /**
+     * 获取清空后的关键帧缓冲区
+     */
+    private fun obtainKeyFrameBuffer(size: Int): ByteBuffer {
+        var buffer = keyFrameBuffer
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size * 2)
+            keyFrameBuffer = buffer
+        }
+        buffer.clear()
+        return buffer
+    }
+
+    /**
+     * 选择指定类型的第一个轨道
+     */
+    private fun selectTrack(extractor: MediaExtractor, prefix: String): MediaFormat? {
+        for (i in 0 until extractor.trackCount) {
+            val format = extractor.getTrackFormat(i)
+            val mime = format.getString(MediaFormat.KEY_MIME)
+            if (mime != null && mime.startsWith(prefix)) {
+                extractor.selectTrack(i)
+                return format
+            }
+        }
+        return null
+    }
+
+    private fun maxInputSize(format: MediaFormat?): Int {
+        if (format != null && format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            return format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+        }
+        return DEFAULT_MAX_INPUT_SIZE
+    }
+
+    /**
+     * 读取原视频的参数集,带起始码
+     */
+    private fun readCsd(format: MediaFormat): ByteArray? {
+        var size = 0
+        val list = ArrayList<ByteBuffer>()
+        for (key in arrayOf("csd-0", "csd-1")) {
+            val buffer = format.getByteBuffer(key) ?: continue
+            list.add(buffer.duplicate())
+            size += buffer.remaining()
+        }
+        if (size == 0) {
+            return null
+        }
+        val csd = ByteArray(size)
+        var offset = 0
+        for (buffer in list) {
+            val length = buffer.remaining()
+            buffer.get(csd, offset, length)
+            offset += length
+        }
+        return csd
+    }
+
+    private fun onProgress(timeUs: Long) {
+        val p = min(((timeUs - baseUs) * 1f / max(endUs - baseUs, 1) * 10000).toInt() / 100f, 100f)
+        if (p - lastP >= 1f) {
+            lastP = p
+            listener?.onProgress(p)
+        }
+    }
+}